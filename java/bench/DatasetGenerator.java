@@ -0,0 +1,658 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Synthetic dataset generator.  Writes the five CSV files BulkLoader
+ * loads (users.csv, connections.csv, messages.csv, work_expr.csv and
+ * education.csv) for any number of users, the same files for the same
+ * seed and options whatever the number of threads.
+ *
+ *    java -cp classes DatasetGenerator <out dir> [--users n] [--degree d]
+ *         [--max-degree d] [--exponent g] [--messages m] [--pending f]
+ *         [--start yyyy-mm-dd] [--months m] [--seed s] [--threads t] [--header]
+ *    java -cp classes:lib/pg73jdbc3.jar BulkLoader $DB_NAME $PGPORT $USER <out dir>
+ *
+ * The shape follows what social networks look like:
+ *
+ *  - connections form a power-law graph (Chung-Lu model): user weights
+ *    fall off as rank^(-1/(g-1)), g the degree exponent (default 2.5),
+ *    scaled to a mean degree d (default 20) and capped at max-degree
+ *    (default 5000), and each pair is connected with probability
+ *    w(u) w(v) / sum(w).  Pairs are drawn with geometric skips (Miller and
+ *    Hagberg), so the cost is linear in the number of connections.  A
+ *    fraction f (default 0.15) of the connections are pending requests, a
+ *    few are rejected, the rest accepted;
+ *  - messages go between accepted connections, m per user on average
+ *    (default 30).  The number per pair is Pareto distributed, so a few
+ *    conversations hold most of them, and one side usually writes more.
+ *    Send times grow denser towards the end of the window (default 24
+ *    months from 2024-01-01), cluster in bursts per conversation, peak in
+ *    the evening and thin out on weekends;
+ *  - users have zero to four jobs in sequence and up to three degrees,
+ *    bachelor before master before doctorate.
+ *
+ * User ids are u followed by eight digits, spread over the ranks so the
+ * hubs are not the first ids.  Dates are ISO, which PostgreSQL reads in
+ * any DateStyle.  BulkLoader creates the monthly partitions the messages
+ * fall in.
+ *
+ * Users are generated in chunks of about CHUNK_ROWS rows by a pool of
+ * threads and written in order by the main thread, with at most two
+ * chunks per thread in memory, so memory stays bounded at any size.
+ * Everything about a user is drawn from random streams seeded by the
+ * seed and the user alone, and message ids are given out by the writer.
+ *
+ */
+public class DatasetGenerator {
+
+   // rows generated per chunk, about.
+   static final int CHUNK_ROWS = 20000;
+
+   // share of the connections that were rejected.
+   static final double REJECTED = 0.02;
+
+   // shape of the distribution of messages per pair: Pareto with this
+   // exponent, capped.
+   static final double PAIR_ALPHA = 1.5;
+   static final int MAX_PAIR_MESSAGES = 2000;
+
+   // relative number of messages sent in each hour of the day.
+   private static final int[] HOUR_WEIGHTS = {
+      2, 1, 1, 1, 1, 1, 2, 4, 7, 8, 8, 8, 9, 8, 7, 7, 8, 9, 11, 13, 14, 13, 9, 5 };
+
+   private static final String[] FIRST_NAMES = {
+      "James", "Mary", "John", "Patricia", "Robert", "Jennifer", "Michael", "Linda", "David", "Elizabeth",
+      "William", "Barbara", "Richard", "Susan", "Joseph", "Jessica", "Thomas", "Sarah", "Carlos", "Karen",
+      "Wei", "Mei", "Hiroshi", "Yuki", "Amit", "Priya", "Ahmed", "Fatima", "Ivan", "Olga",
+      "Luis", "Sofia", "Kwame", "Amara", "Lars", "Ingrid", "Pierre", "Camille", "Giulia", "Marco" };
+
+   private static final String[] LAST_NAMES = {
+      "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis", "Rodriguez", "Martinez",
+      "Hernandez", "Lopez", "Wilson", "Anderson", "Thomas", "Taylor", "Moore", "Jackson", "Martin", "Lee",
+      "Nguyen", "Chen", "Wang", "Kim", "Patel", "Singh", "Tanaka", "Sato", "Ivanov", "Kowalski",
+      "Muller", "Rossi", "Dubois", "Silva", "Okafor", "Mensah", "Hansen", "Larsen", "Cohen", "Khan" };
+
+   private static final String[] DOMAINS = {
+      "gmail.com", "yahoo.com", "outlook.com", "hotmail.com", "icloud.com", "ucr.edu", "proton.me" };
+
+   private static final String[] COMPANIES = {
+      "Google", "Microsoft", "Amazon", "Apple", "Meta", "Oracle", "IBM", "Intel", "Cisco", "Adobe",
+      "Salesforce", "Netflix", "Uber", "Airbnb", "Stripe", "Qualcomm", "Nvidia", "SAP", "Accenture", "Deloitte",
+      "Boeing", "Tesla", "Walmart", "Target", "Kaiser Permanente", "Wells Fargo", "JPMorgan Chase", "Bank of America",
+      "Pfizer", "Genentech", "Edison International", "City of Riverside", "UC Riverside", "Acme Corp", "Initech" };
+
+   private static final String[] ROLES = {
+      "Software Engineer", "Senior Software Engineer", "Staff Engineer", "Engineering Manager", "Data Scientist",
+      "Data Analyst", "Product Manager", "Designer", "QA Engineer", "DevOps Engineer", "Database Administrator",
+      "Consultant", "Accountant", "Sales Representative", "Marketing Manager", "Recruiter", "Intern",
+      "Research Scientist", "Technical Writer", "Director" };
+
+   private static final String[] LOCATIONS = {
+      "Riverside, CA", "Los Angeles, CA", "San Francisco, CA", "San Jose, CA", "Seattle, WA", "Austin, TX",
+      "New York, NY", "Boston, MA", "Chicago, IL", "Denver, CO", "Atlanta, GA", "Remote", "London, UK",
+      "Toronto, Canada", "Bangalore, India", "Berlin, Germany", "Tokyo, Japan", "Singapore" };
+
+   private static final String[] INSTITUTIONS = {
+      "UC Riverside", "UC Berkeley", "UCLA", "UC San Diego", "Stanford University", "MIT", "Caltech",
+      "University of Washington", "University of Texas", "Georgia Tech", "Carnegie Mellon University",
+      "Cal State San Bernardino", "Riverside City College", "University of Michigan", "Cornell University",
+      "University of Toronto", "IIT Bombay", "Tsinghua University", "ETH Zurich", "University of Oxford" };
+
+   private static final String[] MAJORS = {
+      "Computer Science", "Computer Engineering", "Electrical Engineering", "Mechanical Engineering",
+      "Mathematics", "Statistics", "Physics", "Chemistry", "Biology", "Economics", "Business Administration",
+      "Psychology", "English", "History", "Data Science" };
+
+   private static final String[] DEGREES = { "Bachelor", "Master", "PhD" };
+
+   // years a degree takes, by level.
+   private static final int[] DEGREE_YEARS = { 4, 2, 5 };
+
+   private static final String[] WORDS = {
+      "hi", "hello", "thanks", "great", "meeting", "tomorrow", "today", "project", "deadline", "review",
+      "call", "lunch", "coffee", "job", "offer", "interview", "resume", "team", "update", "report",
+      "please", "send", "check", "the", "a", "for", "about", "with", "your", "my", "we", "can", "next",
+      "week", "soon", "sure", "sounds", "good", "let", "me", "know", "when", "free", "congrats", "new",
+      "role", "position", "question", "help", "later" };
+
+   private static final Charset UTF8 = Charset.forName ("UTF-8");
+
+   // random streams of a user, so one kind of data never shifts another.
+   private static final int STREAM_USER = 0;
+   private static final int STREAM_GRAPH = 1;
+   private static final int STREAM_HISTORY = 2;
+
+   // index of messages.csv in BulkLoader.TABLES.
+   private static final int MESSAGES = 2;
+
+   /**
+    * The rows of a range of users, one buffer per file.  Message lines
+    * leave out their msgId, given by the writer.
+    */
+   static class Chunk {
+      final StringBuilder users = new StringBuilder ();
+      final StringBuilder connections = new StringBuilder ();
+      final StringBuilder messages = new StringBuilder ();
+      final StringBuilder work = new StringBuilder ();
+      final StringBuilder education = new StringBuilder ();
+
+      // the buffers encoded, in the order of BulkLoader.TABLES, and their
+      // numbers of lines; set by finish.
+      byte[][] files;
+      long[] lines;
+
+      /*
+       * Encodes the buffers, on the generating thread so the writer only
+       * copies bytes.
+       */
+      void finish () {
+         StringBuilder[] buffers = { this.users, this.connections, this.messages, this.work, this.education };
+         this.files = new byte[buffers.length][];
+         this.lines = new long[buffers.length];
+         for (int i = 0; i < buffers.length; ++i) {
+            this.files[i] = buffers[i].toString ().getBytes (UTF8);
+            buffers[i].setLength (0);
+            buffers[i].trimToSize ();
+            for (byte b : this.files[i])
+               if (b == '\n')
+                  ++this.lines[i];
+         }//end for
+      }
+   }//end Chunk
+
+   private final int _users;
+   private final int _maxDegree;
+   private final double _beta;
+   private final double _pending;
+   private final long _seed;
+   private final LocalDate _start;
+   private final int _days;
+   private final double _pairScale;
+   private final long _stride;
+
+   // weight scale and total weight of the power law.
+   private double _scale;
+   private double _totalWeight;
+
+   // first rank of each chunk, and the end.
+   private int[] _chunks;
+
+   /**
+    * Creates a new instance of DatasetGenerator
+    *
+    * @param users the number of users
+    * @param degree the mean number of connections per user
+    * @param maxDegree the highest expected number of connections of a user
+    * @param exponent the exponent of the degree distribution, above 2
+    * @param messages the mean number of messages sent per user
+    * @param pending the share of connections still pending
+    * @param start the first day of the messages
+    * @param months the number of months of messages
+    * @param seed the seed of every random stream
+    */
+   public DatasetGenerator (int users, double degree, int maxDegree, double exponent, double messages,
+                            double pending, LocalDate start, int months, long seed) {
+      this._users = users;
+      this._maxDegree = Math.max (1, Math.min (maxDegree, users - 1));
+      this._beta = 1.0 / (exponent - 1.0);
+      this._pending = pending;
+      this._seed = seed;
+      this._start = start;
+      this._days = (int) (start.plusMonths (months).toEpochDay () - start.toEpochDay ());
+      this._stride = strideFor (users);
+      fitWeights (degree);
+
+      // Pareto(xm, alpha) floored has a mean of about xm alpha/(alpha-1) - 1/2.
+      double acceptedPairs = (1.0 - pending - REJECTED) * this._totalWeight / 2.0;
+      double pairMean = acceptedPairs > 0 ? messages * users / acceptedPairs : 0.0;
+      this._pairScale = (pairMean + 0.5) * (PAIR_ALPHA - 1.0) / PAIR_ALPHA;
+      planChunks (pairMean);
+   }//end DatasetGenerator
+
+   /**
+    * Generates every file into a directory.
+    *
+    * @param dir where the CSV files go, created if need be
+    * @param threads the number of generating threads
+    * @param header whether to start every file with a header line
+    * @throws java.lang.Exception when writing failed
+    */
+   public void generate (File dir, int threads, boolean header) throws Exception {
+      if (!dir.isDirectory () && !dir.mkdirs ())
+         throw new IOException ("Cannot create " + dir);
+      OutputStream[] out = new OutputStream[BulkLoader.TABLES.length];
+      for (int i = 0; i < out.length; ++i) {
+         BulkLoader.Table table = BulkLoader.TABLES[i];
+         out[i] = new BufferedOutputStream (new FileOutputStream (new File (dir, table.file)), 1 << 20);
+         if (header)
+            out[i].write ((table.columnList ().replace (" ", "") + "\n").getBytes (UTF8));
+      }//end for
+      long[] rows = new long[out.length];
+      long start = System.nanoTime ();
+      ExecutorService pool = Executors.newFixedThreadPool (threads);
+      try {
+         Deque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+         int next = 0;
+         int msgId = 0;
+         while (next < this._chunks.length - 1 || !pending.isEmpty ()) {
+            while (next < this._chunks.length - 1 && pending.size () < 2 * threads) {
+               final int from = this._chunks[next];
+               final int to = this._chunks[next + 1];
+               pending.add (pool.submit (new Callable<Chunk>() {
+                  public Chunk call () {
+                     return chunk (from, to);
+                  }
+               }));
+               ++next;
+            }//end while
+            Chunk chunk;
+            try {
+               chunk = pending.poll ().get ();
+            }catch (ExecutionException e) {
+               throw (e.getCause () instanceof Exception) ? (Exception) e.getCause () : e;
+            }//end try
+            for (int i = 0; i < out.length; ++i) {
+               if (i == MESSAGES)
+                  msgId = writeMessages (out[i], chunk.files[i], msgId);
+               else
+                  out[i].write (chunk.files[i]);
+               rows[i] += chunk.lines[i];
+            }//end for
+         }//end while
+      }finally{
+         pool.shutdownNow ();
+         for (OutputStream stream : out)
+            stream.close ();
+      }//end try
+      double secs = (System.nanoTime () - start) / 1e9;
+      for (int i = 0; i < out.length; ++i)
+         System.out.println (String.format ("%-20s %12d rows", BulkLoader.TABLES[i].file, rows[i]));
+      System.out.printf ("Generated in %.1f s with %d threads%n", secs, threads);
+   }//end generate
+
+   /*
+    * Writes message lines, each after the next msgId.  Returns the last
+    * msgId given.
+    */
+   private static int writeMessages (OutputStream out, byte[] lines, int msgId) throws IOException {
+      byte[] digits = new byte[11];
+      int begin = 0;
+      for (int i = 0; i < lines.length; ++i) {
+         if (lines[i] != '\n')
+            continue;
+         if (msgId == Integer.MAX_VALUE)
+            throw new IOException ("Too many messages for integer msgIds, ask for fewer");
+         int at = digits.length;
+         digits[--at] = ',';
+         for (int id = ++msgId; id > 0; id /= 10)
+            digits[--at] = (byte) ('0' + id % 10);
+         out.write (digits, at, digits.length - at);
+         out.write (lines, begin, i + 1 - begin);
+         begin = i + 1;
+      }//end for
+      return msgId;
+   }//end writeMessages
+
+   /**
+    * Generates the rows of the users of some ranks: the users themselves,
+    * their histories, and their connections to users of higher ranks
+    * with the messages on them.
+    *
+    * @param from the first rank
+    * @param to the rank after the last
+    * @return the rows
+    */
+   Chunk chunk (int from, int to) {
+      Chunk chunk = new Chunk ();
+      for (int rank = from; rank < to; ++rank) {
+         String userId = userId (rank);
+         SplittableRandom random = random (rank, STREAM_USER);
+         LocalDate birth = user (chunk.users, userId, random);
+         histories (chunk, userId, birth, random (rank, STREAM_HISTORY));
+         connections (chunk, rank, userId, random (rank, STREAM_GRAPH));
+      }//end for
+      chunk.finish ();
+      return chunk;
+   }//end chunk
+
+   /*
+    * Writes a user, returns the date of birth.
+    */
+   private LocalDate user (StringBuilder out, String userId, SplittableRandom random) {
+      String first = pick (FIRST_NAMES, random);
+      String last = pick (LAST_NAMES, random);
+      LocalDate birth = LocalDate.of (1955, 1, 1).plusDays (random.nextInt (51 * 365));
+      out.append (userId).append (',');
+      for (int i = 0; i < 8; ++i)
+         out.append ((char) (random.nextBoolean () ? 'a' + random.nextInt (26) : '0' + random.nextInt (10)));
+      out.append (',').append (first.toLowerCase ()).append ('.').append (last.toLowerCase ())
+         .append (userId, 1, userId.length ()).append ('@').append (pick (DOMAINS, random))
+         .append (',').append (first).append (' ').append (last)
+         .append (',').append (birth).append ('\n');
+      return birth;
+   }//end user
+
+   /*
+    * Writes the degrees and jobs of a user, in the order they happened.
+    * Nothing ends after the last day of the messages.
+    */
+   private void histories (Chunk chunk, String userId, LocalDate birth, SplittableRandom random) {
+      LocalDate end = this._start.plusDays (this._days);
+      LocalDate next = birth.plusYears (18).plusDays (random.nextInt (365));
+      int degrees = weighted (random, 15, 45, 30, 10);
+      for (int level = 0; level < degrees && next.isBefore (end); ++level) {
+         LocalDate finish = next.plusYears (DEGREE_YEARS[level]);
+         chunk.education.append (userId).append (',').append (pick (INSTITUTIONS, random))
+            .append (',').append (pick (MAJORS, random)).append (',').append (DEGREES[level])
+            .append (',').append (next).append (',');
+         if (finish.isBefore (end))
+            chunk.education.append (finish);
+         chunk.education.append ('\n');
+         next = finish.plusDays (30 + random.nextInt (120));
+      }//end for
+      int jobs = weighted (random, 10, 30, 30, 20, 10);
+      for (int i = 0; i < jobs && next.isBefore (end); ++i) {
+         LocalDate finish = next.plusDays (180 + random.nextInt (6 * 365));
+         boolean current = i == jobs - 1 && random.nextInt (10) < 6;
+         chunk.work.append (userId).append (',').append (quote (pick (COMPANIES, random)))
+            .append (',').append (pick (ROLES, random)).append (',').append (quote (pick (LOCATIONS, random)))
+            .append (',').append (next).append (',');
+         if (!current && finish.isBefore (end))
+            chunk.work.append (finish);
+         chunk.work.append ('\n');
+         next = finish.plusDays (random.nextInt (90));
+      }//end for
+   }//end histories
+
+   /*
+    * Writes the connections of a user to users of higher ranks, and the
+    * messages of the accepted ones.  Weights fall with the rank, so the
+    * pair probability only falls as v grows: skip ahead geometrically with
+    * the probability p at the last pair, then accept with q/p.
+    */
+   private void connections (Chunk chunk, int u, String userId, SplittableRandom random) {
+      double wu = weight (u);
+      int v = u + 1;
+      double p = v < this._users ? Math.min (wu * weight (v) / this._totalWeight, 1.0) : 0.0;
+      while (v < this._users && p > 0) {
+         if (p < 1.0) {
+            double skip = Math.floor (Math.log (1.0 - random.nextDouble ()) / Math.log1p (-p));
+            if (skip >= this._users - v)
+               break;
+            v += (int) skip;
+         }//end if
+         double q = Math.min (wu * weight (v) / this._totalWeight, 1.0);
+         if (random.nextDouble () < q / p)
+            connection (chunk, userId, userId (v), random);
+         p = q;
+         ++v;
+      }//end while
+   }//end connections
+
+   private void connection (Chunk chunk, String a, String b, SplittableRandom random) {
+      boolean aAsked = random.nextBoolean ();
+      double status = random.nextDouble ();
+      chunk.connections.append (aAsked ? a : b).append (',').append (aAsked ? b : a).append (',')
+         .append (status < this._pending ? ConnectionStatus.PENDING
+                  : status < this._pending + REJECTED ? ConnectionStatus.REJECTED : ConnectionStatus.ACCEPTED)
+         .append ('\n');
+      if (status >= this._pending + REJECTED)
+         messages (chunk.messages, a, b, random);
+   }//end connection
+
+   /*
+    * Writes the messages of one conversation.  They start around a day
+    * drawn from the growth of the network and follow each other at
+    * exponential gaps of about a week.
+    */
+   private void messages (StringBuilder out, String a, String b, SplittableRandom random) {
+      double pareto = this._pairScale / Math.pow (1.0 - random.nextDouble (), 1.0 / PAIR_ALPHA);
+      int count = (int) Math.min (Math.floor (pareto), MAX_PAIR_MESSAGES);
+      if (count == 0)
+         return;
+      double aWrites = random.nextDouble ();
+      double day = day (random);
+      for (int i = 0; i < count; ++i) {
+         if (day >= this._days)
+            day = day (random);
+         boolean fromA = random.nextDouble () < aWrites;
+         LocalDate date = this._start.plusDays ((long) day);
+         int age = this._days - (int) day;
+         out.append (fromA ? a : b).append (',').append (fromA ? b : a).append (',');
+         text (out, random);
+         out.append (',').append (date).append (' ');
+         time (out, random);
+         out.append (',').append (deleteStatus (random)).append (',')
+            .append (age > 7 || random.nextBoolean () ? MessageStatus.READ : MessageStatus.DELIVERED)
+            .append ('\n');
+         day += -7.0 * Math.log (1.0 - random.nextDouble ());
+      }//end for
+   }//end messages
+
+   /*
+    * A day of the window, denser towards its end (linear growth), weekend
+    * days a third less likely.
+    */
+   private double day (SplittableRandom random) {
+      while (true) {
+         double day = this._days * Math.sqrt (random.nextDouble ());
+         DayOfWeek weekday = this._start.plusDays ((long) day).getDayOfWeek ();
+         if ((weekday != DayOfWeek.SATURDAY && weekday != DayOfWeek.SUNDAY) || random.nextInt (3) != 0)
+            return day;
+      }//end while
+   }//end day
+
+   private static void time (StringBuilder out, SplittableRandom random) {
+      int hour = weighted (random, HOUR_WEIGHTS);
+      int minute = random.nextInt (60);
+      int second = random.nextInt (60);
+      out.append (hour < 10 ? "0" : "").append (hour).append (minute < 10 ? ":0" : ":").append (minute)
+         .append (second < 10 ? ":0" : ":").append (second);
+   }//end time
+
+   /*
+    * Mostly visible to both, sometimes deleted by the sender (1), the
+    * receiver (2) or both (3).
+    */
+   private static int deleteStatus (SplittableRandom random) {
+      int r = random.nextInt (100);
+      return r < 90 ? 0 : r < 94 ? 1 : r < 98 ? 2 : 3;
+   }//end deleteStatus
+
+   private static void text (StringBuilder out, SplittableRandom random) {
+      int words = 3 + random.nextInt (18);
+      for (int i = 0; i < words; ++i) {
+         String word = pick (WORDS, random);
+         if (i == 0)
+            out.append (Character.toUpperCase (word.charAt (0))).append (word, 1, word.length ());
+         else
+            out.append (' ').append (word);
+      }//end for
+      out.append (random.nextInt (4) == 0 ? '!' : '.');
+   }//end text
+
+   /*
+    * Expected degree of a rank: scale * (rank + 1)^-beta, capped.
+    */
+   double weight (int rank) {
+      return Math.min (this._scale * Math.pow (rank + 1, -this._beta), this._maxDegree);
+   }//end weight
+
+   /*
+    * Finds the scale giving the mean degree asked for.  The cap lowers
+    * the mean, so the scale is corrected until it stops moving.
+    */
+   private void fitWeights (double degree) {
+      // sum of (r+1)^-beta is about n^(1-beta)/(1-beta) for beta < 1.
+      this._scale = degree * Math.max (1.0 - this._beta, 0.05) * Math.pow (this._users, this._beta);
+      for (int i = 0; i < 8; ++i) {
+         double total = 0.0;
+         for (int rank = 0; rank < this._users; ++rank)
+            total += weight (rank);
+         this._totalWeight = total;
+         double correction = degree * this._users / total;
+         if (Math.abs (correction - 1.0) < 1e-3)
+            break;
+         this._scale *= correction;
+      }//end for
+   }//end fitWeights
+
+   /*
+    * Splits the ranks into chunks of about CHUNK_ROWS expected rows.  Low
+    * ranks, the hubs, get chunks of their own.
+    */
+   private void planChunks (double pairMean) {
+      double accepted = 1.0 - this._pending - REJECTED;
+      int[] starts = new int[16];
+      int count = 0;
+      double rows = 0.0;
+      for (int rank = 0; rank < this._users; ++rank) {
+         if (rank == 0 || rows >= CHUNK_ROWS) {
+            if (count == starts.length)
+               starts = Arrays.copyOf (starts, count * 2);
+            starts[count++] = rank;
+            rows = 0.0;
+         }//end if
+         // the user and its histories, then half its connections with
+         // their messages (the other half belongs to lower ranks).
+         rows += 5.0 + weight (rank) / 2.0 * (1.0 + accepted * pairMean);
+      }//end for
+      this._chunks = Arrays.copyOf (starts, count + 1);
+      this._chunks[count] = this._users;
+   }//end planChunks
+
+   /*
+    * The id of the user of a rank.  Ranks are spread over the ids by
+    * multiplying with a stride prime to the number of users and adding
+    * an offset, a bijection.
+    */
+   String userId (int rank) {
+      long index = (rank * this._stride + this._stride / 2) % this._users;
+      String digits = Long.toString (index);
+      StringBuilder id = new StringBuilder (9).append ('u');
+      for (int i = digits.length (); i < 8; ++i)
+         id.append ('0');
+      return id.append (digits).toString ();
+   }//end userId
+
+   private static long strideFor (int users) {
+      // near n / golden ratio, so that consecutive ranks land far apart.
+      long stride = (long) (users * 0.6180339887) | 1L;
+      while (gcd (stride, users) != 1)
+         stride += 2;
+      return stride;
+   }//end strideFor
+
+   private static long gcd (long a, long b) {
+      return b == 0 ? a : gcd (b, a % b);
+   }//end gcd
+
+   /*
+    * A random stream of a user, from the seed, the rank and the kind of
+    * data, independent of which thread generates the user.  The seed is
+    * mixed before the rank is added, so that nearby seeds do not give
+    * the streams of neighbouring users.
+    */
+   private SplittableRandom random (int rank, int stream) {
+      return new SplittableRandom (mix (mix (this._seed) ^ (rank * 4L + stream)));
+   }//end random
+
+   // finalizer of MurmurHash3.
+   private static long mix (long z) {
+      z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+      z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+      return z ^ (z >>> 33);
+   }//end mix
+
+   private static String pick (String[] values, SplittableRandom random) {
+      return values[random.nextInt (values.length)];
+   }//end pick
+
+   /*
+    * Draws an index with probability proportional to its weight.
+    */
+   private static int weighted (SplittableRandom random, int... weights) {
+      int total = 0;
+      for (int weight : weights)
+         total += weight;
+      int r = random.nextInt (total);
+      for (int i = 0; i < weights.length; ++i) {
+         r -= weights[i];
+         if (r < 0)
+            return i;
+      }//end for
+      return weights.length - 1;
+   }//end weighted
+
+   private static String quote (String value) {
+      return value.indexOf (',') < 0 ? value : '"' + value + '"';
+   }//end quote
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 1) {
+         System.err.println ("Usage: java DatasetGenerator <out dir> [--users n] [--degree d] [--max-degree d] "
+                             + "[--exponent g] [--messages m] [--pending f] [--start yyyy-mm-dd] [--months m] "
+                             + "[--seed s] [--threads t] [--header]");
+         return;
+      }//end if
+      int users = 100000;
+      double degree = 20.0;
+      int maxDegree = 5000;
+      double exponent = 2.5;
+      double messages = 30.0;
+      double pending = 0.15;
+      LocalDate start = LocalDate.of (2024, 1, 1);
+      int months = 24;
+      long seed = 1L;
+      int threads = Runtime.getRuntime ().availableProcessors ();
+      boolean header = false;
+      for (int i = 1; i < args.length; ++i) {
+         if (args[i].equals ("--header"))
+            header = true;
+         else if (i + 1 == args.length)
+            throw new IllegalArgumentException ("Missing value of " + args[i]);
+         else if (args[i].equals ("--users"))
+            users = Integer.parseInt (args[++i]);
+         else if (args[i].equals ("--degree"))
+            degree = Double.parseDouble (args[++i]);
+         else if (args[i].equals ("--max-degree"))
+            maxDegree = Integer.parseInt (args[++i]);
+         else if (args[i].equals ("--exponent"))
+            exponent = Double.parseDouble (args[++i]);
+         else if (args[i].equals ("--messages"))
+            messages = Double.parseDouble (args[++i]);
+         else if (args[i].equals ("--pending"))
+            pending = Double.parseDouble (args[++i]);
+         else if (args[i].equals ("--start"))
+            start = LocalDate.parse (args[++i]);
+         else if (args[i].equals ("--months"))
+            months = Integer.parseInt (args[++i]);
+         else if (args[i].equals ("--seed"))
+            seed = Long.parseLong (args[++i]);
+         else if (args[i].equals ("--threads"))
+            threads = Integer.parseInt (args[++i]);
+         else
+            throw new IllegalArgumentException ("Unknown option " + args[i]);
+      }//end for
+      if (users < 2 || users > 100000000 || exponent <= 2.0 || pending < 0 || pending + REJECTED > 1.0)
+         throw new IllegalArgumentException ("Need 2 to 100000000 users, an exponent above 2 and a pending share below "
+                                             + (1.0 - REJECTED));
+      new DatasetGenerator (users, degree, maxDegree, exponent, messages, pending, start, months, seed)
+         .generate (new File (args[0]), Math.max (1, threads), header);
+   }//end main
+}//end DatasetGenerator
@@ -0,0 +1,82 @@
+import java.util.List;
+
+/**
+ * Measures the friend list query for growing numbers of friends and reports
+ * the number of database round trips (statements run, as counted by the
+ * query metrics, plus the validation queries of the pool) and the time
+ * needed to read every page.  The round trips per page must
+ * stay constant as the friend count grows.
+ *
+ * The benchmark creates its own users, prefixed with "fb_", and removes
+ * them when done.
+ *
+ * Build and run, from the java directory:
+ *
+ *    javac -cp lib/pg73jdbc3.jar -d classes src/*.java bench/FriendListBenchmark.java
+ *    java -cp classes:lib/pg73jdbc3.jar FriendListBenchmark $DB_NAME $PGPORT $USER
+ *
+ */
+public class FriendListBenchmark {
+
+   private static final String OWNER = "fb_owner";
+   private static final int[] SIZES = { 10, 100, 1000, 10000 };
+
+   public static void main (String[] args) throws Exception {
+      if (args.length != 3) {
+         System.err.println ("Usage: java FriendListBenchmark <dbname> <port> <user>");
+         return;
+      }//end if
+      Class.forName ("org.postgresql.Driver");
+      ProfNetwork esql = new ProfNetwork (args[0], args[1], args[2], "");
+      try {
+         cleanup (esql);
+         esql.executeUpdate ("INSERT INTO USR (userId, password, email, name) VALUES (?,?,?,?)",
+                             OWNER, "x", "owner@bench", "owner");
+         int seeded = 0;
+         System.out.println ("friends\tpages\troundTrips\troundTrips/page\tms");
+         for (int size : SIZES) {
+            for (; seeded < size; ++seeded) {
+               String friend = String.format ("fb_%06d", seeded);
+               esql.executeUpdate ("INSERT INTO USR (userId, password, email, name) VALUES (?,?,?,?)",
+                                   friend, "x", friend + "@bench", friend);
+               esql.executeUpdate ("INSERT INTO CONNECTION_USR (userId, connectionId, status) VALUES (?,?,?)",
+                                   OWNER, friend, ConnectionStatus.ACCEPTED);
+            }//end for
+            run (esql, size);
+         }//end for
+      }finally{
+         cleanup (esql);
+         esql.cleanup ();
+      }//end try
+   }//end main
+
+   /*
+    * Reads every page of the owner's friends and prints the round trips.
+    */
+   private static void run (ProfNetwork esql, int size) throws Exception {
+      long queriesBefore = esql.getMetrics ().getQueryCount () + esql.getPool ().getValidationCount ();
+      long start = System.nanoTime ();
+      int pages = 0;
+      int friends = 0;
+      String last = null;
+      while (true) {
+         List<User> page = esql.findFriends (OWNER, last, ProfNetwork.PAGE_SIZE);
+         ++pages;
+         friends += page.size ();
+         if (page.size () < ProfNetwork.PAGE_SIZE)
+            break;
+         last = page.get (page.size () - 1).userId;
+      }//end while
+      long elapsed = System.nanoTime () - start;
+      long roundTrips = esql.getMetrics ().getQueryCount () + esql.getPool ().getValidationCount () - queriesBefore;
+      if (friends != size)
+         throw new IllegalStateException ("expected " + size + " friends, read " + friends);
+      System.out.printf ("%d\t%d\t%d\t%.2f\t%.1f%n", size, pages, roundTrips,
+                         (double) roundTrips / pages, elapsed / 1e6);
+   }//end run
+
+   private static void cleanup (ProfNetwork esql) throws Exception {
+      esql.executeUpdate ("DELETE FROM CONNECTION_USR WHERE userId = ?", OWNER);
+      esql.executeUpdate ("DELETE FROM USR WHERE userId LIKE ? ESCAPE '!'", "fb!_%");
+   }//end cleanup
+}//end FriendListBenchmark
@@ -0,0 +1,459 @@
+import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test driver.  Simulated users connect to a running SessionServer,
+ * each over its own TCP session, and play a script of menu input with a
+ * think time between operations.  At the end the driver reports, for each
+ * menu operation, the throughput, the 50th, 99th and 99.9th percentile
+ * latency and the sessions that failed during it.  An operation the server
+ * reports an error for but whose menu comes back counts as completed: the
+ * driver cannot tell error output from other output.
+ *
+ *    java -cp classes SessionServer ... 7000     (elsewhere)
+ *    java -cp classes LoadDriver localhost 7000 users.csv [options] [script]
+ *
+ * users.csv is in the BulkLoader format (userId,password,...); simulated
+ * user i logs in as its i-th row and writes to, or looks up, the next row.
+ * Options:
+ *
+ *    --users n        simulated users at once (default 10)
+ *    --iterations n   sessions each user plays the script in (default 1)
+ *    --duration s     or: play sessions again until s seconds have passed
+ *    --think ms       mean think time between operations (default 1000)
+ *    --ramp ms        time over which the users start (default 0)
+ *    --timeout ms     longest wait for a prompt (default 30000)
+ *    --header         users.csv starts with a header line
+ *
+ * A script has one line of input per line; lines starting with # are
+ * comments and a leading backslash escapes the next character.  The
+ * placeholders {user}, {password}, {other} and {n} (the session number of
+ * the user) are replaced before sending.  SessionServer records scripts
+ * of real sessions with -Dprofnetwork.server.recordDir.  Without a script
+ * the driver plays one of its own: log in, send a message, view the sent
+ * messages, search a person, change the email and log out.
+ *
+ * The driver reacts to the prompts it reads rather than to a fixed timing.
+ * An operation starts when a choice is typed at the main or the user menu
+ * and ends when that menu comes back.  Questions asking for y or n are
+ * answered n unless the script has y or n next, so scripts stay valid
+ * whatever number of pages or messages a user has.
+ *
+ */
+public class LoadDriver {
+
+   private static final String MENU_PROMPT = "Please make your choice: ";
+   private static final String MAIN_MENU_END = "9. < EXIT\n";
+   private static final String USER_MENU_END = "9. Log out\n";
+
+   private static final String[] DEFAULT_SCRIPT = {
+      "2", "{user}", "{password}",
+      "3", "{other}", "load test message {n} from {user}",
+      "6",
+      "5", "{other}", "9",
+      "2", "2", "{user}.{n}@load.test",
+      "9",
+      "9"
+   };
+
+   /**
+    * The latencies of one operation.
+    */
+   static class OpStats {
+      private long[] _nanos = new long[1024];
+      private int _count = 0;
+      private final AtomicLong _failures = new AtomicLong ();
+
+      synchronized void add (long nanos) {
+         if (this._count == this._nanos.length)
+            this._nanos = Arrays.copyOf (this._nanos, this._count * 2);
+         this._nanos[this._count++] = nanos;
+      }
+
+      void failure () {
+         this._failures.incrementAndGet ();
+      }
+
+      synchronized long[] sorted () {
+         long[] sorted = Arrays.copyOf (this._nanos, this._count);
+         Arrays.sort (sorted);
+         return sorted;
+      }
+   }//end OpStats
+
+   /**
+    * The end of a session: the operation it was in, and why.
+    */
+   static class SessionFailed extends Exception {
+      private static final long serialVersionUID = 1L;
+
+      SessionFailed (String message) {
+         super (message);
+      }
+   }//end SessionFailed
+
+   private final String _host;
+   private final int _port;
+   private final List<String[]> _accounts;
+   private final List<String> _script;
+   private final long _thinkMillis;
+   private final int _timeoutMillis;
+   private final Map<String, OpStats> _stats = new ConcurrentHashMap<String, OpStats>();
+   private final AtomicLong _sessions = new AtomicLong ();
+   private final AtomicLong _failedSessions = new AtomicLong ();
+
+   /**
+    * Creates a new instance of LoadDriver
+    *
+    * @param host the host of the SessionServer
+    * @param port its port
+    * @param accounts userId and password of the users, by row
+    * @param script the input of one session
+    * @param thinkMillis the mean think time between operations
+    * @param timeoutMillis the longest wait for a prompt
+    */
+   public LoadDriver (String host, int port, List<String[]> accounts, List<String> script,
+                      long thinkMillis, int timeoutMillis) {
+      this._host = host;
+      this._port = port;
+      this._accounts = accounts;
+      this._script = script;
+      this._thinkMillis = thinkMillis;
+      this._timeoutMillis = timeoutMillis;
+   }//end LoadDriver
+
+   /**
+    * Runs the simulated users and waits for them.
+    *
+    * @param users the number of simulated users
+    * @param iterations the sessions per user, when no duration is given
+    * @param durationMillis how long users start new sessions, 0 to count
+    *        iterations instead
+    * @param rampMillis the time over which the users start
+    * @return the time the run took, in nanoseconds
+    * @throws java.lang.InterruptedException when interrupted while waiting
+    */
+   public long run (int users, final int iterations, long durationMillis, long rampMillis) throws InterruptedException {
+      final CountDownLatch done = new CountDownLatch (users);
+      final long start = System.nanoTime ();
+      final long deadline = durationMillis > 0 ? start + durationMillis * 1000000L : Long.MAX_VALUE;
+      for (int i = 0; i < users; ++i) {
+         final int user = i;
+         final long delay = users > 1 ? rampMillis * i / (users - 1) : 0;
+         Thread thread = new Thread (new Runnable () {
+            public void run () {
+               try {
+                  Thread.sleep (delay);
+                  Random random = new Random (user);
+                  for (int n = 1; deadline == Long.MAX_VALUE ? n <= iterations : System.nanoTime () < deadline; ++n)
+                     session (user, n, random);
+               }catch (InterruptedException e) {
+                  // stopped.
+               }finally{
+                  done.countDown ();
+               }//end try
+            }
+         }, "user-" + i);
+         thread.setDaemon (true);
+         thread.start ();
+      }//end for
+      done.await ();
+      return System.nanoTime () - start;
+   }//end run
+
+   /**
+    * Prints the statistics of every operation.
+    *
+    * @param elapsedNanos the length of the run
+    */
+   public void report (long elapsedNanos) {
+      double seconds = elapsedNanos / 1e9;
+      System.out.println ("sessions=" + this._sessions.get () + " failed=" + this._failedSessions.get ()
+                          + String.format (" elapsed=%.1fs", seconds));
+      System.out.println ("operation\tcount\tsession failures\tops/s\tp50 ms\tp99 ms\tp999 ms\tmax ms");
+      long total = 0;
+      for (Map.Entry<String, OpStats> entry : new TreeMap<String, OpStats>(this._stats).entrySet ()) {
+         long[] sorted = entry.getValue ().sorted ();
+         total += sorted.length;
+         System.out.println (entry.getKey () + "\t" + sorted.length + "\t" + entry.getValue ()._failures.get ()
+                             + String.format ("\t%.1f\t%.2f\t%.2f\t%.2f\t%.2f", sorted.length / seconds,
+                                              percentile (sorted, 0.50), percentile (sorted, 0.99),
+                                              percentile (sorted, 0.999),
+                                              sorted.length == 0 ? 0.0 : sorted[sorted.length - 1] / 1e6));
+      }//end for
+      System.out.println (String.format ("total\t%d\t\t%.1f", total, total / seconds));
+   }//end report
+
+   /*
+    * Nearest rank percentile, in milliseconds.
+    */
+   private static double percentile (long[] sorted, double p) {
+      if (sorted.length == 0)
+         return 0.0;
+      int rank = (int) Math.ceil (p * sorted.length);
+      return sorted[Math.max (rank, 1) - 1] / 1e6;
+   }//end percentile
+
+   /*
+    * Plays the script once over a new connection.
+    */
+   private void session (int user, int n, Random random) throws InterruptedException {
+      this._sessions.incrementAndGet ();
+      String[] account = this._accounts.get (user % this._accounts.size ());
+      String[] other = this._accounts.get ((user + 1) % this._accounts.size ());
+      String op = null;
+      long opStart = 0;
+      Socket socket = null;
+      try {
+         socket = new Socket (this._host, this._port);
+         socket.setSoTimeout (this._timeoutMillis);
+         socket.setTcpNoDelay (true);
+         InputStream in = new BufferedInputStream (socket.getInputStream ());
+         OutputStream out = socket.getOutputStream ();
+         int next = 0;
+         String output = awaitPrompt (in);
+         while (true) {
+            if (output == null) {
+               // the server closed the session, as it does after EXIT.
+               if (op != null && !op.equals ("Exit"))
+                  throw new SessionFailed ("connection closed during " + op);
+               if (op != null)
+                  stats (op).add (System.nanoTime () - opStart);
+               break;
+            }//end if
+            String line;
+            boolean mainMenu = output.endsWith (MAIN_MENU_END + MENU_PROMPT);
+            if (mainMenu || output.endsWith (USER_MENU_END + MENU_PROMPT)) {
+               if (op != null) {
+                  stats (op).add (System.nanoTime () - opStart);
+                  op = null;
+               }//end if
+               // answers to questions the server did not ask this time.
+               while (next < this._script.size () && isYesNo (this._script.get (next)))
+                  ++next;
+               if (next == this._script.size ())
+                  break;
+               if (opStart != 0)
+                  think (random);
+               line = expand (this._script.get (next++), account, other, n);
+               op = operation (mainMenu, line);
+               opStart = System.nanoTime ();
+            }else if (isYesNoPrompt (output)) {
+               line = next < this._script.size () && isYesNo (this._script.get (next))
+                  ? this._script.get (next++) : "n";
+            }else{
+               while (next < this._script.size () && isYesNo (this._script.get (next)))
+                  ++next;
+               if (next == this._script.size ())
+                  throw new SessionFailed ("script ended in " + op + " at: " + lastLine (output));
+               line = expand (this._script.get (next++), account, other, n);
+            }//end if
+            out.write ((line + "\r\n").getBytes (StandardCharsets.UTF_8));
+            out.flush ();
+            output = awaitPrompt (in);
+         }//end while
+      }catch (SessionFailed e) {
+         fail (op, e.getMessage ());
+      }catch (SocketTimeoutException e) {
+         fail (op, "no prompt within " + this._timeoutMillis + "ms during " + op);
+      }catch (IOException e) {
+         fail (op, e.getMessage ());
+      }finally{
+         if (socket != null) {
+            try {
+               socket.close ();
+            }catch (IOException e) {
+               // ignored.
+            }//end try
+         }//end if
+      }//end try
+   }//end session
+
+   private void fail (String op, String message) {
+      this._failedSessions.incrementAndGet ();
+      stats (op == null ? "(session)" : op).failure ();
+      System.err.println (Thread.currentThread ().getName () + ": " + message);
+   }//end fail
+
+   private OpStats stats (String op) {
+      OpStats stats = this._stats.get (op);
+      if (stats == null) {
+         OpStats created = new OpStats ();
+         stats = this._stats.putIfAbsent (op, created);
+         if (stats == null)
+            stats = created;
+      }//end if
+      return stats;
+   }//end stats
+
+   /*
+    * Sleeps for a think time uniformly drawn around the mean.
+    */
+   private void think (Random random) throws InterruptedException {
+      if (this._thinkMillis > 0)
+         Thread.sleep (this._thinkMillis / 2 + (long) (random.nextDouble () * this._thinkMillis));
+   }//end think
+
+   /*
+    * Reads the output of the server up to the next prompt: text after the
+    * last line break ending with ": " or "?", with nothing more to read.
+    * The server flushes its output only when it waits for input, so a
+    * prompt is always the end of a flush.
+    *
+    * @return the output, line breaks as \n, or null when the server
+    *         closed the connection
+    */
+   private static String awaitPrompt (InputStream in) throws IOException {
+      StringBuilder output = new StringBuilder ();
+      byte[] buffer = new byte[8192];
+      while (true) {
+         int read = in.read (buffer);
+         if (read < 0)
+            return null;
+         for (int i = 0; i < read; ++i)
+            if (buffer[i] != '\r')
+               output.append ((char) (buffer[i] & 0xff));
+         if (in.available () > 0)
+            continue;
+         String last = lastLine (output);
+         if (last.endsWith (": ") || last.endsWith ("?"))
+            return output.toString ();
+      }//end while
+   }//end awaitPrompt
+
+   private static String lastLine (CharSequence output) {
+      String text = output.toString ();
+      return text.substring (text.lastIndexOf ('\n') + 1);
+   }//end lastLine
+
+   private static boolean isYesNoPrompt (String output) {
+      String last = lastLine (output);
+      return last.contains ("y/n") || last.startsWith ("Enter y or n") || last.endsWith ("?");
+   }//end isYesNoPrompt
+
+   private static boolean isYesNo (String line) {
+      return line.equalsIgnoreCase ("y") || line.equalsIgnoreCase ("n");
+   }//end isYesNo
+
+   /*
+    * The name of the operation a menu choice starts, as in the query
+    * metrics of the server.
+    */
+   private static String operation (boolean mainMenu, String choice) {
+      int number;
+      try {
+         number = Integer.parseInt (choice.trim ());
+      }catch (NumberFormatException e) {
+         return "Invalid";
+      }//end try
+      if (mainMenu)
+         return number == 1 ? "CreateUser" : number == 2 ? "LogIn" : number == 9 ? "Exit" : "Invalid";
+      if (number == 9)
+         return "LogOut";
+      if (number >= 1 && number < ProfNetwork.USER_OPERATIONS.length && ProfNetwork.USER_OPERATIONS[number] != null)
+         return ProfNetwork.USER_OPERATIONS[number];
+      return "Invalid";
+   }//end operation
+
+   private static String expand (String line, String[] account, String[] other, int n) {
+      return line.replace ("{user}", account[0]).replace ("{password}", account[1])
+                 .replace ("{other}", other[0]).replace ("{n}", String.valueOf (n));
+   }//end expand
+
+   /*
+    * Reads a script: comments dropped, escapes removed.
+    */
+   static List<String> readScript (String file) throws IOException {
+      List<String> script = new ArrayList<String>();
+      BufferedReader reader = new BufferedReader (new FileReader (file));
+      try {
+         String line;
+         while ((line = reader.readLine ()) != null) {
+            if (line.startsWith ("#"))
+               continue;
+            script.add (line.startsWith ("\\") ? line.substring (1) : line);
+         }//end while
+      }finally{
+         reader.close ();
+      }//end try
+      return script;
+   }//end readScript
+
+   /*
+    * Reads userId and password, the first two fields, of every user.
+    */
+   static List<String[]> readAccounts (String file, boolean header) throws IOException {
+      List<String[]> accounts = new ArrayList<String[]>();
+      BufferedReader in = new BufferedReader (new FileReader (file));
+      try {
+         BulkLoader.CsvReader reader = new BulkLoader.CsvReader (in);
+         String[] fields;
+         if (header)
+            reader.next ();
+         while ((fields = reader.next ()) != null)
+            if (fields.length >= 2)
+               accounts.add (new String[] { fields[0].trim (), fields[1].trim () });
+      }finally{
+         in.close ();
+      }//end try
+      return accounts;
+   }//end readAccounts
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println ("Usage: java LoadDriver <host> <port> <users.csv> [--users n] [--iterations n] "
+                             + "[--duration s] [--think ms] [--ramp ms] [--timeout ms] [--header] [script]");
+         return;
+      }//end if
+      int users = 10;
+      int iterations = 1;
+      long durationMillis = 0;
+      long thinkMillis = 1000;
+      long rampMillis = 0;
+      int timeoutMillis = 30000;
+      boolean header = false;
+      List<String> script = Arrays.asList (DEFAULT_SCRIPT);
+      for (int i = 3; i < args.length; ++i) {
+         if (args[i].equals ("--users"))
+            users = Integer.parseInt (args[++i]);
+         else if (args[i].equals ("--iterations"))
+            iterations = Integer.parseInt (args[++i]);
+         else if (args[i].equals ("--duration"))
+            durationMillis = Long.parseLong (args[++i]) * 1000L;
+         else if (args[i].equals ("--think"))
+            thinkMillis = Long.parseLong (args[++i]);
+         else if (args[i].equals ("--ramp"))
+            rampMillis = Long.parseLong (args[++i]);
+         else if (args[i].equals ("--timeout"))
+            timeoutMillis = Integer.parseInt (args[++i]);
+         else if (args[i].equals ("--header"))
+            header = true;
+         else
+            script = readScript (args[i]);
+      }//end for
+      List<String[]> accounts = readAccounts (args[2], header);
+      if (accounts.size () < 2) {
+         System.err.println ("Need at least two users in " + args[2]);
+         return;
+      }//end if
+      LoadDriver driver = new LoadDriver (args[0], Integer.parseInt (args[1]), accounts, script,
+                                          thinkMillis, timeoutMillis);
+      driver.report (driver.run (users, iterations, durationMillis, rampMillis));
+   }//end main
+}//end LoadDriver
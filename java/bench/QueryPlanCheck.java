@@ -0,0 +1,250 @@
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Query plan regression check.  Runs EXPLAIN (ANALYZE, BUFFERS) for each
+ * query the application issues, with parameters taken from the loaded
+ * dataset, and fails when
+ *
+ *  - a plan contains a sequential scan (except for the queries that read a
+ *    whole table on purpose), or
+ *  - the estimated cost or the measured latency regressed past the
+ *    baseline recorded earlier with --record.
+ *
+ * Statements that modify data are explained inside a transaction that is
+ * rolled back.  Run it against a dataset of realistic size: on a handful of
+ * rows the planner rightly prefers sequential scans.
+ *
+ *    java -cp classes:lib/pg73jdbc3.jar QueryPlanCheck $DB_NAME $PGPORT $USER [--record] [baseline file]
+ *
+ */
+public class QueryPlanCheck {
+
+   private static final String DEFAULT_BASELINE = "query_plans.properties";
+
+   // a plan fails when its cost grows past baseline * COST_TOLERANCE...
+   private static final double COST_TOLERANCE = 1.5;
+
+   // ...or its latency past baseline * LATENCY_TOLERANCE + LATENCY_SLACK_MS.
+   private static final double LATENCY_TOLERANCE = 2.0;
+   private static final double LATENCY_SLACK_MS = 1.0;
+
+   // latency is the median of this many runs.
+   private static final int RUNS = 5;
+
+   private static final Pattern SEQ_SCAN = Pattern.compile ("Seq Scan on (\\w+)");
+   private static final Pattern COST = Pattern.compile ("cost=[0-9.]+\\.\\.([0-9.]+)");
+   private static final Pattern TIME = Pattern.compile ("(?:Execution Time|Total runtime): ([0-9.]+) ms");
+
+   /**
+    * An application query with sample parameters.
+    */
+   private static class Query {
+      final String name;
+      final String sql;
+      final Object[] params;
+      final boolean fullScan;
+
+      Query (String name, String sql, boolean fullScan, Object... params) {
+         this.name = name;
+         this.sql = sql;
+         this.fullScan = fullScan;
+         this.params = params;
+      }
+   }//end Query
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println ("Usage: java QueryPlanCheck <dbname> <port> <user> [--record] [baseline file]");
+         return;
+      }//end if
+      boolean record = false;
+      String baselineFile = DEFAULT_BASELINE;
+      for (int i = 3; i < args.length; ++i) {
+         if (args[i].equals ("--record"))
+            record = true;
+         else
+            baselineFile = args[i];
+      }//end for
+
+      Class.forName ("org.postgresql.Driver");
+      ProfNetwork esql = new ProfNetwork (args[0], args[1], args[2], "");
+      int failures = 0;
+      try {
+         Properties baseline = load (baselineFile);
+         Properties measured = new Properties ();
+         for (Query query : queries (esql)) {
+            failures += check (esql, query, baseline, measured, record);
+         }//end for
+         if (record) {
+            save (measured, baselineFile);
+            System.out.println ("Baseline recorded in " + baselineFile);
+         }//end if
+      }finally{
+         esql.cleanup ();
+      }//end try
+      if (failures > 0) {
+         System.out.println (failures + " plan regression(s)");
+         System.exit (1);
+      }//end if
+      System.out.println ("All plans OK");
+   }//end main
+
+   /*
+    * The queries of ProfNetwork and MessageWriter, taken from their SQL
+    * constants so a change there is checked, with parameters picked from
+    * the data: the most active sender and one of their connections.
+    */
+   private static List<Query> queries (ProfNetwork esql) throws SQLException {
+      List<List<String>> sample = esql.executeQueryAndReturnResult (
+         "SELECT senderId, receiverId FROM MESSAGE GROUP BY senderId, receiverId ORDER BY COUNT(*) DESC LIMIT 1");
+      if (sample.isEmpty ())
+         throw new SQLException ("MESSAGE is empty, load a dataset first");
+      String user = ProfNetwork.trimmed (sample.get (0).get (0));
+      String other = ProfNetwork.trimmed (sample.get (0).get (1));
+      Timestamp now = new Timestamp (System.currentTimeMillis ());
+      int page = ProfNetwork.PAGE_SIZE;
+      String sentPage = "SELECT " + Message.COLUMNS + " " + ProfNetwork.SENT_VISIBLE;
+      String inboxPage = "SELECT " + Message.COLUMNS + " " + ProfNetwork.INBOX_VISIBLE;
+
+      List<Query> queries = new ArrayList<Query>();
+      queries.add (new Query ("login", ProfNetwork.existsQuery (ProfNetwork.LOGIN_MATCHES), false, user, "x"));
+      queries.add (new Query ("user_exists", ProfNetwork.existsQuery (ProfNetwork.USER_EXISTS), false, other));
+      queries.add (new Query ("user_by_id", ProfNetwork.USER_BY_ID, false, user));
+      queries.add (new Query ("work_by_user", ProfNetwork.WORK_BY_USER, false, user));
+      queries.add (new Query ("education_by_user", ProfNetwork.EDUCATION_BY_USER, false, user));
+      java.sql.Date today = new java.sql.Date (now.getTime ());
+      queries.add (new Query ("update_work", ProfNetwork.UPDATE_WORK, false, "x", "x", "x", today, today, 1, 0, user));
+      queries.add (new Query ("update_education", ProfNetwork.UPDATE_EDUCATION, false, "x", "x", "x", today, today, 1, 0, user));
+      queries.add (new Query ("sent_first_page", sentPage + ProfNetwork.PAGE_ORDER, false, user, page));
+      queries.add (new Query ("sent_next_page", sentPage + ProfNetwork.PAGE_AFTER + ProfNetwork.PAGE_ORDER, false, user, now, Integer.MAX_VALUE, page));
+      queries.add (new Query ("inbox_first_page", inboxPage + ProfNetwork.PAGE_ORDER, false, other, page));
+      queries.add (new Query ("inbox_next_page", inboxPage + ProfNetwork.PAGE_AFTER + ProfNetwork.PAGE_ORDER, false, other, now, Integer.MAX_VALUE, page));
+      queries.add (new Query ("delete_sent", ProfNetwork.DELETE_SENT, false, Message.DELETED_BY_SENDER, 1, user));
+      queries.add (new Query ("delete_received", ProfNetwork.DELETE_RECEIVED, false, Message.DELETED_BY_RECEIVER, 1, other));
+      queries.add (new Query ("export_sent", ProfNetwork.exportQuery (true), false, user));
+      queries.add (new Query ("export_inbox", ProfNetwork.exportQuery (false), false, other));
+      queries.add (new Query ("message_insert", MessageWriter.INSERT, false,
+                              -1, user, other, "plan check", now, 0, MessageStatus.DELIVERED));
+      queries.add (new Query ("mark_read", ProfNetwork.MARK_READ, false, MessageStatus.READ, other, MessageStatus.DELIVERED, "1"));
+      queries.add (new Query ("friends_page", ProfNetwork.FRIENDS_PAGE, false, user, ConnectionStatus.ACCEPTED, user, ConnectionStatus.ACCEPTED, "", page));
+      queries.add (new Query ("pending_page", ProfNetwork.PENDING_PAGE, false, user, ConnectionStatus.PENDING, "", page));
+      queries.add (new Query ("connection_exists", ProfNetwork.existsQuery (ProfNetwork.CONNECTION_EXISTS), false, user, other, other, user));
+      queries.add (new Query ("answer_requests", ProfNetwork.ANSWER_REQUESTS, false, other, ConnectionStatus.ACCEPTED, ConnectionStatus.REJECTED, user, ConnectionStatus.PENDING, other));
+      queries.add (new Query ("graph_load", ProfNetwork.GRAPH_LOAD, true, ConnectionStatus.ACCEPTED));
+      queries.add (new Query ("people_load", ProfNetwork.PEOPLE_LOAD, true));
+      return queries;
+   }//end queries
+
+   /*
+    * Explains one query and compares it with its baseline.  Returns the
+    * number of failures found.
+    */
+   private static int check (ProfNetwork esql, Query query, Properties baseline,
+                             Properties measured, boolean record) throws SQLException {
+      double cost = 0;
+      double[] times = new double[RUNS];
+      List<String> seqScans = new ArrayList<String>();
+      String plan = null;
+      for (int run = 0; run < RUNS; ++run) {
+         plan = explain (esql, query);
+         Matcher m = COST.matcher (plan);
+         if (m.find ())
+            cost = Double.parseDouble (m.group (1));
+         m = TIME.matcher (plan);
+         times[run] = m.find () ? Double.parseDouble (m.group (1)) : 0;
+      }//end for
+      Matcher scan = SEQ_SCAN.matcher (plan);
+      while (scan.find ())
+         seqScans.add (scan.group (1));
+      Arrays.sort (times);
+      double latency = times[RUNS / 2];
+
+      measured.setProperty (query.name + ".cost", String.valueOf (cost));
+      measured.setProperty (query.name + ".ms", String.valueOf (latency));
+      System.out.printf ("%-20s cost=%10.2f  median=%8.3f ms%s%n", query.name, cost, latency,
+                         seqScans.isEmpty () ? "" : "  seq scan on " + seqScans);
+
+      int failures = 0;
+      if (!query.fullScan && !seqScans.isEmpty ()) {
+         System.out.println ("  FAIL: sequential scan\n" + plan);
+         ++failures;
+      }//end if
+      if (!record && baseline.getProperty (query.name + ".cost") != null) {
+         double baseCost = Double.parseDouble (baseline.getProperty (query.name + ".cost"));
+         double baseMs = Double.parseDouble (baseline.getProperty (query.name + ".ms"));
+         if (cost > baseCost * COST_TOLERANCE) {
+            System.out.printf ("  FAIL: cost %.2f exceeds baseline %.2f%n", cost, baseCost);
+            ++failures;
+         }//end if
+         if (latency > baseMs * LATENCY_TOLERANCE + LATENCY_SLACK_MS) {
+            System.out.printf ("  FAIL: latency %.3f ms exceeds baseline %.3f ms%n", latency, baseMs);
+            ++failures;
+         }//end if
+      }//end if
+      return failures;
+   }//end check
+
+   /*
+    * Returns the text of EXPLAIN (ANALYZE, BUFFERS) for a query, run in a
+    * transaction that is rolled back so updates leave no trace.
+    */
+   private static String explain (ProfNetwork esql, Query query) throws SQLException {
+      ConnectionPool.Pooled pooled = esql.getPool ().borrow ();
+      try {
+         pooled.connection ().setAutoCommit (false);
+         PreparedStatement stmt = pooled.connection ().prepareStatement ("EXPLAIN (ANALYZE, BUFFERS) " + query.sql);
+         try {
+            ProfNetwork.bindParameters (stmt, query.params);
+            ResultSet rs = stmt.executeQuery ();
+            StringBuilder plan = new StringBuilder ();
+            while (rs.next ())
+               plan.append (rs.getString (1)).append ('\n');
+            rs.close ();
+            return plan.toString ();
+         }finally{
+            stmt.close ();
+            pooled.connection ().rollback ();
+         }//end try
+      }finally{
+         esql.getPool ().release (pooled);
+      }//end try
+   }//end explain
+
+   private static Properties load (String file) throws IOException {
+      Properties baseline = new Properties ();
+      InputStream in = null;
+      try {
+         in = new FileInputStream (file);
+         baseline.load (in);
+      }catch (java.io.FileNotFoundException e) {
+         System.out.println ("No baseline in " + file + ", only checking for sequential scans");
+      }finally{
+         if (in != null)
+            in.close ();
+      }//end try
+      return baseline;
+   }//end load
+
+   private static void save (Properties measured, String file) throws IOException {
+      OutputStream out = new FileOutputStream (file);
+      try {
+         measured.store (out, "QueryPlanCheck baseline: cost and median latency (ms) per query");
+      }finally{
+         out.close ();
+      }//end try
+   }//end save
+}//end QueryPlanCheck
@@ -0,0 +1,10 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Runs the JMH benchmarks against the local Postgres named by DB_NAME,
+# PGPORT and USER, which must hold the schema (sql/scripts/create_db.sh).
+# Extra arguments go to JMH, e.g.
+#
+#    ./run.sh MenuBenchmark -p users=10000 -p messagesPerUser=100
+#
+(cd $DIR/.. && mvn -B -q package -DskipTests) || exit 1
+java -jar $DIR/target/benchmarks.jar "$@"
@@ -0,0 +1,122 @@
+package profnetwork.bench;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Handles on the ProfNetwork application.
+ *
+ * ProfNetwork lives in the unnamed package, which classes in a named package
+ * (and JMH requires one) cannot refer to.  The methods benchmarked are bound
+ * here once through method handles, typed with Object for the ProfNetwork
+ * receiver.  Being static final, the handles are constants to the JIT and
+ * cost nothing next to a database round trip.
+ *
+ * The menu operations read the keyboard through the static ProfNetwork.in
+ * reader; script() replaces it with scripted answers for one call.
+ */
+final class App {
+
+   private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup ();
+   private static final Class<?> PROF_NETWORK = load ("ProfNetwork");
+
+   static final MethodHandle NEW = constructor ();
+
+   // data access: the string form, as the menus originally used, and the
+   // parameterized form that replaced it.
+   static final MethodHandle EXECUTE_QUERY = method ("executeQuery", int.class, String.class);
+   static final MethodHandle EXECUTE_QUERY_PARAMS = method ("executeQuery", int.class, String.class, Object[].class);
+   static final MethodHandle RETURN_RESULT = method ("executeQueryAndReturnResult", java.util.List.class, String.class);
+   static final MethodHandle RETURN_RESULT_PARAMS = method ("executeQueryAndReturnResult", java.util.List.class, String.class, Object[].class);
+   static final MethodHandle EXECUTE_UPDATE = method ("executeUpdate", void.class, String.class);
+   static final MethodHandle EXECUTE_UPDATE_PARAMS = method ("executeUpdate", int.class, String.class, Object[].class);
+   static final MethodHandle CLEANUP = method ("cleanup", void.class);
+
+   // menu operations, static methods taking the ProfNetwork instance.
+   static final MethodHandle LOG_IN = menu ("LogIn", String.class);
+   static final MethodHandle NEW_MESSAGE = menu ("NewMessage", int.class, String.class);
+   static final MethodHandle VIEW_SENT = menu ("Viewsent", int.class, String.class);
+   static final MethodHandle SEARCH_PERSON = menu ("Searchperson", int.class, String.class);
+   static final MethodHandle UPDATE_PROFILE = menu ("UpdateProfile", int.class, String.class);
+
+   private static final Field IN = inField ();
+
+   private App () {
+   }
+
+   /**
+    * Connects a new ProfNetwork instance.
+    */
+   static Object connect (String dbname, String dbport, String user) throws Throwable {
+      return (Object) NEW.invokeExact (dbname, dbport, user, "");
+   }//end connect
+
+   /**
+    * Makes the next keyboard reads of the application return the given
+    * lines.
+    */
+   static void script (String... lines) {
+      StringBuilder input = new StringBuilder ();
+      for (String line : lines)
+         input.append (line).append ('\n');
+      try {
+         IN.set (null, new BufferedReader (new StringReader (input.toString ())));
+      }catch (IllegalAccessException e) {
+         throw new IllegalStateException (e);
+      }//end try
+   }//end script
+
+   private static Class<?> load (String name) {
+      try {
+         return Class.forName (name);
+      }catch (ClassNotFoundException e) {
+         throw new IllegalStateException ("the application classes are not on the classpath", e);
+      }//end try
+   }//end load
+
+   private static MethodHandle constructor () {
+      try {
+         MethodHandle handle = LOOKUP.findConstructor (PROF_NETWORK, MethodType.methodType (
+            void.class, String.class, String.class, String.class, String.class));
+         return handle.asType (MethodType.methodType (Object.class,
+            String.class, String.class, String.class, String.class));
+      }catch (ReflectiveOperationException e) {
+         throw new IllegalStateException (e);
+      }//end try
+   }//end constructor
+
+   private static MethodHandle method (String name, Class<?> returnType, Class<?>... params) {
+      try {
+         MethodHandle handle = LOOKUP.findVirtual (PROF_NETWORK, name, MethodType.methodType (returnType, params));
+         return handle.asType (handle.type ().changeParameterType (0, Object.class));
+      }catch (ReflectiveOperationException e) {
+         throw new IllegalStateException (e);
+      }//end try
+   }//end method
+
+   private static MethodHandle menu (String name, Class<?> returnType, Class<?>... params) {
+      Class<?>[] all = new Class<?>[params.length + 1];
+      all[0] = PROF_NETWORK;
+      System.arraycopy (params, 0, all, 1, params.length);
+      try {
+         MethodHandle handle = LOOKUP.findStatic (PROF_NETWORK, name, MethodType.methodType (returnType, all));
+         return handle.asType (handle.type ().changeParameterType (0, Object.class));
+      }catch (ReflectiveOperationException e) {
+         throw new IllegalStateException (e);
+      }//end try
+   }//end menu
+
+   private static Field inField () {
+      try {
+         Field field = PROF_NETWORK.getDeclaredField ("in");
+         field.setAccessible (true);
+         return field;
+      }catch (NoSuchFieldException e) {
+         throw new IllegalStateException (e);
+      }//end try
+   }//end inField
+}//end App
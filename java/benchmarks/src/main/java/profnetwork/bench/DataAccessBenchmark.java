@@ -0,0 +1,71 @@
+package profnetwork.bench;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the ProfNetwork data-access methods, each in its original
+ * form taking a complete SQL string and in its parameterized form.  Every
+ * call looks up a random seeded user, so the numbers include the index
+ * lookups but not a hot single-row cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataAccessBenchmark {
+
+   @Benchmark
+   public int executeQuery (Dataset db) throws Throwable {
+      String userId = randomUser (db);
+      return (int) App.EXECUTE_QUERY.invokeExact (db.esql,
+         "SELECT * FROM USR WHERE userId = '" + userId + "'");
+   }
+
+   @Benchmark
+   public int executeQueryParameterized (Dataset db) throws Throwable {
+      return (int) App.EXECUTE_QUERY_PARAMS.invokeExact (db.esql,
+         "SELECT * FROM USR WHERE userId = ?", new Object[] { randomUser (db) });
+   }
+
+   @Benchmark
+   public List<?> executeQueryAndReturnResult (Dataset db) throws Throwable {
+      String userId = randomUser (db);
+      return (List<?>) App.RETURN_RESULT.invokeExact (db.esql,
+         "SELECT * FROM WORK_EXPR WHERE userId = '" + userId + "'");
+   }
+
+   @Benchmark
+   public List<?> executeQueryAndReturnResultParameterized (Dataset db) throws Throwable {
+      return (List<?>) App.RETURN_RESULT_PARAMS.invokeExact (db.esql,
+         "SELECT * FROM WORK_EXPR WHERE userId = ?", new Object[] { randomUser (db) });
+   }
+
+   @Benchmark
+   public void executeUpdate (Dataset db) throws Throwable {
+      String userId = randomUser (db);
+      App.EXECUTE_UPDATE.invokeExact (db.esql,
+         "UPDATE USR SET email = '" + userId + "@example.org' WHERE userId = '" + userId + "'");
+   }
+
+   @Benchmark
+   public int executeUpdateParameterized (Dataset db) throws Throwable {
+      String userId = randomUser (db);
+      return (int) App.EXECUTE_UPDATE_PARAMS.invokeExact (db.esql,
+         "UPDATE USR SET email = ? WHERE userId = ?", new Object[] { userId + "@example.org", userId });
+   }
+
+   static String randomUser (Dataset db) {
+      return db.userId (1 + ThreadLocalRandom.current ().nextInt (db.users));
+   }
+}//end DataAccessBenchmark
@@ -0,0 +1,147 @@
+package profnetwork.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The database the benchmarks run against: a local Postgres holding the
+ * ProfNetwork schema (sql/scripts/create_db.sh), found through the same
+ * DB_NAME, PGPORT and USER variables as scripts/compile.sh.
+ *
+ * Each trial seeds `users` users named jb_1 to jb_<users>, each with two
+ * work experiences, one education entry, `messagesPerUser` sent messages
+ * and accepted connections to the next three users.  The seeded rows are
+ * removed again when the trial ends; other data in the database is left
+ * alone.  Sizes are JMH parameters, e.g. -p users=100000.
+ */
+@State(Scope.Benchmark)
+public class Dataset {
+
+   static final String PREFIX = "jb_";
+
+   @Param({"1000", "100000"})
+   public int users;
+
+   @Param({"20"})
+   public int messagesPerUser;
+
+   // the application under test.
+   Object esql;
+
+   private PrintStream _out;
+
+   @Setup(Level.Trial)
+   public void seed () throws Throwable {
+      String dbname = env ("DB_NAME");
+      String dbport = env ("PGPORT");
+      String user = env ("USER");
+      Class.forName ("org.postgresql.Driver");
+      Connection db = DriverManager.getConnection ("jdbc:postgresql://localhost:" + dbport + "/" + dbname, user, "");
+      try {
+         db.setAutoCommit (false);
+         delete (db);
+         insert (db);
+         db.commit ();
+         Statement stmt = db.createStatement ();
+         db.setAutoCommit (true);
+         stmt.execute ("ANALYZE");
+         stmt.close ();
+      }finally{
+         db.close ();
+      }//end try
+
+      // the menus print what they show; keep it out of the JMH output.
+      this._out = System.out;
+      System.setOut (new PrintStream (new OutputStream () {
+         public void write (int b) {
+         }
+         public void write (byte[] b, int off, int len) {
+         }
+      }));
+      this.esql = App.connect (dbname, dbport, user);
+   }//end seed
+
+   @TearDown(Level.Trial)
+   public void clean () throws Throwable {
+      App.CLEANUP.invokeExact (this.esql);
+      System.setOut (this._out);
+      Connection db = DriverManager.getConnection (
+         "jdbc:postgresql://localhost:" + env ("PGPORT") + "/" + env ("DB_NAME"), env ("USER"), "");
+      try {
+         delete (db);
+      }finally{
+         db.close ();
+      }//end try
+   }//end clean
+
+   /**
+    * Returns the id of seeded user number n, 1 <= n <= users.
+    */
+   String userId (int n) {
+      return PREFIX + n;
+   }//end userId
+
+   private void insert (Connection db) throws SQLException {
+      update (db, "INSERT INTO USR (userId, password, email, name, dateOfBirth) "
+         + "SELECT 'jb_' || i, 'pw' || i, 'jb_' || i || '@example.com', 'Bench User ' || i, "
+         + "DATE '1970-01-01' + (i % 15000) FROM generate_series(1, ?) i", users);
+      update (db, "INSERT INTO WORK_EXPR (userId, company, role, location, startDate, endDate) "
+         + "SELECT 'jb_' || i, 'Company ' || (i % 500), 'Role ' || j, 'City ' || (i % 50), "
+         + "DATE '2000-01-01' + j * 1000, DATE '2000-01-01' + j * 1000 + 900 "
+         + "FROM generate_series(1, ?) i, generate_series(0, 1) j", users);
+      update (db, "INSERT INTO EDUCATIONAL_DETAILS (userId, instituitionName, major, degree, startdate, enddate) "
+         + "SELECT 'jb_' || i, 'University ' || (i % 100), 'Major ' || (i % 20), 'BSc', "
+         + "DATE '1995-09-01', DATE '1999-06-01' FROM generate_series(1, ?) i", users);
+      update (db, "INSERT INTO CONNECTION_USR (userId, connectionId, status) "
+         + "SELECT 'jb_' || i, 'jb_' || (1 + (i + j - 1) % ?), 'Accept' "
+         + "FROM generate_series(1, ?) i, generate_series(1, 3) j", users, users);
+      // ids above any existing message, then the hi/lo sequence moved past
+      // them like load_data.sql does.
+      update (db, "INSERT INTO MESSAGE (msgId, senderId, receiverId, contents, sendTime, deleteStatus, status) "
+         + "SELECT base.id + (i - 1) * ? + j, 'jb_' || i, 'jb_' || (1 + (i + j) % ?), 'Benchmark message ' || j, "
+         + "now() - j * interval '1 minute', 0, 'Delivered' "
+         + "FROM (SELECT COALESCE(MAX(msgId), 0) AS id FROM MESSAGE) base, "
+         + "generate_series(1, ?) i, generate_series(1, ?) j",
+         messagesPerUser, users, users, messagesPerUser);
+      update (db, "SELECT setval('MESSAGE_MSGID_SEQ', GREATEST((SELECT last_value FROM MESSAGE_MSGID_SEQ), "
+         + "(SELECT MAX(msgId) FROM MESSAGE) / 50 + 1))");
+   }//end insert
+
+   private static void delete (Connection db) throws SQLException {
+      update (db, "DELETE FROM MESSAGE WHERE senderId LIKE 'jb!_%' ESCAPE '!' OR receiverId LIKE 'jb!_%' ESCAPE '!'");
+      update (db, "DELETE FROM CONNECTION_USR WHERE userId LIKE 'jb!_%' ESCAPE '!' OR connectionId LIKE 'jb!_%' ESCAPE '!'");
+      update (db, "DELETE FROM EDUCATIONAL_DETAILS WHERE userId LIKE 'jb!_%' ESCAPE '!'");
+      update (db, "DELETE FROM WORK_EXPR WHERE userId LIKE 'jb!_%' ESCAPE '!'");
+      update (db, "DELETE FROM USR WHERE userId LIKE 'jb!_%' ESCAPE '!'");
+   }//end delete
+
+   private static void update (Connection db, String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = db.prepareStatement (sql);
+      try {
+         for (int i = 0; i < params.length; ++i)
+            stmt.setObject (i + 1, params[i]);
+         stmt.execute ();
+      }finally{
+         stmt.close ();
+      }//end try
+   }//end update
+
+   private static String env (String name) {
+      String value = System.getenv (name);
+      if (value == null)
+         throw new IllegalStateException (name + " is not set");
+      return value;
+   }//end env
+}//end Dataset
@@ -0,0 +1,76 @@
+package profnetwork.bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the menu operations, run end to end: each call feeds the
+ * operation the answers a user would type and measures everything it does
+ * against the database.  Output goes nowhere (see Dataset).
+ *
+ * The menus share the static keyboard reader, so these run on one thread.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class MenuBenchmark {
+
+   // answers to the delete prompts of a full page, then "no older messages".
+   private static final String[] VIEW_SENT_ANSWERS = { "n", "n", "n", "n", "n", "n", "n", "n", "n", "n", "n" };
+
+   @Benchmark
+   public String logIn (Dataset db) throws Throwable {
+      int n = randomUser (db);
+      App.script (db.userId (n), "pw" + n);
+      return (String) App.LOG_IN.invokeExact (db.esql);
+   }
+
+   @Benchmark
+   public int newMessage (Dataset db) throws Throwable {
+      int n = randomUser (db);
+      // the next user is a direct connection, so the 3-hop rule allows it.
+      App.script (db.userId (n % db.users + 1), "Benchmark message");
+      return (int) App.NEW_MESSAGE.invokeExact (db.esql, db.userId (n));
+   }
+
+   @Benchmark
+   public int viewSent (Dataset db) throws Throwable {
+      App.script (VIEW_SENT_ANSWERS);
+      return (int) App.VIEW_SENT.invokeExact (db.esql, db.userId (randomUser (db)));
+   }
+
+   @Benchmark
+   public int searchPerson (Dataset db) throws Throwable {
+      App.script (db.userId (randomUser (db)), "9");
+      return (int) App.SEARCH_PERSON.invokeExact (db.esql, db.userId (randomUser (db)));
+   }
+
+   @Benchmark
+   public int updateProfileViewWork (Dataset db) throws Throwable {
+      App.script ("5", "1");
+      return (int) App.UPDATE_PROFILE.invokeExact (db.esql, db.userId (randomUser (db)));
+   }
+
+   @Benchmark
+   public int updateProfileChangeEmail (Dataset db) throws Throwable {
+      int n = randomUser (db);
+      App.script ("2", db.userId (n) + "@example.org");
+      return (int) App.UPDATE_PROFILE.invokeExact (db.esql, db.userId (n));
+   }
+
+   private static int randomUser (Dataset db) {
+      return 1 + ThreadLocalRandom.current ().nextInt (db.users);
+   }
+}//end MenuBenchmark
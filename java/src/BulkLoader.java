@@ -0,0 +1,505 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Bulk loader for the ProfNetwork tables.  Reads one CSV file per table
+ * from a directory and loads them all in parallel, each on its own pooled
+ * connection:
+ *
+ *    users.csv        USR
+ *    connections.csv  CONNECTION_USR
+ *    messages.csv     MESSAGE
+ *    work_expr.csv    WORK_EXPR
+ *    education.csv    EDUCATIONAL_DETAILS
+ *
+ * Files are streamed, never held in memory.  A file is sent with COPY when
+ * the JDBC driver on the classpath has a copy API (8.4 and later drivers),
+ * otherwise as multi-row INSERTs of BATCH_ROWS rows committed every
+ * COMMIT_ROWS rows.  The secondary indexes of the index script, and the
+ * primary keys and unique constraints of the tables loaded, are dropped
+ * before loading and rebuilt afterwards, so no index is maintained row by
+ * row.  Constraints a foreign key depends on are kept.  A load bringing
+ * duplicate keys fails when its constraint is added back, naming it; the
+ * table is then left without it.  Messages of months without a partition
+ * are moved from the default partition into new monthly ones.  Finally the
+ * message id sequence is moved past the loaded ids and the tables are
+ * analyzed.
+ *
+ *    java -cp classes:lib/pg73jdbc3.jar BulkLoader <dbname> <port> <user> <csv dir>
+ *         [--header] [--indexes ../sql/src/create_indexes.sql]
+ *
+ * Missing files are skipped.  In a CSV file an unquoted empty field is
+ * loaded as NULL.
+ *
+ */
+public class BulkLoader {
+
+   // rows per multi-row INSERT of the fallback path.
+   static final int BATCH_ROWS = 500;
+
+   // rows per transaction of the fallback path.
+   static final int COMMIT_ROWS = 50000;
+
+   // primary keys and unique constraints of a table that no foreign key
+   // depends on: name and definition.
+   static final String KEY_CONSTRAINTS =
+      "SELECT c.conname, pg_get_constraintdef(c.oid) FROM pg_constraint c "
+      + "WHERE c.conrelid = CAST(CAST(? AS text) AS regclass) AND c.contype IN ('p', 'u') "
+      + "AND NOT EXISTS (SELECT 1 FROM pg_constraint f WHERE f.contype = 'f' AND f.conindid = c.conindid)";
+
+   private static final Pattern CREATE_INDEX =
+      Pattern.compile ("CREATE\\s+(?:UNIQUE\\s+)?INDEX\\s+(\\w+)\\s+ON", Pattern.CASE_INSENSITIVE);
+
+   /**
+    * A loadable table: its CSV file name, and its columns with the SQL
+    * type each CSV field is cast to.
+    */
+   static class Table {
+      final String name;
+      final String file;
+      final String[] columns;
+      final String[] types;
+
+      Table (String name, String file, String[] columns, String[] types) {
+         this.name = name;
+         this.file = file;
+         this.columns = columns;
+         this.types = types;
+      }
+
+      String columnList () {
+         StringBuilder list = new StringBuilder ();
+         for (int i = 0; i < this.columns.length; ++i)
+            list.append (i == 0 ? "" : ", ").append (this.columns[i]);
+         return list.toString ();
+      }
+   }//end Table
+
+   static final Table[] TABLES = {
+      new Table ("USR", "users.csv",
+                 new String[] { "userId", "password", "email", "name", "dateOfBirth" },
+                 new String[] { "varchar", "varchar", "text", "varchar(50)", "date" }),
+      new Table ("CONNECTION_USR", "connections.csv",
+                 new String[] { "userId", "connectionId", "status" },
+                 new String[] { "varchar(10)", "varchar(10)", "varchar(30)" }),
+      new Table ("MESSAGE", "messages.csv",
+                 new String[] { "msgId", "senderId", "receiverId", "contents", "sendTime", "deleteStatus", "status" },
+                 new String[] { "integer", "varchar(10)", "varchar(10)", "varchar(500)", "timestamp", "integer", "varchar(30)" }),
+      new Table ("WORK_EXPR", "work_expr.csv",
+                 new String[] { "userId", "company", "role", "location", "startDate", "endDate" },
+                 new String[] { "varchar(10)", "varchar(50)", "varchar(50)", "varchar(50)", "date", "date" }),
+      new Table ("EDUCATIONAL_DETAILS", "education.csv",
+                 new String[] { "userId", "instituitionName", "major", "degree", "startdate", "enddate" },
+                 new String[] { "varchar(10)", "varchar(50)", "varchar(50)", "varchar(50)", "date", "date" })
+   };
+
+   private final ProfNetwork _esql;
+   private final boolean _header;
+
+   /**
+    * Creates a new instance of BulkLoader
+    *
+    * @param esql the database access object whose pool is used
+    * @param header whether the first line of every file is a header
+    */
+   public BulkLoader (ProfNetwork esql, boolean header) {
+      this._esql = esql;
+      this._header = header;
+   }//end BulkLoader
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println ("Usage: java BulkLoader <dbname> <port> <user> <csv dir> [--header] [--indexes <index script>]");
+         return;
+      }//end if
+      boolean header = false;
+      File indexScript = new File ("../sql/src/create_indexes.sql");
+      for (int i = 4; i < args.length; ++i) {
+         if (args[i].equals ("--header"))
+            header = true;
+         else if (args[i].equals ("--indexes") && i + 1 < args.length)
+            indexScript = new File (args[++i]);
+      }//end for
+
+      Class.forName ("org.postgresql.Driver");
+      ProfNetwork esql = new ProfNetwork (args[0], args[1], args[2], "");
+      try {
+         new BulkLoader (esql, header).load (new File (args[3]), indexScript);
+      }finally{
+         esql.cleanup ();
+      }//end try
+   }//end main
+
+   /**
+    * Loads every table file found in a directory.
+    *
+    * @param dir the directory holding the CSV files
+    * @param indexScript the script creating the secondary indexes, or null
+    *        to leave indexes alone
+    * @throws java.lang.Exception when a table failed to load
+    */
+   public void load (File dir, File indexScript) throws Exception {
+      List<String> indexes = indexScript != null && indexScript.exists ()
+         ? indexStatements (indexScript) : new ArrayList<String>();
+      long start = System.nanoTime ();
+
+      for (String create : indexes) {
+         Matcher m = CREATE_INDEX.matcher (create);
+         if (m.find ())
+            this._esql.executeUpdate ("DROP INDEX IF EXISTS " + m.group (1));
+      }//end for
+
+      List<Callable<String>> jobs = new ArrayList<Callable<String>>();
+      List<String> keys = new ArrayList<String>();
+      for (final Table table : TABLES) {
+         final File file = new File (dir, table.file);
+         if (!file.exists ()) {
+            System.out.println ("Skipping " + table.name + ", no " + file);
+            continue;
+         }//end if
+         String restore = dropKeys (table);
+         if (restore != null)
+            keys.add (restore);
+         jobs.add (new Callable<String>() {
+            public String call () throws Exception {
+               long t0 = System.nanoTime ();
+               long rows = loadTable (table, file);
+               double secs = (System.nanoTime () - t0) / 1e9;
+               return String.format ("%-20s %12d rows %8.1f s %12.0f rows/s",
+                                     table.name, rows, secs, rows / Math.max (secs, 1e-9));
+            }
+         });
+      }//end for
+      Exception failure = null;
+      try {
+         runAll (jobs);
+      }catch (Exception e) {
+         // put keys and indexes back all the same.
+         failure = e;
+      }//end try
+      if (failure == null && new File (dir, "messages.csv").exists ()) {
+         // messages were loaded into the default partition when their
+         // months had none; partitions take them before keys and indexes
+         // are built, so those are built once, on the partitions.
+         int created = new SchemaMigrator (this._esql).partitionDefault (SchemaMigrator.DEFAULT_MONTHS_AHEAD);
+         if (created > 0)
+            System.out.println ("Created " + created + " message partitions");
+      }//end if
+
+      long t0 = System.nanoTime ();
+      List<Callable<String>> builds = new ArrayList<Callable<String>>();
+      List<String> rebuilds = new ArrayList<String>(keys);
+      rebuilds.addAll (indexes);
+      for (final String create : rebuilds) {
+         builds.add (new Callable<String>() {
+            public String call () throws Exception {
+               _esql.executeUpdate (create);
+               return null;
+            }
+         });
+      }//end for
+      try {
+         runAll (builds);
+      }catch (Exception e) {
+         if (failure == null)
+            failure = e;
+      }//end try
+      if (failure != null)
+         throw failure;
+      if (!rebuilds.isEmpty ())
+         System.out.printf ("Rebuilt %d indexes and the keys of %d tables in %.1f s%n", indexes.size (), keys.size (),
+                            (System.nanoTime () - t0) / 1e9);
+
+      this._esql.executeQuery ("SELECT setval('MESSAGE_MSGID_SEQ', (SELECT COALESCE(MAX(msgId), 0) FROM MESSAGE) / "
+                               + IdAllocator.MESSAGE_BLOCK_SIZE + " + 1)");
+      this._esql.executeUpdate ("ANALYZE");
+      System.out.printf ("Done in %.1f s%n", (System.nanoTime () - start) / 1e9);
+   }//end load
+
+   /*
+    * Drops the primary key and unique constraints of a table, returns the
+    * statement adding them back, in one pass over the table, or null when
+    * there were none.
+    */
+   private String dropKeys (Table table) throws SQLException {
+      boolean pinned = ReplicaRouter.readFromPrimary (true);
+      List<String[]> constraints;
+      try {
+         constraints = this._esql.queryForList (KEY_CONSTRAINTS, new RowMapper<String[]>() {
+            public String[] map (ResultSet rs) throws SQLException {
+               return new String[] { rs.getString (1), rs.getString (2) };
+            }
+         }, table.name);
+      }finally{
+         ReplicaRouter.readFromPrimary (pinned);
+      }//end try
+      if (constraints.isEmpty ())
+         return null;
+      StringBuilder add = new StringBuilder ("ALTER TABLE ").append (table.name);
+      for (int i = 0; i < constraints.size (); ++i) {
+         String[] constraint = constraints.get (i);
+         this._esql.executeUpdate ("ALTER TABLE " + table.name + " DROP CONSTRAINT " + constraint[0]);
+         add.append (i == 0 ? " " : ", ").append ("ADD CONSTRAINT ").append (constraint[0])
+            .append (' ').append (constraint[1]);
+      }//end for
+      return add.toString ();
+   }//end dropKeys
+
+   /*
+    * Runs independent jobs in parallel, prints what they return and rethrows
+    * the first failure.
+    */
+   private void runAll (List<Callable<String>> jobs) throws Exception {
+      if (jobs.isEmpty ())
+         return;
+      ExecutorService pool = Executors.newFixedThreadPool (jobs.size ());
+      try {
+         List<Future<String>> results = pool.invokeAll (jobs);
+         for (Future<String> result : results) {
+            try {
+               String line = result.get ();
+               if (line != null)
+                  System.out.println (line);
+            }catch (ExecutionException e) {
+               throw (e.getCause () instanceof Exception) ? (Exception) e.getCause () : e;
+            }//end try
+         }//end for
+      }finally{
+         pool.shutdown ();
+      }//end try
+   }//end runAll
+
+   /**
+    * Loads one CSV file into its table on a single borrowed connection.
+    *
+    * @param table the table to load
+    * @param file the CSV file
+    * @return the number of rows loaded
+    * @throws java.lang.Exception when reading or loading failed
+    */
+   long loadTable (Table table, File file) throws Exception {
+      ConnectionPool.Pooled pooled = this._esql.getPool ().borrow ();
+      Reader reader = new BufferedReader (new InputStreamReader (new FileInputStream (file), Charset.forName ("UTF-8")), 1 << 16);
+      try {
+         Object copyApi = copyApi (pooled);
+         if (copyApi != null)
+            return copy (copyApi, table, reader);
+         return insert (pooled, table, reader);
+      }finally{
+         reader.close ();
+         this._esql.getPool ().release (pooled);
+      }//end try
+   }//end loadTable
+
+   /*
+    * Returns the copy API of the connection, or null when the driver has
+    * none.  Looked up by reflection so the loader still builds and runs
+    * with the bundled 7.3 driver.
+    */
+   private static Object copyApi (ConnectionPool.Pooled pooled) {
+      try {
+         Class<?> pgConnection = Class.forName ("org.postgresql.PGConnection");
+         Method getCopyAPI = pgConnection.getMethod ("getCopyAPI");
+         return getCopyAPI.invoke (pooled.connection ());
+      }catch (Exception e) {
+         return null;
+      }//end try
+   }//end copyApi
+
+   private long copy (Object copyApi, Table table, Reader reader) throws Exception {
+      String sql = "COPY " + table.name + " (" + table.columnList () + ") FROM STDIN WITH CSV"
+                   + (this._header ? " HEADER" : "");
+      Method copyIn = copyApi.getClass ().getMethod ("copyIn", String.class, Reader.class);
+      try {
+         return ((Number) copyIn.invoke (copyApi, sql, reader)).longValue ();
+      }catch (InvocationTargetException e) {
+         throw (e.getCause () instanceof Exception) ? (Exception) e.getCause () : e;
+      }//end try
+   }//end copy
+
+   /*
+    * Fallback: multi-row INSERTs, one statement per BATCH_ROWS rows, in
+    * transactions of COMMIT_ROWS rows.
+    */
+   private long insert (ConnectionPool.Pooled pooled, Table table, Reader reader) throws Exception {
+      CsvReader csv = new CsvReader (reader);
+      if (this._header)
+         csv.next ();
+      int width = table.columns.length;
+      Object[] params = new Object[BATCH_ROWS * width];
+      pooled.connection ().setAutoCommit (false);
+      long rows = 0;
+      int pending = 0;
+      String[] record;
+      while ((record = csv.next ()) != null) {
+         if (record.length != width)
+            throw new SQLException (table.file + " line " + csv.line () + ": expected " + width
+                                    + " fields, found " + record.length);
+         System.arraycopy (record, 0, params, pending * width, width);
+         if (++pending == BATCH_ROWS) {
+            rows += flush (pooled, table, params, pending);
+            pending = 0;
+            if (rows % COMMIT_ROWS == 0)
+               pooled.connection ().commit ();
+         }//end if
+      }//end while
+      if (pending > 0)
+         rows += flush (pooled, table, params, pending);
+      pooled.connection ().commit ();
+      pooled.connection ().setAutoCommit (true);
+      return rows;
+   }//end insert
+
+   private static int flush (ConnectionPool.Pooled pooled, Table table, Object[] params, int rows) throws SQLException {
+      PreparedStatement stmt = pooled.statements ().prepare (insertSql (table, rows));
+      Object[] used = params;
+      if (rows * table.columns.length != params.length) {
+         used = new Object[rows * table.columns.length];
+         System.arraycopy (params, 0, used, 0, used.length);
+      }//end if
+      ProfNetwork.bindParameters (stmt, used);
+      return stmt.executeUpdate ();
+   }//end flush
+
+   /*
+    * INSERT INTO t (cols) VALUES (CAST(? AS type), ...), ... for a number of
+    * rows.  Full batches always produce the same text and share a cached
+    * statement.
+    */
+   static String insertSql (Table table, int rows) {
+      StringBuilder row = new StringBuilder ("(");
+      for (int i = 0; i < table.types.length; ++i)
+         row.append (i == 0 ? "" : ", ").append ("CAST(? AS ").append (table.types[i]).append (')');
+      row.append (')');
+      StringBuilder sql = new StringBuilder ("INSERT INTO ").append (table.name)
+         .append (" (").append (table.columnList ()).append (") VALUES ");
+      for (int r = 0; r < rows; ++r)
+         sql.append (r == 0 ? "" : ", ").append (row);
+      return sql.toString ();
+   }//end insertSql
+
+   /*
+    * Reads the CREATE INDEX statements of an index script.
+    */
+   private static List<String> indexStatements (File script) throws IOException {
+      StringBuilder text = new StringBuilder ();
+      BufferedReader in = new BufferedReader (new InputStreamReader (new FileInputStream (script), Charset.forName ("UTF-8")));
+      try {
+         String line;
+         while ((line = in.readLine ()) != null) {
+            if (!line.trim ().startsWith ("--"))
+               text.append (line).append ('\n');
+         }//end while
+      }finally{
+         in.close ();
+      }//end try
+      List<String> statements = new ArrayList<String>();
+      for (String statement : text.toString ().split (";")) {
+         if (CREATE_INDEX.matcher (statement).find ())
+            statements.add (statement.trim ());
+      }//end for
+      return statements;
+   }//end indexStatements
+
+   /**
+    * Minimal streaming CSV reader: comma separated, double quoted fields
+    * with "" as an escaped quote, fields may span lines.  An unquoted empty
+    * field is returned as null, as COPY does.
+    */
+   static class CsvReader {
+      private final Reader _in;
+      private int _line = 0;
+      private int _peek = -2;
+
+      CsvReader (Reader in) {
+         this._in = in;
+      }
+
+      int line () {
+         return this._line;
+      }
+
+      /*
+       * Returns the next record, or null at the end of the input.
+       */
+      String[] next () throws IOException {
+         int c = read ();
+         while (c == '\n' || c == '\r') {
+            // blank line.
+            this._line++;
+            c = read ();
+         }//end while
+         if (c == -1)
+            return null;
+         this._line++;
+         List<String> fields = new ArrayList<String>();
+         StringBuilder field = new StringBuilder ();
+         boolean quoted = false;
+         boolean wasQuoted = false;
+         while (true) {
+            if (quoted) {
+               if (c == -1)
+                  throw new IOException ("Unterminated quoted field at line " + this._line);
+               if (c == '"') {
+                  int n = read ();
+                  if (n == '"') {
+                     field.append ('"');
+                  }else{
+                     quoted = false;
+                     c = n;
+                     continue;
+                  }//end if
+               }else{
+                  field.append ((char) c);
+               }//end if
+            }else if (c == '"' && field.length () == 0) {
+               quoted = true;
+               wasQuoted = true;
+            }else if (c == ',' || c == '\n' || c == '\r' || c == -1) {
+               fields.add (field.length () == 0 && !wasQuoted ? null : field.toString ());
+               field.setLength (0);
+               wasQuoted = false;
+               if (c != ',') {
+                  if (c == '\r') {
+                     int n = read ();
+                     if (n != '\n')
+                        this._peek = n;
+                  }//end if
+                  return fields.toArray (new String[fields.size ()]);
+               }//end if
+            }else{
+               field.append ((char) c);
+            }//end if
+            c = read ();
+         }//end while
+      }
+
+      private int read () throws IOException {
+         if (this._peek != -2) {
+            int c = this._peek;
+            this._peek = -2;
+            return c;
+         }//end if
+         return this._in.read ();
+      }
+   }//end CsvReader
+}//end BulkLoader
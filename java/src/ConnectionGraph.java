@@ -0,0 +1,519 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class keeps the accepted connections of CONNECTION_USR in memory as
+ * an undirected graph, so that the "within 3 connections" rule can be
+ * checked without recursive SQL.
+ *
+ * User ids are mapped to dense ints.  The bulk of the edges is stored in
+ * compressed sparse row form: the neighbours of node u are
+ * targets[offsets[u] .. offsets[u + 1]).  Connections added or removed
+ * after loading are kept in small per-node delta lists on top of it and
+ * folded into a new CSR once they grow past a fraction of the base.
+ *
+ * Reachability is answered with a bidirectional breadth first search
+ * bounded by the number of hops, expanding the smaller frontier first.
+ * Its per node arrays are borrowed from a pool of one per processor, so
+ * their memory does not grow with the number of sessions searching.
+ *
+ */
+public class ConnectionGraph {
+
+   // a user may contact anyone this many connections away...
+   public static final int MAX_HOPS = 3;
+
+   // ...or anyone at all while they have fewer connections than this.
+   public static final int NEW_USER_CONNECTIONS = 5;
+
+   private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock ();
+
+   // userId <-> node dictionary.
+   private final Map<String, Integer> _nodes = new HashMap<String, Integer>();
+   private String[] _userIds = new String[16];
+   private int _size = 0;
+
+   // base adjacency in CSR form, covering nodes [0, _baseNodes).
+   private int _baseNodes = 0;
+   private int[] _offsets = new int[1];
+   private int[] _targets = new int[0];
+
+   // edges added since the last compaction, per node, and their counts.
+   private int[][] _added = new int[16][];
+   private int[] _addedCount = new int[16];
+
+   // base edges removed since the last compaction, as edgeKey(u, v) for
+   // both directions.
+   private final HashSet<Long> _removed = new HashSet<Long>();
+
+   // number of directed delta entries, added or removed.
+   private int _deltaEdges = 0;
+
+   // search states, at most one per processor: searches do not block,
+   // more of them at once would only take turns on the processors.
+   private static final int MAX_SCRATCH = Runtime.getRuntime ().availableProcessors ();
+   private final ArrayBlockingQueue<Scratch> _scratch = new ArrayBlockingQueue<Scratch>(MAX_SCRATCH);
+   private final AtomicInteger _scratchCreated = new AtomicInteger ();
+
+   /**
+    * Search state, used by one search at a time.  A node counts as visited from one side when
+    * its mark equals the current epoch of that side, so nothing has to be
+    * cleared between searches.
+    */
+   private static class Scratch {
+      int[] markFrom = new int[0];
+      int[] markTo = new int[0];
+      int[] distFrom = new int[0];
+      int[] distTo = new int[0];
+      int[] queueFrom = new int[0];
+      int[] queueTo = new int[0];
+      int epoch = 0;
+
+      void ensure (int size) {
+         if (this.markFrom.length < size) {
+            int capacity = Math.max (size, this.markFrom.length * 2);
+            this.markFrom = new int[capacity];
+            this.markTo = new int[capacity];
+            this.distFrom = new int[capacity];
+            this.distTo = new int[capacity];
+            this.queueFrom = new int[capacity];
+            this.queueTo = new int[capacity];
+            this.epoch = 0;
+         }//end if
+         if (++this.epoch == Integer.MAX_VALUE) {
+            Arrays.fill (this.markFrom, 0);
+            Arrays.fill (this.markTo, 0);
+            this.epoch = 1;
+         }//end if
+      }
+   }//end Scratch
+
+   /**
+    * Creates an empty graph.
+    */
+   public ConnectionGraph () {
+   }//end ConnectionGraph
+
+   /**
+    * Replaces the content of the graph by the given undirected edges.
+    *
+    * @param from the first user of each edge
+    * @param to the second user of each edge, same length as from
+    * @param count the number of edges to read from the arrays
+    */
+   public void load (String[] from, String[] to, int count) {
+      this._lock.writeLock ().lock ();
+      try {
+         this._nodes.clear ();
+         this._size = 0;
+         int[] src = new int[count];
+         int[] dst = new int[count];
+         for (int i = 0; i < count; ++i) {
+            src[i] = node (from[i]);
+            dst[i] = node (to[i]);
+         }//end for
+         this._added = new int[this._userIds.length][];
+         this._addedCount = new int[this._userIds.length];
+         this._removed.clear ();
+         this._deltaEdges = 0;
+         build (src, dst, count);
+      }finally{
+         this._lock.writeLock ().unlock ();
+      }//end try
+   }//end load
+
+   /**
+    * Records a new accepted connection.  Adding an edge already present has
+    * no effect.
+    *
+    * @param a one user of the connection
+    * @param b the other user
+    */
+   public void addConnection (String a, String b) {
+      this._lock.writeLock ().lock ();
+      try {
+         int u = node (a);
+         int v = node (b);
+         if (u == v || hasEdge (u, v))
+            return;
+         if (!this._removed.isEmpty () && this._removed.remove (edgeKey (u, v))) {
+            this._removed.remove (edgeKey (v, u));
+            this._deltaEdges -= 2;
+         }else{
+            append (u, v);
+            append (v, u);
+            this._deltaEdges += 2;
+         }//end if
+         compactIfNeeded ();
+      }finally{
+         this._lock.writeLock ().unlock ();
+      }//end try
+   }//end addConnection
+
+   /**
+    * Forgets an accepted connection.  Removing an absent edge has no effect.
+    *
+    * @param a one user of the connection
+    * @param b the other user
+    */
+   public void removeConnection (String a, String b) {
+      this._lock.writeLock ().lock ();
+      try {
+         Integer u = this._nodes.get (a);
+         Integer v = this._nodes.get (b);
+         if (u == null || v == null)
+            return;
+         if (removeAdded (u, v)) {
+            removeAdded (v, u);
+            this._deltaEdges -= 2;
+         }else if (hasBaseEdge (u, v)) {
+            this._removed.add (edgeKey (u, v));
+            this._removed.add (edgeKey (v, u));
+            this._deltaEdges += 2;
+         }//end if
+         compactIfNeeded ();
+      }finally{
+         this._lock.writeLock ().unlock ();
+      }//end try
+   }//end removeConnection
+
+   /**
+    * @param userId the user
+    * @param limit the count at which to stop counting
+    * @return the number of connections of the user, capped at limit
+    */
+   public int degree (String userId, int limit) {
+      this._lock.readLock ().lock ();
+      try {
+         Integer u = this._nodes.get (userId);
+         if (u == null)
+            return 0;
+         int count = 0;
+         int[] scan = neighbours (u);
+         for (int i = 0; i < scan.length && count < limit; ++i)
+            if (scan[i] >= 0)
+               ++count;
+         return count;
+      }finally{
+         this._lock.readLock ().unlock ();
+      }//end try
+   }//end degree
+
+   /**
+    * Computes the number of connections between two users, looking at most
+    * maxHops connections away.
+    *
+    * @param a the first user
+    * @param b the second user
+    * @param maxHops the largest distance searched
+    * @return the distance, 0 for the same user, or -1 if b is not within
+    *         maxHops of a
+    */
+   public int distance (String a, String b, int maxHops) {
+      if (a.equals (b))
+         return 0;
+      this._lock.readLock ().lock ();
+      try {
+         Integer s = this._nodes.get (a);
+         Integer t = this._nodes.get (b);
+         if (s == null || t == null)
+            return -1;
+         return search (s, t, maxHops);
+      }finally{
+         this._lock.readLock ().unlock ();
+      }//end try
+   }//end distance
+
+   /**
+    * Applies the contact rule: a user may reach anyone within MAX_HOPS
+    * connections, and a user with fewer than NEW_USER_CONNECTIONS
+    * connections may reach anyone.
+    *
+    * @param from the user initiating the contact
+    * @param to the user being contacted
+    * @return true if the contact is allowed
+    */
+   public boolean canContact (String from, String to) {
+      if (degree (from, NEW_USER_CONNECTIONS) < NEW_USER_CONNECTIONS)
+         return true;
+      return distance (from, to, MAX_HOPS) >= 0;
+   }//end canContact
+
+   /**
+    * @return the number of users known to the graph
+    */
+   public int size () {
+      this._lock.readLock ().lock ();
+      try {
+         return this._size;
+      }finally{
+         this._lock.readLock ().unlock ();
+      }//end try
+   }//end size
+
+   /*
+    * Level by level bidirectional search, always growing the side with the
+    * smaller frontier.  Called with the read lock held.
+    */
+   private int search (int s, int t, int maxHops) {
+      Scratch sc = borrowScratch ();
+      try {
+         return search (sc, s, t, maxHops);
+      }finally{
+         this._scratch.offer (sc);
+      }//end try
+   }//end search
+
+   /*
+    * Takes an idle search state, creates one while there are fewer than
+    * MAX_SCRATCH, or waits for one otherwise.
+    */
+   private Scratch borrowScratch () {
+      Scratch sc = this._scratch.poll ();
+      if (sc != null)
+         return sc;
+      if (this._scratchCreated.incrementAndGet () <= MAX_SCRATCH)
+         return new Scratch ();
+      this._scratchCreated.decrementAndGet ();
+      boolean interrupted = false;
+      try {
+         while (true) {
+            try {
+               return this._scratch.take ();
+            }catch (InterruptedException e) {
+               // searches are short, finish this one first.
+               interrupted = true;
+            }//end try
+         }//end while
+      }finally{
+         if (interrupted)
+            Thread.currentThread ().interrupt ();
+      }//end try
+   }//end borrowScratch
+
+   private int search (Scratch sc, int s, int t, int maxHops) {
+      sc.ensure (this._size);
+      int epoch = sc.epoch;
+
+      int[] qf = sc.queueFrom, qt = sc.queueTo;
+      int fHead = 0, fTail = 0, tHead = 0, tTail = 0;
+      qf[fTail++] = s; sc.markFrom[s] = epoch; sc.distFrom[s] = 0;
+      qt[tTail++] = t; sc.markTo[t] = epoch; sc.distTo[t] = 0;
+      int depthFrom = 0, depthTo = 0;
+
+      while (depthFrom + depthTo < maxHops && fHead < fTail && tHead < tTail) {
+         boolean forward = (fTail - fHead) <= (tTail - tHead);
+         int[] queue = forward ? qf : qt;
+         int[] mark = forward ? sc.markFrom : sc.markTo;
+         int[] dist = forward ? sc.distFrom : sc.distTo;
+         int[] otherMark = forward ? sc.markTo : sc.markFrom;
+         int[] otherDist = forward ? sc.distTo : sc.distFrom;
+         int head = forward ? fHead : tHead;
+         int tail = forward ? fTail : tTail;
+         int level = forward ? depthFrom : depthTo;
+
+         boolean checkRemoved = !this._removed.isEmpty ();
+         int best = -1;
+         int end = tail;
+         for (; head < end; ++head) {
+            int u = queue[head];
+            int baseFrom = u < this._baseNodes ? this._offsets[u] : 0;
+            int baseTo = u < this._baseNodes ? this._offsets[u + 1] : 0;
+            int last = baseTo + this._addedCount[u];
+            for (int k = baseFrom; k < last; ++k) {
+               int v;
+               if (k < baseTo) {
+                  v = this._targets[k];
+                  if (checkRemoved && this._removed.contains (edgeKey (u, v)))
+                     continue;
+               }else{
+                  v = this._added[u][k - baseTo];
+               }//end if
+               if (mark[v] == epoch)
+                  continue;
+               if (otherMark[v] == epoch) {
+                  int total = level + 1 + otherDist[v];
+                  if (best < 0 || total < best)
+                     best = total;
+               }//end if
+               mark[v] = epoch;
+               dist[v] = level + 1;
+               queue[tail++] = v;
+            }//end for
+         }//end for
+         if (best >= 0)
+            return best <= maxHops ? best : -1;
+
+         if (forward) {
+            fHead = head; fTail = tail; depthFrom++;
+         }else{
+            tHead = head; tTail = tail; depthTo++;
+         }//end if
+      }//end while
+      return -1;
+   }//end search
+
+   /*
+    * Returns a copy of the current neighbours of u, used on the write
+    * paths.  Removed base edges show up as -1.
+    */
+   private int[] neighbours (int u) {
+      int baseFrom = 0, baseTo = 0;
+      if (u < this._baseNodes) {
+         baseFrom = this._offsets[u];
+         baseTo = this._offsets[u + 1];
+      }//end if
+      int added = this._addedCount[u];
+      if (added == 0 && this._removed.isEmpty ())
+         return Arrays.copyOfRange (this._targets, baseFrom, baseTo);
+      int[] out = new int[baseTo - baseFrom + added];
+      int n = 0;
+      for (int k = baseFrom; k < baseTo; ++k) {
+         int v = this._targets[k];
+         out[n++] = (!this._removed.isEmpty () && this._removed.contains (edgeKey (u, v))) ? -1 : v;
+      }//end for
+      if (added > 0)
+         System.arraycopy (this._added[u], 0, out, n, added);
+      return out;
+   }//end neighbours
+
+   private boolean hasEdge (int u, int v) {
+      int[] scan = neighbours (u);
+      for (int i = 0; i < scan.length; ++i)
+         if (scan[i] == v)
+            return true;
+      return false;
+   }//end hasEdge
+
+   private boolean hasBaseEdge (int u, int v) {
+      if (u >= this._baseNodes)
+         return false;
+      return Arrays.binarySearch (this._targets, this._offsets[u], this._offsets[u + 1], v) >= 0;
+   }//end hasBaseEdge
+
+   private void append (int u, int v) {
+      int[] list = this._added[u];
+      if (list == null) {
+         list = new int[4];
+      }else if (this._addedCount[u] == list.length) {
+         list = Arrays.copyOf (list, list.length * 2);
+      }//end if
+      list[this._addedCount[u]++] = v;
+      this._added[u] = list;
+   }//end append
+
+   private boolean removeAdded (int u, int v) {
+      int[] list = this._added[u];
+      int n = this._addedCount[u];
+      for (int i = 0; i < n; ++i) {
+         if (list[i] == v) {
+            list[i] = list[n - 1];
+            this._addedCount[u] = n - 1;
+            return true;
+         }//end if
+      }//end for
+      return false;
+   }//end removeAdded
+
+   /*
+    * Returns the node of a user, adding it to the dictionary if needed.
+    */
+   private int node (String userId) {
+      Integer id = this._nodes.get (userId);
+      if (id != null)
+         return id.intValue ();
+      if (this._size == this._userIds.length) {
+         int capacity = this._userIds.length * 2;
+         this._userIds = Arrays.copyOf (this._userIds, capacity);
+         this._added = Arrays.copyOf (this._added, capacity);
+         this._addedCount = Arrays.copyOf (this._addedCount, capacity);
+      }//end if
+      int u = this._size++;
+      this._userIds[u] = userId;
+      this._nodes.put (userId, u);
+      return u;
+   }//end node
+
+   private void compactIfNeeded () {
+      if (this._deltaEdges > Math.max (1024, this._targets.length / 4))
+         compact ();
+   }//end compactIfNeeded
+
+   /*
+    * Folds the delta lists into a new CSR.
+    */
+   private void compact () {
+      int edges = 0;
+      for (int u = 0; u < this._size; ++u)
+         for (int v : neighbours (u))
+            if (v > u)
+               ++edges;
+      int[] src = new int[edges];
+      int[] dst = new int[edges];
+      int n = 0;
+      for (int u = 0; u < this._size; ++u) {
+         for (int v : neighbours (u)) {
+            if (v > u) {
+               src[n] = u;
+               dst[n] = v;
+               ++n;
+            }//end if
+         }//end for
+      }//end for
+      this._added = new int[this._userIds.length][];
+      this._addedCount = new int[this._userIds.length];
+      this._removed.clear ();
+      this._deltaEdges = 0;
+      build (src, dst, n);
+   }//end compact
+
+   /*
+    * Builds the CSR arrays from an undirected edge list with a counting
+    * sort, dropping self loops and duplicates.
+    */
+   private void build (int[] src, int[] dst, int count) {
+      int nodes = this._size;
+      int[] offsets = new int[nodes + 1];
+      for (int i = 0; i < count; ++i) {
+         if (src[i] == dst[i])
+            continue;
+         offsets[src[i] + 1]++;
+         offsets[dst[i] + 1]++;
+      }//end for
+      for (int u = 0; u < nodes; ++u)
+         offsets[u + 1] += offsets[u];
+      int[] fill = Arrays.copyOf (offsets, nodes);
+      int[] targets = new int[offsets[nodes]];
+      for (int i = 0; i < count; ++i) {
+         if (src[i] == dst[i])
+            continue;
+         targets[fill[src[i]]++] = dst[i];
+         targets[fill[dst[i]]++] = src[i];
+      }//end for
+
+      // sort each row and squeeze out duplicate edges.
+      int[] compact = new int[nodes + 1];
+      int w = 0;
+      for (int u = 0; u < nodes; ++u) {
+         Arrays.sort (targets, offsets[u], offsets[u + 1]);
+         compact[u] = w;
+         for (int k = offsets[u]; k < offsets[u + 1]; ++k)
+            if (k == offsets[u] || targets[k] != targets[k - 1])
+               targets[w++] = targets[k];
+      }//end for
+      compact[nodes] = w;
+
+      this._offsets = compact;
+      this._targets = Arrays.copyOf (targets, w);
+      this._baseNodes = nodes;
+   }//end build
+
+   private static long edgeKey (int u, int v) {
+      return ((long) u << 32) | (v & 0xffffffffL);
+   }//end edgeKey
+}//end ConnectionGraph
@@ -0,0 +1,472 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.postgresql.PGConnection;
+
+/**
+ * This class keeps a bounded set of physical connections to the database
+ * that are shared by every session of the program.  A caller borrows a
+ * connection for the length of one operation and returns it afterwards.
+ * Connections idle for more than VALIDATION_IDLE_MILLIS are validated when
+ * borrowed, so a connection in steady use costs no extra round trip;
+ * connections idle for too long are closed down to the minimum size, and a borrower waits at most a
+ * configured time when all connections are in use.
+ *
+ * Every connection listens on SCHEMA_CHANNEL.  A schema change that alters
+ * the result type of existing queries notifies it (SchemaMigrator does at
+ * each table swap), and the statements the server prepared on every open
+ * connection would fail once each.  The first borrow that finds the
+ * notification recycles the pool: idle connections are closed, borrowed
+ * ones when they are released, and new ones prepare afresh.  recycle()
+ * does the same on demand.
+ *
+ */
+public class ConnectionPool {
+
+   // query used to check that a pooled connection is still alive.
+   private static final String VALIDATION_QUERY = "SELECT 1";
+
+   // idle time after which a connection is validated before reuse, in
+   // milliseconds.
+   static final long VALIDATION_IDLE_MILLIS = 30000;
+
+   // notified when the schema changed under the prepared statements.
+   public static final String SCHEMA_CHANNEL = "profnetwork_schema";
+
+   // how often idle connections are looked for, in milliseconds.
+   private static final long EVICTION_PERIOD = 30000;
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+
+   private final int _minSize;
+   private final int _maxSize;
+   private final long _idleTimeoutMillis;
+   private final long _borrowTimeoutMillis;
+
+   // idle connections, the most recently returned first.
+   private final Deque<Pooled> _idle = new ArrayDeque<Pooled>();
+
+   // number of open connections, borrowed or idle.
+   private int _open = 0;
+
+   private boolean _closed = false;
+
+   // connections opened before the last recycle are not reused.
+   private volatile int _generation = 0;
+
+   private final ReentrantLock _lock = new ReentrantLock();
+   private final Condition _available = _lock.newCondition();
+
+   private final Timer _evictor;
+
+   // borrow metrics, guarded by _lock.
+   private long _borrows = 0;
+   private long _borrowTimeouts = 0;
+   private long _borrowWaitNanos = 0;
+   private long _maxBorrowWaitNanos = 0;
+   private long _created = 0;
+   private long _destroyed = 0;
+   private long _validations = 0;
+   private long _validationFailures = 0;
+
+   /**
+    * A physical connection together with its prepared statements.
+    */
+   public static class Pooled {
+      private final Connection _connection;
+      private final StatementCache _statements;
+      private final int _generation;
+      private long _lastUsed;
+
+      Pooled (Connection connection, int generation) {
+         this._connection = connection;
+         this._statements = new StatementCache (connection);
+         this._generation = generation;
+         this._lastUsed = System.currentTimeMillis ();
+      }
+
+      /**
+       * @return the physical connection
+       */
+      public Connection connection () {
+         return this._connection;
+      }
+
+      /**
+       * @return the prepared statements of the connection
+       */
+      public StatementCache statements () {
+         return this._statements;
+      }
+
+      void close () {
+         this._statements.close ();
+         try {
+            this._connection.close ();
+         }catch (SQLException e) {
+            // ignored.
+         }//end try
+      }
+   }//end Pooled
+
+   /**
+    * Creates a new instance of ConnectionPool and opens its minimum number
+    * of connections.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param minSize the number of connections kept open when idle
+    * @param maxSize the maximum number of connections open at once
+    * @param idleTimeoutMillis time after which an idle connection above the
+    *        minimum size is closed
+    * @param borrowTimeoutMillis the longest time borrow waits for a free
+    *        connection
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public ConnectionPool (String url, String user, String passwd,
+                          int minSize, int maxSize,
+                          long idleTimeoutMillis, long borrowTimeoutMillis) throws SQLException {
+      if (minSize < 0 || maxSize < 1 || minSize > maxSize)
+         throw new IllegalArgumentException ("invalid pool size " + minSize + ".." + maxSize);
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._minSize = minSize;
+      this._maxSize = maxSize;
+      this._idleTimeoutMillis = idleTimeoutMillis;
+      this._borrowTimeoutMillis = borrowTimeoutMillis;
+
+      for (int i = 0; i < minSize; ++i) {
+         this._idle.push (open ());
+         this._open++;
+      }//end for
+
+      this._evictor = new Timer ("ConnectionPool-evictor", true);
+      this._evictor.schedule (new TimerTask () {
+         public void run () {
+            evictIdle ();
+         }
+      }, EVICTION_PERIOD, EVICTION_PERIOD);
+   }//end ConnectionPool
+
+   /**
+    * Borrows a connection, validated if it was idle for long, opening a new one if none is idle and
+    * the pool is below its maximum size, or waiting for one to be returned
+    * otherwise.
+    *
+    * @return the borrowed connection, to be given back with release
+    * @throws java.sql.SQLException when no connection became available in
+    *         time or a new one could not be opened
+    */
+   public Pooled borrow () throws SQLException {
+      long start = System.nanoTime ();
+      long remaining = TimeUnit.MILLISECONDS.toNanos (this._borrowTimeoutMillis);
+      while (true) {
+         Pooled pooled = null;
+         boolean create = false;
+         this._lock.lock ();
+         try {
+            while (!this._closed && this._idle.isEmpty () && this._open >= this._maxSize) {
+               if (remaining <= 0) {
+                  this._borrowTimeouts++;
+                  throw new SQLException ("Timed out after " + this._borrowTimeoutMillis
+                                          + " ms waiting for a database connection");
+               }//end if
+               remaining = this._available.awaitNanos (remaining);
+            }//end while
+            if (this._closed)
+               throw new SQLException ("Connection pool is closed");
+            if (!this._idle.isEmpty ()) {
+               pooled = this._idle.pop ();
+            }else{
+               // reserve the slot before connecting outside of the lock.
+               this._open++;
+               create = true;
+            }//end if
+         }catch (InterruptedException e) {
+            Thread.currentThread ().interrupt ();
+            throw new SQLException ("Interrupted while waiting for a database connection");
+         }finally{
+            this._lock.unlock ();
+         }//end try
+
+         if (create) {
+            try {
+               pooled = open ();
+            }catch (SQLException e) {
+               discard (null);
+               throw e;
+            }//end try
+         }else{
+            if (schemaChanged (pooled))
+               recycle ();
+            if (pooled._generation != this._generation
+                || System.currentTimeMillis () - pooled._lastUsed > VALIDATION_IDLE_MILLIS && !validate (pooled)) {
+               discard (pooled);
+               continue;
+            }//end if
+         }//end if
+
+         recordBorrow (System.nanoTime () - start);
+         return pooled;
+      }//end while
+   }//end borrow
+
+   /**
+    * Returns a borrowed connection to the pool.  A connection left inside a
+    * transaction is rolled back first, a broken one is closed.
+    *
+    * @param pooled the connection obtained from borrow
+    */
+   public void release (Pooled pooled) {
+      if (pooled == null)
+         return;
+      try {
+         if (!pooled.connection ().getAutoCommit ()) {
+            pooled.connection ().rollback ();
+            pooled.connection ().setAutoCommit (true);
+         }//end if
+      }catch (SQLException e) {
+         discard (pooled);
+         return;
+      }//end try
+
+      if (pooled._generation != this._generation) {
+         discard (pooled);
+         return;
+      }//end if
+      pooled._lastUsed = System.currentTimeMillis ();
+      this._lock.lock ();
+      try {
+         if (this._closed) {
+            this._open--;
+            this._destroyed++;
+            pooled.close ();
+         }else{
+            this._idle.push (pooled);
+            this._available.signal ();
+         }//end if
+      }finally{
+         this._lock.unlock ();
+      }//end try
+   }//end release
+
+   /**
+    * Replaces every connection: idle ones are closed now, borrowed ones
+    * when they are released, so no statement prepared before is used
+    * again.
+    */
+   public void recycle () {
+      this._lock.lock ();
+      try {
+         this._generation++;
+         while (!this._idle.isEmpty ()) {
+            this._idle.pop ().close ();
+            this._open--;
+            this._destroyed++;
+         }//end while
+         this._available.signalAll ();
+      }finally{
+         this._lock.unlock ();
+      }//end try
+   }//end recycle
+
+   /**
+    * @return the number of times the pool was recycled
+    */
+   public int getGeneration () {
+      return this._generation;
+   }//end getGeneration
+
+   /**
+    * Closes every idle connection and stops handing out new ones.
+    * Connections still borrowed are closed when they are released.
+    */
+   public void close () {
+      this._evictor.cancel ();
+      this._lock.lock ();
+      try {
+         this._closed = true;
+         while (!this._idle.isEmpty ()) {
+            this._idle.pop ().close ();
+            this._open--;
+            this._destroyed++;
+         }//end while
+         this._available.signalAll ();
+      }finally{
+         this._lock.unlock ();
+      }//end try
+   }//end close
+
+   /**
+    * @return a one line summary of the pool size and borrow metrics
+    */
+   public String stats () {
+      this._lock.lock ();
+      try {
+         return String.format (
+            "open=%d idle=%d max=%d borrows=%d timeouts=%d avgWaitMs=%.3f maxWaitMs=%.3f created=%d destroyed=%d validationFailures=%d",
+            this._open, this._idle.size (), this._maxSize, this._borrows, this._borrowTimeouts,
+            this._borrows == 0 ? 0.0 : this._borrowWaitNanos / 1e6 / this._borrows,
+            this._maxBorrowWaitNanos / 1e6, this._created, this._destroyed, this._validationFailures);
+      }finally{
+         this._lock.unlock ();
+      }//end try
+   }//end stats
+
+   public long getBorrowCount () {
+      this._lock.lock ();
+      try { return this._borrows; } finally { this._lock.unlock (); }
+   }
+
+   public long getBorrowTimeoutCount () {
+      this._lock.lock ();
+      try { return this._borrowTimeouts; } finally { this._lock.unlock (); }
+   }
+
+   public long getValidationCount () {
+      this._lock.lock ();
+      try { return this._validations; } finally { this._lock.unlock (); }
+   }
+
+   public long getMaxBorrowWaitNanos () {
+      this._lock.lock ();
+      try { return this._maxBorrowWaitNanos; } finally { this._lock.unlock (); }
+   }
+
+   /*
+    * Opens a new physical connection.
+    */
+   private Pooled open () throws SQLException {
+      int generation = this._generation;
+      Connection connection = DriverManager.getConnection (this._url, this._user, this._passwd);
+      try {
+         Statement stmt = connection.createStatement ();
+         try {
+            stmt.execute ("LISTEN " + SCHEMA_CHANNEL);
+         }finally{
+            stmt.close ();
+         }//end try
+      }catch (SQLException e) {
+         // a replica in recovery cannot listen; ReplicaRouter recycles its
+         // pool along with the primary's.
+      }//end try
+      Pooled pooled = new Pooled (connection, generation);
+      this._lock.lock ();
+      try {
+         this._created++;
+      }finally{
+         this._lock.unlock ();
+      }//end try
+      return pooled;
+   }//end open
+
+   /*
+    * Whether the schema change notification reached a connection.  Only
+    * reads what the server already sent, no round trip.
+    */
+   private boolean schemaChanged (Pooled pooled) {
+      try {
+         if (!pooled._connection.isWrapperFor (PGConnection.class))
+            return false;
+         Object[] notifications = pooled._connection.unwrap (PGConnection.class).getNotifications ();
+         return notifications != null && notifications.length > 0;
+      }catch (SQLException e) {
+         // left to the validation or the operation to find out.
+         return false;
+      }//end try
+   }//end schemaChanged
+
+   /*
+    * Runs the validation query on a connection that was idle for long.
+    */
+   private boolean validate (Pooled pooled) {
+      this._lock.lock ();
+      try {
+         this._validations++;
+      }finally{
+         this._lock.unlock ();
+      }//end try
+      try {
+         ResultSet rs = pooled.statements ().prepare (VALIDATION_QUERY).executeQuery ();
+         rs.close ();
+         return true;
+      }catch (SQLException e) {
+         this._lock.lock ();
+         try {
+            this._validationFailures++;
+         }finally{
+            this._lock.unlock ();
+         }//end try
+         return false;
+      }//end try
+   }//end validate
+
+   /*
+    * Closes a connection that is no longer usable and frees its slot, or
+    * only frees the slot when the connection could not be opened.
+    */
+   private void discard (Pooled pooled) {
+      if (pooled != null)
+         pooled.close ();
+      this._lock.lock ();
+      try {
+         this._open--;
+         if (pooled != null)
+            this._destroyed++;
+         this._available.signal ();
+      }finally{
+         this._lock.unlock ();
+      }//end try
+   }//end discard
+
+   private void recordBorrow (long waitNanos) {
+      this._lock.lock ();
+      try {
+         this._borrows++;
+         this._borrowWaitNanos += waitNanos;
+         if (waitNanos > this._maxBorrowWaitNanos)
+            this._maxBorrowWaitNanos = waitNanos;
+      }finally{
+         this._lock.unlock ();
+      }//end try
+   }//end recordBorrow
+
+   /*
+    * Closes connections that stayed idle longer than the idle timeout, as
+    * long as the pool stays at or above its minimum size.  The least
+    * recently used connections sit at the tail of the idle list.
+    */
+   private void evictIdle () {
+      long cutoff = System.currentTimeMillis () - this._idleTimeoutMillis;
+      this._lock.lock ();
+      try {
+         Iterator<Pooled> it = this._idle.descendingIterator ();
+         while (it.hasNext () && this._open > this._minSize) {
+            Pooled pooled = it.next ();
+            if (pooled._lastUsed > cutoff)
+               break;
+            it.remove ();
+            pooled.close ();
+            this._open--;
+            this._destroyed++;
+         }//end while
+      }finally{
+         this._lock.unlock ();
+      }//end try
+   }//end evictIdle
+}//end ConnectionPool
@@ -0,0 +1,18 @@
+/**
+ * Values of CONNECTION_USR.status.
+ *
+ */
+public final class ConnectionStatus {
+
+   // the connection was requested by userId and awaits connectionId.
+   public static final String PENDING = "Request";
+
+   // both users are connected.
+   public static final String ACCEPTED = "Accept";
+
+   // connectionId turned the request down.
+   public static final String REJECTED = "Reject";
+
+   private ConnectionStatus () {
+   }
+}//end ConnectionStatus
@@ -0,0 +1,49 @@
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A row of the EDUCATIONAL_DETAILS table.
+ *
+ */
+public class Education {
+
+   // column list matching MAPPER, to be used instead of SELECT *.
+   public static final String COLUMNS = "id, version, userId, instituitionName, major, degree, startdate, enddate";
+
+   public static final RowMapper<Education> MAPPER = new RowMapper<Education>() {
+      public Education map (ResultSet rs) throws SQLException {
+         return new Education (rs.getInt (1), rs.getInt (2),
+                               ProfNetwork.trimmed (rs.getString (3)),
+                               ProfNetwork.trimmed (rs.getString (4)),
+                               ProfNetwork.trimmed (rs.getString (5)),
+                               ProfNetwork.trimmed (rs.getString (6)),
+                               rs.getDate (7), rs.getDate (8));
+      }
+   };
+
+   // surrogate key of the row.
+   public final int id;
+
+   // incremented by every update, for optimistic concurrency control.
+   public final int version;
+
+   public final String userId;
+   public final String instituitionName;
+   public final String major;
+   public final String degree;
+   public final Date startDate;
+   public final Date endDate;
+
+   public Education (int id, int version, String userId, String instituitionName, String major, String degree,
+                     Date startDate, Date endDate) {
+      this.id = id;
+      this.version = version;
+      this.userId = userId;
+      this.instituitionName = instituitionName;
+      this.major = major;
+      this.degree = degree;
+      this.startDate = startDate;
+      this.endDate = endDate;
+   }//end Education
+}//end Education
@@ -0,0 +1,61 @@
+import java.sql.SQLException;
+
+/**
+ * This class hands out unique integer ids from a database sequence using
+ * the hi/lo scheme.  Each nextval of the sequence (the "hi" value) reserves
+ * a whole block of blockSize ids, hi * blockSize up to
+ * hi * blockSize + blockSize - 1, which are then given out from memory.
+ * Only one round trip is made per block, however many rows the target table
+ * holds, and concurrent callers never receive the same id.
+ *
+ * The block size must stay the same for a given database, otherwise blocks
+ * reserved before and after the change overlap.
+ *
+ */
+public class IdAllocator {
+
+   // block size used for MESSAGE.msgId, see MESSAGE_MSGID_SEQ in load_data.sql.
+   public static final int MESSAGE_BLOCK_SIZE = 50;
+
+   private final ProfNetwork _esql;
+   private final String _sequence;
+   private final int _blockSize;
+
+   // next id to hand out and the first id past the current block.
+   private long _next = 0;
+   private long _limit = 0;
+
+   /**
+    * Creates a new instance of IdAllocator
+    *
+    * @param esql the database access object used to call nextval
+    * @param sequence name of the DB sequence holding the hi value
+    * @param blockSize the number of ids reserved per nextval
+    */
+   public IdAllocator (ProfNetwork esql, String sequence, int blockSize) {
+      if (blockSize < 1)
+         throw new IllegalArgumentException ("invalid block size " + blockSize);
+      this._esql = esql;
+      this._sequence = sequence;
+      this._blockSize = blockSize;
+   }//end IdAllocator
+
+   /**
+    * Returns the next free id, reserving a new block from the sequence when
+    * the current one is used up.
+    *
+    * @return an id not handed out before
+    * @throws java.sql.SQLException when a new block could not be reserved
+    */
+   public synchronized int next () throws SQLException {
+      if (this._next >= this._limit) {
+         long hi = this._esql.getNextSeqVal (this._sequence);
+         this._next = hi * this._blockSize;
+         this._limit = this._next + this._blockSize;
+      }//end if
+      long id = this._next++;
+      if (id > Integer.MAX_VALUE)
+         throw new SQLException ("Sequence " + this._sequence + " exhausted the integer id range");
+      return (int) id;
+   }//end next
+}//end IdAllocator
@@ -0,0 +1,46 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * A row of the MESSAGE table.
+ *
+ */
+public class Message {
+
+   // bits of deleteStatus.
+   public static final int DELETED_BY_SENDER = 1;
+   public static final int DELETED_BY_RECEIVER = 2;
+
+   // column list matching MAPPER, to be used instead of SELECT *.
+   public static final String COLUMNS = "msgId, senderId, receiverId, contents, sendTime, deleteStatus, status";
+
+   public static final RowMapper<Message> MAPPER = new RowMapper<Message>() {
+      public Message map (ResultSet rs) throws SQLException {
+         return new Message (rs.getInt (1), ProfNetwork.trimmed (rs.getString (2)),
+                             ProfNetwork.trimmed (rs.getString (3)),
+                             ProfNetwork.trimmed (rs.getString (4)), rs.getTimestamp (5),
+                             rs.getInt (6), ProfNetwork.trimmed (rs.getString (7)));
+      }
+   };
+
+   public final int msgId;
+   public final String senderId;
+   public final String receiverId;
+   public final String contents;
+   public final Timestamp sendTime;
+   // 1 when deleted by the sender, 2 by the receiver, 3 by both.
+   public final int deleteStatus;
+   public final String status;
+
+   public Message (int msgId, String senderId, String receiverId, String contents,
+                   Timestamp sendTime, int deleteStatus, String status) {
+      this.msgId = msgId;
+      this.senderId = senderId;
+      this.receiverId = receiverId;
+      this.contents = contents;
+      this.sendTime = sendTime;
+      this.deleteStatus = deleteStatus;
+      this.status = status;
+   }//end Message
+}//end Message
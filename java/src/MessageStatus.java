@@ -0,0 +1,18 @@
+/**
+ * Values of MESSAGE.status, in the order a message goes through them.
+ *
+ */
+public final class MessageStatus {
+
+   // accepted by MessageWriter, not yet committed.  Never stored.
+   public static final String QUEUED = "Queued";
+
+   // committed, visible in the receiver's inbox.
+   public static final String DELIVERED = "Delivered";
+
+   // shown to the receiver.
+   public static final String READ = "Read";
+
+   private MessageStatus () {
+   }
+}//end MessageStatus
@@ -0,0 +1,280 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class writes new messages behind the senders' backs.  send() only
+ * allocates the message id and puts the message in a bounded queue; a
+ * single writer thread takes everything queued at once and inserts it as
+ * one batch in one transaction.  While a batch commits, new messages pile
+ * up and go out together in the next one, so under load many messages
+ * share a commit (group commit) and a sender never waits for one.
+ *
+ * When the queue is full send() waits for room, up to a timeout, so a
+ * writer falling behind slows senders down instead of growing the queue.
+ *
+ * A message is acknowledged through its Delivery: QUEUED while in memory,
+ * DELIVERED once its row is committed.  Only then is it durable; messages
+ * still queued when the JVM dies are lost, which is why close() writes
+ * everything queued before returning.
+ *
+ */
+public class MessageWriter {
+
+   // default number of messages waiting at most.
+   public static final int DEFAULT_CAPACITY = 10000;
+
+   // default number of messages written per transaction at most.
+   public static final int DEFAULT_MAX_BATCH = 500;
+
+   // default time send() waits for room in a full queue.
+   public static final long DEFAULT_OFFER_TIMEOUT_MILLIS = 5000L;
+
+   // longest message, MESSAGE.contents is varchar(500).
+   public static final int MAX_CONTENTS_LENGTH = 500;
+
+   static final String INSERT =
+      "INSERT INTO MESSAGE(msgId,senderId,receiverId,contents,sendTime,deleteStatus,status) VALUES (?,?,?,?,?,?,?)";
+
+   /**
+    * The acknowledgement of one message.
+    */
+   public static class Delivery {
+      public final int msgId;
+
+      // where a session reads the message from once it is committed.
+      final ReplicaRouter.Position position = new ReplicaRouter.Position ();
+
+      private final CountDownLatch _done = new CountDownLatch (1);
+      private volatile String _status = MessageStatus.QUEUED;
+      private volatile SQLException _error = null;
+
+      Delivery (int msgId) {
+         this.msgId = msgId;
+      }
+
+      /**
+       * @return MessageStatus.QUEUED or DELIVERED, or null if writing the
+       *         message failed
+       */
+      public String getStatus () {
+         return this._status;
+      }
+
+      /**
+       * Waits until the message is committed.
+       *
+       * @param timeoutMillis the longest time to wait
+       * @return true if the message is committed, false on timeout
+       * @throws java.sql.SQLException when the message could not be written
+       * @throws java.lang.InterruptedException when interrupted while waiting
+       */
+      public boolean await (long timeoutMillis) throws SQLException, InterruptedException {
+         if (!this._done.await (timeoutMillis, TimeUnit.MILLISECONDS))
+            return false;
+         if (this._error != null)
+            throw this._error;
+         return true;
+      }
+
+      void delivered (long lsn) {
+         this.position.set (lsn);
+         this._status = MessageStatus.DELIVERED;
+         this._done.countDown ();
+      }
+
+      void failed (SQLException error, long lsn) {
+         this.position.set (lsn);
+         this._error = error;
+         this._status = null;
+         this._done.countDown ();
+      }
+   }//end Delivery
+
+   /**
+    * A queued message: its INSERT parameters and its acknowledgement.
+    */
+   private static class Pending {
+      final Object[] row;
+      final Delivery delivery;
+
+      Pending (Object[] row, Delivery delivery) {
+         this.row = row;
+         this.delivery = delivery;
+      }
+   }//end Pending
+
+   private final ProfNetwork _esql;
+   private final BlockingQueue<Pending> _queue;
+   private final int _maxBatch;
+   private final long _offerTimeoutMillis;
+   private final Thread _writer;
+   private volatile boolean _closed = false;
+
+   // held shared by send() from its closed check to its enqueue, and
+   // exclusively by close() to set _closed, so no message is queued
+   // after close() has taken its last look at the queue.
+   private final ReentrantReadWriteLock _closing = new ReentrantReadWriteLock ();
+
+   // number of messages and transactions written so far.
+   private volatile long _written = 0;
+   private volatile long _batches = 0;
+
+   /**
+    * Creates a new instance of MessageWriter and starts its writer thread.
+    *
+    * @param esql the database access object used to write
+    * @param capacity the number of messages waiting at most
+    * @param maxBatch the number of messages written per transaction at most
+    * @param offerTimeoutMillis how long send() waits for room in a full queue
+    */
+   public MessageWriter (ProfNetwork esql, int capacity, int maxBatch, long offerTimeoutMillis) {
+      this._esql = esql;
+      this._queue = new ArrayBlockingQueue<Pending>(capacity);
+      this._maxBatch = maxBatch;
+      this._offerTimeoutMillis = offerTimeoutMillis;
+      this._writer = new Thread (new Runnable () {
+         public void run () {
+            writeLoop ();
+         }
+      }, "message-writer");
+      this._writer.setDaemon (true);
+      this._writer.start ();
+   }//end MessageWriter
+
+   /**
+    * Queues a new message.
+    *
+    * @param senderId the sender
+    * @param receiverId the receiver
+    * @param contents the text of the message
+    * @return the acknowledgement of the message, QUEUED
+    * @throws java.sql.SQLException when the contents are empty or too long,
+    *         no message id could be allocated, or the queue stayed full
+    *         for the whole offer timeout
+    */
+   public Delivery send (String senderId, String receiverId, String contents) throws SQLException {
+      // checked here, a row failing in the batch is only seen by the writer.
+      if (contents == null || contents.isEmpty ())
+         throw new SQLException ("A message cannot be empty");
+      if (contents.length () > MAX_CONTENTS_LENGTH)
+         throw new SQLException ("Messages are at most " + MAX_CONTENTS_LENGTH + " characters long");
+      this._closing.readLock ().lock ();
+      try {
+         if (this._closed)
+            throw new SQLException ("Message writer is closed");
+         int msgId = this._esql.nextMessageId ();
+         Delivery delivery = new Delivery (msgId);
+         Object[] row = { msgId, senderId, receiverId, contents,
+                          new Timestamp (System.currentTimeMillis ()), 0, MessageStatus.DELIVERED };
+         try {
+            if (!this._queue.offer (new Pending (row, delivery), this._offerTimeoutMillis, TimeUnit.MILLISECONDS))
+               throw new SQLException ("Too many messages waiting to be written, try again later");
+         }catch (InterruptedException e) {
+            Thread.currentThread ().interrupt ();
+            throw new SQLException ("Interrupted while queueing a message");
+         }//end try
+         return delivery;
+      }finally{
+         this._closing.readLock ().unlock ();
+      }//end try
+   }//end send
+
+   /**
+    * Stops accepting messages, then returns once every message queued has
+    * been written.
+    */
+   public void close () {
+      // waits for the senders between their check and their enqueue; the
+      // writer keeps draining meanwhile, so a full queue makes room.
+      this._closing.writeLock ().lock ();
+      try {
+         this._closed = true;
+      }finally{
+         this._closing.writeLock ().unlock ();
+      }//end try
+      try {
+         this._writer.join ();
+      }catch (InterruptedException e) {
+         Thread.currentThread ().interrupt ();
+      }//end try
+      // messages the writer left when it stopped, e.g. after an error.
+      List<Pending> rest = new ArrayList<Pending>();
+      while (this._queue.drainTo (rest, this._maxBatch) > 0) {
+         write (rest);
+         rest.clear ();
+      }//end while
+   }//end close
+
+   /**
+    * @return the number of messages waiting
+    */
+   public int getQueued () {
+      return this._queue.size ();
+   }//end getQueued
+
+   /**
+    * @return a summary of the writer's activity, e.g. for logging
+    */
+   public String stats () {
+      return "queued=" + this._queue.size () + " written=" + this._written + " batches=" + this._batches;
+   }//end stats
+
+   /*
+    * Writes whatever is queued, batch after batch, until closed.
+    */
+   private void writeLoop () {
+      QueryMetrics.setOperation ("MessageWriter");
+      List<Pending> batch = new ArrayList<Pending>();
+      while (!this._closed || !this._queue.isEmpty ()) {
+         try {
+            Pending first = this._queue.poll (100, TimeUnit.MILLISECONDS);
+            if (first == null)
+               continue;
+            batch.add (first);
+         }catch (InterruptedException e) {
+            continue;
+         }//end try
+         this._queue.drainTo (batch, this._maxBatch - 1);
+         write (batch);
+         batch.clear ();
+      }//end while
+   }//end writeLoop
+
+   /*
+    * Inserts a batch in one transaction.  When it fails, the messages are
+    * retried one by one so that only the offending ones fail.
+    */
+   private void write (List<Pending> batch) {
+      try {
+         insert (batch);
+      }catch (SQLException e) {
+         if (batch.size () == 1) {
+            // the messages written before it stay readable.
+            batch.get (0).delivery.failed (e, ReplicaRouter.lastWrite ());
+            System.err.println ("Message " + batch.get (0).delivery.msgId + " not delivered: " + e.getMessage ());
+            return;
+         }//end if
+         for (Pending pending : batch)
+            write (java.util.Collections.singletonList (pending));
+      }//end try
+   }//end write
+
+   private void insert (List<Pending> batch) throws SQLException {
+      UnitOfWork work = this._esql.beginWork ();
+      for (Pending pending : batch)
+         work.add (INSERT, pending.row);
+      work.commit ();
+      long lsn = ReplicaRouter.lastWrite ();
+      this._written += batch.size ();
+      this._batches++;
+      for (Pending pending : batch)
+         pending.delivery.delivered (lsn);
+   }//end insert
+}//end MessageWriter
@@ -0,0 +1,314 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class indexes the userId and name of every user in memory so people
+ * can be searched by prefix or approximately, without LIKE '%x%' scans of
+ * USR.
+ *
+ * Two structures are kept, both case insensitive:
+ *
+ *  - a sorted map from keys to users, where the keys of a user are their
+ *    userId, their full name and each word of the name.  A prefix search
+ *    is a range scan of the map.
+ *  - an inverted index from trigrams to users, built like pg_trgm does
+ *    (each word padded with two spaces in front and one behind).  A fuzzy
+ *    search ranks users by the share of the query's trigrams found in
+ *    their userId or name, much like pg_trgm's word_similarity.
+ *
+ * Prefix matches always rank above fuzzy ones.  Both passes are bounded
+ * so a keystroke never costs a walk over every user: the prefix scan
+ * stops after MAX_PREFIX_KEYS keys, and the fuzzy pass only runs from
+ * MIN_FUZZY_LENGTH characters and draws at most MAX_FUZZY_CANDIDATES
+ * candidates, from the rarest trigrams of the query.
+ *
+ */
+public class PeopleIndex {
+
+   // smallest share of the query's trigrams accepted as a fuzzy match.
+   public static final double SIMILARITY_THRESHOLD = 0.3;
+
+   // keys looked at by one prefix scan, bounding the cost of very short
+   // prefixes.
+   private static final int MAX_PREFIX_KEYS = 5000;
+
+   // shortest query searched approximately; shorter ones match by prefix
+   // only.
+   static final int MIN_FUZZY_LENGTH = 3;
+
+   // users scored by one fuzzy search at most.
+   static final int MAX_FUZZY_CANDIDATES = 2000;
+
+   /**
+    * A user found by a search.  Scores are in (0, 1], from 0.5 up for a
+    * prefix match and below 0.5 for a fuzzy one.
+    */
+   public static class Match {
+      public final String userId;
+      public final String name;
+      public final double score;
+
+      // connections between the searching user and this one, -1 when
+      // unknown or too far.
+      public final int distance;
+
+      public Match (String userId, String name, double score, int distance) {
+         this.userId = userId;
+         this.name = name;
+         this.score = score;
+         this.distance = distance;
+      }
+   }//end Match
+
+   // best score first, then by userId.
+   static final Comparator<Match> BY_SCORE = new Comparator<Match>() {
+      public int compare (Match a, Match b) {
+         if (a.score != b.score)
+            return a.score > b.score ? -1 : 1;
+         return a.userId.compareTo (b.userId);
+      }
+   };
+
+   private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock ();
+
+   // indexed name of each user, to unindex it on change.
+   private final Map<String, String> _names = new HashMap<String, String>();
+
+   // prefix keys to the users having them.
+   private final TreeMap<String, Set<String>> _keys = new TreeMap<String, Set<String>>();
+
+   // trigrams to the users having them.
+   private final Map<String, Set<String>> _trigrams = new HashMap<String, Set<String>>();
+
+   /**
+    * Creates an empty index.
+    */
+   public PeopleIndex () {
+   }//end PeopleIndex
+
+   /**
+    * Indexes a user, replacing what was indexed for them before.
+    *
+    * @param userId the user
+    * @param name the name of the user, may be null
+    */
+   public void put (String userId, String name) {
+      this._lock.writeLock ().lock ();
+      try {
+         if (this._names.containsKey (userId))
+            unindex (userId, this._names.get (userId));
+         this._names.put (userId, name);
+         for (String key : keys (userId, name))
+            add (this._keys, key, userId);
+         for (String trigram : trigrams (userId, name))
+            add (this._trigrams, trigram, userId);
+      }finally{
+         this._lock.writeLock ().unlock ();
+      }//end try
+   }//end put
+
+   /**
+    * Removes a user from the index.
+    *
+    * @param userId the user
+    */
+   public void remove (String userId) {
+      this._lock.writeLock ().lock ();
+      try {
+         if (this._names.containsKey (userId))
+            unindex (userId, this._names.remove (userId));
+      }finally{
+         this._lock.writeLock ().unlock ();
+      }//end try
+   }//end remove
+
+   /**
+    * @param userId a userId, exactly as stored
+    * @return the user as a perfect match, or null when not indexed
+    */
+   public Match exact (String userId) {
+      this._lock.readLock ().lock ();
+      try {
+         if (userId == null || !this._names.containsKey (userId))
+            return null;
+         return new Match (userId, this._names.get (userId), 1.0, -1);
+      }finally{
+         this._lock.readLock ().unlock ();
+      }//end try
+   }//end exact
+
+   /**
+    * Finds the users whose userId or name starts with the query, or
+    * failing that resembles it.
+    *
+    * @param query the text typed, a userId or name or part of one
+    * @param limit the maximum number of matches returned
+    * @return the best matches, best first (distance is left at -1)
+    */
+   public List<Match> search (String query, int limit) {
+      String q = normalize (query);
+      if (q.isEmpty () || limit < 1)
+         return Collections.emptyList ();
+      Map<String, Double> scores = new HashMap<String, Double>();
+
+      this._lock.readLock ().lock ();
+      try {
+         int scanned = 0;
+         for (Map.Entry<String, Set<String>> entry : this._keys.subMap (q, q + Character.MAX_VALUE).entrySet ()) {
+            if (++scanned > MAX_PREFIX_KEYS)
+               break;
+            double score = 0.5 + 0.5 * q.length () / entry.getKey ().length ();
+            for (String userId : entry.getValue ())
+               best (scores, userId, score);
+         }//end for
+
+         if (q.length () >= MIN_FUZZY_LENGTH)
+            fuzzy (q, scores);
+
+         // keep the best `limit` in a heap whose head is the worst kept.
+         PriorityQueue<Match> top = new PriorityQueue<Match>(limit + 1, Collections.reverseOrder (BY_SCORE));
+         for (Map.Entry<String, Double> entry : scores.entrySet ()) {
+            top.add (new Match (entry.getKey (), this._names.get (entry.getKey ()), entry.getValue (), -1));
+            if (top.size () > limit)
+               top.poll ();
+         }//end for
+         List<Match> matches = new ArrayList<Match>(top);
+         Collections.sort (matches, BY_SCORE);
+         return matches;
+      }finally{
+         this._lock.readLock ().unlock ();
+      }//end try
+   }//end search
+
+   /*
+    * Scores the users resembling the query.  A user reaching the threshold
+    * shares at least `needed` of the query's trigrams, so it is in one of
+    * the rarest (trigrams - needed + 1) posting lists: candidates are drawn
+    * from those alone, up to MAX_FUZZY_CANDIDATES, then each is checked
+    * against every posting list.  Called with the read lock held.
+    */
+   private void fuzzy (String q, Map<String, Double> scores) {
+      Set<String> trigrams = trigrams (q, null);
+      List<Set<String>> postings = new ArrayList<Set<String>>(trigrams.size ());
+      for (String trigram : trigrams) {
+         Set<String> users = this._trigrams.get (trigram);
+         postings.add (users == null ? Collections.<String>emptySet () : users);
+      }//end for
+      Collections.sort (postings, BY_SIZE);
+      int needed = (int) Math.ceil (SIMILARITY_THRESHOLD * trigrams.size ());
+      Set<String> candidates = new HashSet<String>();
+      for (int i = 0; i <= postings.size () - needed && candidates.size () < MAX_FUZZY_CANDIDATES; ++i) {
+         for (String userId : postings.get (i)) {
+            candidates.add (userId);
+            if (candidates.size () >= MAX_FUZZY_CANDIDATES)
+               break;
+         }//end for
+      }//end for
+      for (String userId : candidates) {
+         int shared = 0;
+         for (Set<String> users : postings)
+            if (users.contains (userId))
+               ++shared;
+         double similarity = (double) shared / trigrams.size ();
+         if (similarity >= SIMILARITY_THRESHOLD)
+            best (scores, userId, 0.5 * similarity);
+      }//end for
+   }//end fuzzy
+
+   // smallest posting list first.
+   private static final Comparator<Set<String>> BY_SIZE = new Comparator<Set<String>>() {
+      public int compare (Set<String> a, Set<String> b) {
+         return a.size () < b.size () ? -1 : a.size () == b.size () ? 0 : 1;
+      }
+   };
+
+   /**
+    * @return the number of users indexed
+    */
+   public int size () {
+      this._lock.readLock ().lock ();
+      try {
+         return this._names.size ();
+      }finally{
+         this._lock.readLock ().unlock ();
+      }//end try
+   }//end size
+
+   /*
+    * Removes the keys and trigrams of a user.  Called with the write lock
+    * held.
+    */
+   private void unindex (String userId, String name) {
+      for (String key : keys (userId, name))
+         delete (this._keys, key, userId);
+      for (String trigram : trigrams (userId, name))
+         delete (this._trigrams, trigram, userId);
+   }//end unindex
+
+   private static Set<String> keys (String userId, String name) {
+      Set<String> keys = new HashSet<String>();
+      keys.add (normalize (userId));
+      String n = normalize (name);
+      if (!n.isEmpty ()) {
+         keys.add (n);
+         Collections.addAll (keys, n.split (" "));
+      }//end if
+      return keys;
+   }//end keys
+
+   /*
+    * The trigrams of each word of the userId and name, padded like
+    * pg_trgm.
+    */
+   private static Set<String> trigrams (String userId, String name) {
+      Set<String> trigrams = new HashSet<String>();
+      String text = normalize (userId) + " " + normalize (name);
+      for (String word : text.split (" ")) {
+         if (word.isEmpty ())
+            continue;
+         String padded = "  " + word + " ";
+         for (int i = 0; i + 3 <= padded.length (); ++i)
+            trigrams.add (padded.substring (i, i + 3));
+      }//end for
+      return trigrams;
+   }//end trigrams
+
+   /*
+    * Lower case with single spaces between words.
+    */
+   static String normalize (String text) {
+      if (text == null)
+         return "";
+      return text.trim ().replaceAll ("\\s+", " ").toLowerCase ();
+   }//end normalize
+
+   private static void best (Map<String, Double> scores, String userId, double score) {
+      Double current = scores.get (userId);
+      if (current == null || current < score)
+         scores.put (userId, score);
+   }//end best
+
+   private static void add (Map<String, Set<String>> index, String key, String userId) {
+      Set<String> users = index.get (key);
+      if (users == null) {
+         users = new HashSet<String>(2);
+         index.put (key, users);
+      }//end if
+      users.add (userId);
+   }//end add
+
+   private static void delete (Map<String, Set<String>> index, String key, String userId) {
+      Set<String> users = index.get (key);
+      if (users != null && users.remove (userId) && users.isEmpty ())
+         index.remove (key);
+   }//end delete
+}//end PeopleIndex
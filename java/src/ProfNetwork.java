@@ -9,13 +9,14 @@
  * Target DBMS: 'Postgres'
  *
  */
-import java.util.Calendar;
-import java.text.ParsePosition;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -23,9 +24,18 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 /**
  * This class defines a simple embedded SQL utility class that is designed to
  * work with PostgreSQL JDBC drivers.
@@ -33,8 +43,43 @@ import java.util.Iterator;
  */
 public class ProfNetwork {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections shared by every session.
+   private ConnectionPool _pool = null;
+
+   // routes reads to the replicas listed in profnetwork.replicas, null
+   // without replicas.
+   private ReplicaRouter _replicas = null;
+
+   // allocator of MESSAGE.msgId values, backed by MESSAGE_MSGID_SEQ.
+   private IdAllocator _messageIds = null;
+
+   // accepted connections kept in memory, loaded on first use.
+   private ConnectionGraph _graph = null;
+
+   // writer of new messages, started on first use.
+   private MessageWriter _messages = null;
+
+   // userIds and names of USR indexed for people search, loaded on first use.
+   private PeopleIndex _people = null;
+
+   // latency, rows and errors of every query, per operation.
+   private final QueryMetrics _metrics = new QueryMetrics(
+      Long.getLong("profnetwork.metrics.slowQueryMs", 500L).longValue(), System.err);
+
+   // recently read profiles, sized by the profnetwork.profile.* system
+   // properties.
+   private final ProfileCache _profiles = new ProfileCache(
+      Integer.getInteger("profnetwork.profile.cacheSize", ProfileCache.DEFAULT_CAPACITY).intValue(),
+      Long.getLong("profnetwork.profile.ttlMs", ProfileCache.DEFAULT_TTL_MILLIS).longValue());
+
+   // threads fetching the parts of a profile concurrently.
+   private ExecutorService _fetcher = null;
+
+   // number of rows a streaming query reads from the server at a time.
+   private int _fetchSize = Integer.getInteger("profnetwork.cursor.fetchSize", 500).intValue();
+
+   // number of messages shown per page by the inbox and sent views.
+   static final int PAGE_SIZE = 10;
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -58,8 +103,27 @@ public class ProfNetwork {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // open the pool of physical connections, sized by the
+         // profnetwork.pool.* system properties.
+         this._pool = new ConnectionPool(url, user, passwd,
+            Integer.getInteger("profnetwork.pool.min", 1).intValue(),
+            Integer.getInteger("profnetwork.pool.max", 8).intValue(),
+            Long.getLong("profnetwork.pool.idleTimeoutMs", 300000L).longValue(),
+            Long.getLong("profnetwork.pool.borrowTimeoutMs", 5000L).longValue());
+         String replicas = System.getProperty("profnetwork.replicas");
+         if (replicas != null && !replicas.trim().isEmpty())
+            this._replicas = openReplicas(replicas, dbname, user, passwd);
+         this._messageIds = new IdAllocator(this, "MESSAGE_MSGID_SEQ", IdAllocator.MESSAGE_BLOCK_SIZE);
+         this._metrics.register();
+         if (Integer.getInteger("profnetwork.metrics.httpPort") != null)
+            this._metrics.serveHttp(Integer.getInteger("profnetwork.metrics.httpPort").intValue());
+         this._fetcher = Executors.newFixedThreadPool(2, new ThreadFactory() {
+            public Thread newThread (Runnable task) {
+               Thread thread = new Thread(task, "profile-fetcher");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -68,6 +132,38 @@ public class ProfNetwork {
       }//end catch
    }//end ProfNetwork
 
+   /*
+    * Opens a pool per replica of profnetwork.replicas, a comma separated
+    * list of host:port, each sized like the primary's but without
+    * connections opened upfront, so a replica down does not stop the
+    * program.
+    */
+   private ReplicaRouter openReplicas (String replicas, String dbname, String user, String passwd) throws SQLException {
+      List<String> urls = new ArrayList<String>();
+      List<ConnectionPool> pools = new ArrayList<ConnectionPool>();
+      for (String replica : replicas.split(",")) {
+         String url = "jdbc:postgresql://" + replica.trim() + "/" + dbname;
+         urls.add(url);
+         pools.add(new ConnectionPool(url, user, passwd, 0,
+            Integer.getInteger("profnetwork.pool.max", 8).intValue(),
+            Long.getLong("profnetwork.pool.idleTimeoutMs", 300000L).longValue(),
+            Long.getLong("profnetwork.pool.borrowTimeoutMs", 5000L).longValue()));
+      }//end for
+      System.out.println("Reading from replicas: " + urls);
+      return new ReplicaRouter(this._pool, urls, pools,
+         Long.getLong("profnetwork.replica.maxLagMs", ReplicaRouter.DEFAULT_MAX_LAG_MILLIS).longValue());
+   }//end openReplicas
+
+   /*
+    * The pool a read-only query goes to: a replica when one is current
+    * enough for the calling session, otherwise the primary.  Only the
+    * parameterized query methods use it; the ones taking literal SQL stay
+    * on the primary, they are also used for statements like setval.
+    */
+   private ConnectionPool readPool () {
+      return this._replicas == null ? this._pool : this._replicas.forRead ();
+   }//end readPool
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -76,16 +172,98 @@ public class ProfNetwork {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      long start = System.nanoTime ();
+      int rows = -1;
+      ConnectionPool.Pooled pooled = this._pool.borrow ();
+      try{
+         // creates a statement object
+         Statement stmt = pooled.connection ().createStatement ();
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+         // issues the update instruction
+         rows = stmt.executeUpdate (sql);
+         ReplicaRouter.noteWrite (pooled.connection ());
 
-      // close the instruction
-      stmt.close ();
+         // close the instruction
+         stmt.close ();
+      }finally{
+         this._pool.release (pooled);
+         this._metrics.recordLiteral (sql, start, rows);
+      }//end try
    }//end executeUpdate
 
+   /**
+    * Parameterized variant of executeUpdate.  The statement is prepared once
+    * per connection and reused, the parameters are bound to its '?'
+    * placeholders in order.
+    *
+    * @param sql the input SQL string with '?' placeholders
+    * @param params the values bound to the placeholders
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rows = -1;
+      ConnectionPool.Pooled pooled = this._pool.borrow ();
+      try{
+         PreparedStatement stmt = pooled.statements ().prepare (sql);
+         bindParameters (stmt, params);
+
+         // issues the update instruction
+         rows = stmt.executeUpdate ();
+         ReplicaRouter.noteWrite (pooled.connection ());
+         return rows;
+      }finally{
+         this._pool.release (pooled);
+         this._metrics.record (sql, start, rows);
+      }//end try
+   }//end executeUpdate
+
+   /**
+    * Variant of executeUpdate for statements with a RETURNING clause: runs
+    * on the primary, like every write, and maps the rows returned.
+    *
+    * @param sql the input SQL string with '?' placeholders
+    * @param mapper maps each returned row
+    * @param params the values bound to the placeholders
+    * @return the rows returned, mapped
+    * @throws java.sql.SQLException when update failed
+    */
+   public <T> List<T> updateReturning (String sql, RowMapper<T> mapper, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rows = -1;
+      ConnectionPool.Pooled pooled = this._pool.borrow ();
+      try{
+         PreparedStatement stmt = pooled.statements ().prepare (sql);
+         bindParameters (stmt, params);
+
+         ResultSet rs = stmt.executeQuery ();
+         List<T> result = new ArrayList<T>();
+         try{
+            while (rs.next ())
+               result.add (mapper.map (rs));
+            rows = result.size ();
+         }finally{
+            rs.close ();
+         }//end try
+         ReplicaRouter.noteWrite (pooled.connection ());
+         return result;
+      }finally{
+         this._pool.release (pooled);
+         this._metrics.record (sql, start, rows);
+      }//end try
+   }//end updateReturning
+
+   /**
+    * Starts a unit of work: statements added to it run together, batched
+    * and in one transaction, when it is committed.
+    *
+    * @return an empty unit of work
+    */
+   public UnitOfWork beginWork () {
+      return new UnitOfWork (this._pool, this._metrics);
+   }//end beginWork
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
@@ -96,39 +274,95 @@ public class ProfNetwork {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+      long start = System.nanoTime ();
+      int rowCount = -1;
+      ConnectionPool.Pooled pooled = this._pool.borrow ();
+      try{
+         // creates a statement object
+         Statement stmt = pooled.connection ().createStatement ();
 
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
 
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-	 if(outputHeader){
-	    for(int i = 1; i <= numCol; i++){
-		System.out.print(rsmd.getColumnName(i) + "\t");
-	    }
-	    System.out.println();
-	    outputHeader = false;
-	 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
+         rowCount = render (rs, ResultRenderer.Format.TABLE, console ());
+         stmt.close ();
+         return rowCount;
+      }finally{
+         this._pool.release (pooled);
+         this._metrics.recordLiteral (query, start, rowCount);
+      }//end try
    }//end executeQuery
 
+   /**
+    * Parameterized variant of executeQueryAndPrintResult.  The query is
+    * prepared once per connection and reused, the parameters are bound to
+    * its '?' placeholders in order.  The rows are streamed from a server
+    * side cursor rather than buffered by the driver.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      return exportQuery (console (), ResultRenderer.Format.TABLE, query, params);
+   }//end executeQueryAndPrintResult
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and
+    * write its results as a table, CSV or JSON.  The rows are streamed
+    * from a server side cursor into a buffered writer, so a result of any
+    * size is written in constant memory.
+    *
+    * @param out where the rows are written; flushed, not closed
+    * @param format the output format
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders
+    * @return the number of rows written
+    * @throws java.sql.SQLException when failed to execute the query or to
+    *         write its results
+    */
+   public int exportQuery (Writer out, ResultRenderer.Format format, String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rowCount = -1;
+      ConnectionPool pool = readPool ();
+      ConnectionPool.Pooled pooled = pool.borrow ();
+      try{
+         // rows are written as they are fetched, fetchSize at a time.
+         ResultSet rs = executeStreaming (pooled, query, params);
+         try{
+            rowCount = render (rs, format, out);
+            return rowCount;
+         }finally{
+            rs.getStatement ().setFetchSize (0);
+            rs.close ();
+         }//end try
+      }finally{
+         pool.release (pooled);
+         this._metrics.record (query, start, rowCount);
+      }//end try
+   }//end exportQuery
+
+   /*
+    * Writes the rows of a result set and returns the number of rows
+    * written.
+    */
+   private static int render (ResultSet rs, ResultRenderer.Format format, Writer out) throws SQLException {
+      try{
+         return new ResultRenderer (out, format).render (rs);
+      }catch (IOException e){
+         throw new SQLException ("Failed to write results: " + e.getMessage (), e);
+      }//end try
+   }//end render
+
+   /*
+    * Standard out as a writer.  The renderer buffers it and flushes once
+    * at the end, instead of a print call per cell.
+    */
+   private static Writer console () {
+      return new OutputStreamWriter (System.out);
+   }//end console
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the results as
@@ -139,22 +373,70 @@ public class ProfNetwork {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      long start = System.nanoTime ();
+      List<List<String>> result = null;
+      ConnectionPool.Pooled pooled = this._pool.borrow ();
+      try{
+         // creates a statement object
+         Statement stmt = pooled.connection ().createStatement ();
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
+
+         result = readResult (rs);
+         stmt.close ();
+         return result;
+      }finally{
+         this._pool.release (pooled);
+         this._metrics.recordLiteral (query, start, result == null ? -1 : result.size ());
+      }//end try
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Parameterized variant of executeQueryAndReturnResult.  The query is
+    * prepared once per connection and reused, the parameters are bound to
+    * its '?' placeholders in order.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      List<List<String>> result = null;
+      ConnectionPool pool = readPool ();
+      ConnectionPool.Pooled pooled = pool.borrow ();
+      try{
+         PreparedStatement stmt = pooled.statements ().prepare (query);
+         bindParameters (stmt, params);
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+         ResultSet rs = stmt.executeQuery ();
+         try{
+            result = readResult (rs);
+            return result;
+         }finally{
+            rs.close ();
+         }//end try
+      }finally{
+         pool.release (pooled);
+         this._metrics.record (query, start, result == null ? -1 : result.size ());
+      }//end try
+   }//end executeQueryAndReturnResult
 
+   /*
+    * Saves the rows of a result set as a list of records, each record being
+    * the list of its attribute values.
+    */
+   private static List<List<String>> readResult (ResultSet rs) throws SQLException {
       /*
        ** obtains the metadata object for the returned result set.  The metadata
        ** contains row and column info.
        */
       ResultSetMetaData rsmd = rs.getMetaData ();
       int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
 
       // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
       List<List<String>> result  = new ArrayList<List<String>>();
       while (rs.next()){
           List<String> record = new ArrayList<String>();
@@ -162,9 +444,8 @@ public class ProfNetwork {
             record.add(rs.getString (i));
          result.add(record);
       }//end while
-      stmt.close ();
       return result;
-   }//end executeQueryAndReturnResult
+   }//end readResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -175,53 +456,973 @@ public class ProfNetwork {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+       long start = System.nanoTime ();
+       int rows = -1;
+       ConnectionPool.Pooled pooled = this._pool.borrow ();
+       try{
+          // creates a statement object
+          Statement stmt = pooled.connection ().createStatement ();
+
+          // issues the query instruction
+          ResultSet rs = stmt.executeQuery (query);
+
+          int rowCount = 0;
+
+          // iterates through the result set and count nuber of results.
+          if(rs.next()){
+             rowCount++;
+          }//end while
+          stmt.close ();
+          rows = rowCount;
+          return rowCount;
+       }finally{
+          this._pool.release (pooled);
+          this._metrics.recordLiteral (query, start, rows);
+       }//end try
+   }
+
+   /**
+    * Parameterized variant of executeQuery.  The query is prepared once per
+    * connection and reused, the parameters are bound to its '?'
+    * placeholders in order.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders
+    * @return 1 if the query returned at least one row, 0 otherwise
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String query, Object... params) throws SQLException {
+       long start = System.nanoTime ();
+       int rows = -1;
+       ConnectionPool pool = readPool ();
+       ConnectionPool.Pooled pooled = pool.borrow ();
+       try{
+          PreparedStatement stmt = pooled.statements ().prepare (query);
+          bindParameters (stmt, params);
+
+          ResultSet rs = stmt.executeQuery ();
+          try{
+             rows = rs.next () ? 1 : 0;
+             return rows;
+          }finally{
+             rs.close ();
+          }//end try
+       }finally{
+          pool.release (pooled);
+          this._metrics.record (query, start, rows);
+       }//end try
+   }//end executeQuery
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+   /*
+    * Binds the given values to the placeholders of a prepared statement.
+    * Strings, numbers, dates and timestamps are bound with their own setter
+    * so the driver quotes them, a null value is bound as SQL NULL.
+    */
+   static void bindParameters (PreparedStatement stmt, Object[] params) throws SQLException {
+      for (int i = 0; i < params.length; ++i) {
+         Object value = params[i];
+         int index = i + 1;
+         if (value == null)
+            stmt.setNull (index, java.sql.Types.VARCHAR);
+         else if (value instanceof String)
+            stmt.setString (index, (String) value);
+         else if (value instanceof Integer)
+            stmt.setInt (index, ((Integer) value).intValue ());
+         else if (value instanceof Long)
+            stmt.setLong (index, ((Long) value).longValue ());
+         else if (value instanceof java.sql.Timestamp)
+            stmt.setTimestamp (index, (java.sql.Timestamp) value);
+         else if (value instanceof java.sql.Date)
+            stmt.setDate (index, (java.sql.Date) value);
+         else
+            stmt.setObject (index, value);
+      }//end for
+   }//end bindParameters
 
-       int rowCount = 0;
+   /**
+    * Method to execute a query expected to return at most one row and map
+    * that row to a typed object, in a single round trip.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param mapper turns the row into an object
+    * @param params the values bound to the placeholders
+    * @return the mapped first row, or null when the query returned no row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> T queryForObject (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      List<T> rows = queryForList (query, mapper, params);
+      return rows.isEmpty () ? null : rows.get (0);
+   }//end queryForObject
 
-       // iterates through the result set and count nuber of results.
-       if(rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
-   }
+   /**
+    * Method to execute a query and map every returned row to a typed
+    * object.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param mapper turns each row into an object
+    * @param params the values bound to the placeholders
+    * @return the mapped rows, in the order returned by the query
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> List<T> queryForList (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rows = -1;
+      ConnectionPool pool = readPool ();
+      ConnectionPool.Pooled pooled = pool.borrow ();
+      try{
+         PreparedStatement stmt = pooled.statements ().prepare (query);
+         bindParameters (stmt, params);
+
+         ResultSet rs = stmt.executeQuery ();
+         try{
+            List<T> result = new ArrayList<T>();
+            while (rs.next ())
+               result.add (mapper.map (rs));
+            rows = result.size ();
+            return result;
+         }finally{
+            rs.close ();
+         }//end try
+      }finally{
+         pool.release (pooled);
+         this._metrics.record (query, start, rows);
+      }//end try
+   }//end queryForList
+
+   /**
+    * Method to execute a query and stream its rows through a cursor.  Rows
+    * are read from the server getFetchSize() at a time, so the whole result
+    * never has to fit in memory.  The cursor keeps a pooled connection until
+    * it is closed and must be used in a try-with-resources block:
+    *
+    *    try (RowCursor<Message> c = esql.openCursor(sql, Message.MAPPER, user)) {
+    *       while (c.hasNext()) ...
+    *    }
+    *
+    * @param query the input query string with '?' placeholders
+    * @param mapper turns each row into an object
+    * @param params the values bound to the placeholders
+    * @return an open cursor positioned before the first row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> RowCursor<T> openCursor (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      ConnectionPool pool = readPool ();
+      ConnectionPool.Pooled pooled = pool.borrow ();
+      try{
+         ResultSet rs = executeStreaming (pooled, query, params);
+         // only the time to the first batch of rows is recorded.
+         this._metrics.record (query, start, 0);
+         return new RowCursor<T> (pool, pooled, rs.getStatement (), rs, mapper);
+      }catch (SQLException e){
+         pool.release (pooled);
+         this._metrics.record (query, start, -1);
+         throw e;
+      }catch (RuntimeException e){
+         pool.release (pooled);
+         this._metrics.record (query, start, -1);
+         throw e;
+      }//end try
+   }//end openCursor
+
+   /*
+    * Issues a query on a borrowed connection so that its rows are fetched
+    * incrementally: the driver only uses a server side cursor inside a
+    * transaction and with a non zero fetch size.  The transaction is ended
+    * by the caller, or by the pool when the connection is released.
+    */
+   private ResultSet executeStreaming (ConnectionPool.Pooled pooled, String query, Object[] params) throws SQLException {
+      pooled.connection ().setAutoCommit (false);
+      PreparedStatement stmt = pooled.statements ().prepare (query);
+      stmt.setFetchSize (this._fetchSize);
+      bindParameters (stmt, params);
+      return stmt.executeQuery ();
+   }//end executeStreaming
+
+   /**
+    * @return the number of rows a streaming query fetches at a time
+    */
+   public int getFetchSize () {
+      return this._fetchSize;
+   }//end getFetchSize
+
+   /**
+    * @param fetchSize the number of rows a streaming query fetches at a time
+    */
+   public void setFetchSize (int fetchSize) {
+      if (fetchSize < 1)
+         throw new IllegalArgumentException ("invalid fetch size " + fetchSize);
+      this._fetchSize = fetchSize;
+   }//end setFetchSize
+
+   /**
+    * Method to test whether any row matches a condition.  The condition is
+    * given as the FROM/WHERE part of a query, e.g.
+    * "USR WHERE userId = ?", and is issued as SELECT 1 ... LIMIT 1 so no
+    * column data is fetched.
+    *
+    * @param fromWhere the table and condition with '?' placeholders
+    * @param params the values bound to the placeholders
+    * @return true if at least one row matches
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean exists (String fromWhere, Object... params) throws SQLException {
+      return executeQuery (existsQuery (fromWhere), params) > 0;
+   }//end exists
+
+   /*
+    * The query exists issues for a condition.
+    */
+   static String existsQuery (String fromWhere) {
+      return "SELECT 1 FROM " + fromWhere + " LIMIT 1";
+   }//end existsQuery
+
+   // conditions of the exists probes of the menus: userId and password,
+   // userId, and both directions of a connection.
+   static final String LOGIN_MATCHES = "USR WHERE userId = ? AND password = ?";
+   static final String USER_EXISTS = "USR WHERE userId = ?";
+   static final String CONNECTION_EXISTS =
+      "CONNECTION_USR WHERE (userId = ? AND connectionId = ?) OR (userId = ? AND connectionId = ?)";
+
+   static final String USER_BY_ID = "SELECT " + User.COLUMNS + " FROM USR WHERE userId = ?";
+   static final String WORK_BY_USER = "SELECT " + WorkExperience.COLUMNS + " FROM WORK_EXPR WHERE userId = ?";
+   static final String EDUCATION_BY_USER = "SELECT " + Education.COLUMNS + " FROM EDUCATIONAL_DETAILS WHERE userId = ?";
+
+   /**
+    * @param userId the user to look up
+    * @return the USR row of the user, or null if there is none
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public User findUser (String userId) throws SQLException {
+      return queryForObject (USER_BY_ID, User.MAPPER, userId);
+   }//end findUser
+
+   /**
+    * @param userId the user whose work experience is listed
+    * @return the WORK_EXPR rows of the user
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<WorkExperience> findWorkExperience (String userId) throws SQLException {
+      return queryForList (WORK_BY_USER, WorkExperience.MAPPER, userId);
+   }//end findWorkExperience
+
+   /**
+    * @param userId the user whose educational details are listed
+    * @return the EDUCATIONAL_DETAILS rows of the user
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<Education> findEducation (String userId) throws SQLException {
+      return queryForList (EDUCATION_BY_USER, Education.MAPPER, userId);
+   }//end findEducation
+
+   /**
+    * Returns the profile of a user, from the profile cache when possible.
+    * Otherwise the USR row is read while the work experience and education
+    * are fetched concurrently on other pooled connections, so a miss costs
+    * about one round trip.
+    *
+    * Code writing a user's USR, WORK_EXPR or EDUCATIONAL_DETAILS rows must
+    * call invalidateProfile afterwards.
+    *
+    * @param userId the user to look up
+    * @return the profile of the user, or null if there is no such user
+    * @throws java.sql.SQLException when failed to execute a query
+    */
+   public Profile getProfile (final String userId) throws SQLException {
+      Profile profile = this._profiles.get (userId);
+      if (profile != null)
+         return profile;
+
+      long epoch = this._profiles.epoch ();
+      // the fetches count toward the operation of the caller.  What is
+      // cached is served to every session, so it is read from the primary.
+      final String operation = QueryMetrics.getOperation ();
+      Future<List<WorkExperience>> work = this._fetcher.submit (new Callable<List<WorkExperience>>() {
+         public List<WorkExperience> call () throws SQLException {
+            QueryMetrics.setOperation (operation);
+            ReplicaRouter.readFromPrimary (true);
+            return findWorkExperience (userId);
+         }
+      });
+      Future<List<Education>> education = this._fetcher.submit (new Callable<List<Education>>() {
+         public List<Education> call () throws SQLException {
+            QueryMetrics.setOperation (operation);
+            ReplicaRouter.readFromPrimary (true);
+            return findEducation (userId);
+         }
+      });
+      boolean pinned = ReplicaRouter.readFromPrimary (true);
+      User user;
+      try{
+         user = findUser (userId);
+      }finally{
+         ReplicaRouter.readFromPrimary (pinned);
+      }//end try
+      if (user == null) {
+         work.cancel (false);
+         education.cancel (false);
+         return null;
+      }//end if
+      profile = new Profile (user, result (work), result (education));
+      this._profiles.put (userId, profile, epoch);
+      return profile;
+   }//end getProfile
+
+   /**
+    * Drops the cached profile of a user after a write to it.
+    *
+    * @param userId the user whose profile data changed
+    */
+   public void invalidateProfile (String userId) {
+      this._profiles.invalidate (userId);
+   }//end invalidateProfile
+
+   /**
+    * @return the profile cache, e.g. for its statistics
+    */
+   public ProfileCache getProfileCache () {
+      return this._profiles;
+   }//end getProfileCache
+
+   /*
+    * Waits for a concurrent fetch, rethrowing its SQLException.
+    */
+   private static <T> T result (Future<T> future) throws SQLException {
+      try {
+         return future.get ();
+      }catch (InterruptedException e) {
+         Thread.currentThread ().interrupt ();
+         throw new SQLException ("Interrupted while loading a profile");
+      }catch (ExecutionException e) {
+         if (e.getCause () instanceof SQLException)
+            throw (SQLException) e.getCause ();
+         throw new SQLException (e.getCause ().getMessage (), e.getCause ());
+      }//end try
+   }//end result
+
+   /*
+    * Friends of a user with their profiles, in one joined query.  An accepted
+    * connection may be stored in either direction, so both are read.  The
+    * password column is not read for other users.  Pages are keyed on the
+    * friend's userId.
+    */
+   static final String FRIENDS_PAGE =
+      "SELECT u.userId, NULL, u.email, u.name, u.dateOfBirth FROM USR u WHERE u.userId IN ("
+      + "SELECT c.connectionId FROM CONNECTION_USR c WHERE c.userId = ? AND c.status = ? "
+      + "UNION SELECT c.userId FROM CONNECTION_USR c WHERE c.connectionId = ? AND c.status = ?) "
+      + "AND u.userId > ? ORDER BY u.userId LIMIT ?";
+
+   /**
+    * Returns one page of the friends of a user, ordered by userId, with
+    * their profiles loaded by the same query.
+    *
+    * @param userId the user whose friends are listed
+    * @param after the userId of the last friend of the previous page, null
+    *        for the first page
+    * @param pageSize the maximum number of friends returned
+    * @return the USR rows of the friends, without their password
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<User> findFriends (String userId, String after, int pageSize) throws SQLException {
+      return queryForList (FRIENDS_PAGE, User.MAPPER, userId, ConnectionStatus.ACCEPTED,
+                           userId, ConnectionStatus.ACCEPTED, after == null ? "" : after, pageSize);
+   }//end findFriends
+
+   static final String PENDING_PAGE =
+      "SELECT userId, connectionId FROM CONNECTION_USR WHERE connectionId = ? AND status = ? AND userId > ? ORDER BY userId LIMIT ?";
+
+   /**
+    * Returns one page of the users waiting for an answer to a connection
+    * request sent to the given user, ordered by userId.  Served by the
+    * (connectionId, status, userId) index.
+    *
+    * @param userId the user the requests were sent to
+    * @param after the last requester of the previous page, null for the
+    *        first page
+    * @param pageSize the maximum number of requesters returned
+    * @return the userIds of the requesters
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<String> findPendingRequests (String userId, String after, int pageSize) throws SQLException {
+      List<String[]> rows = queryForList (PENDING_PAGE, USER_PAIR, userId, ConnectionStatus.PENDING, after == null ? "" : after, pageSize);
+      List<String> requesters = new ArrayList<String>(rows.size ());
+      for (String[] row : rows)
+         requesters.add (row[0]);
+      return requesters;
+   }//end findPendingRequests
+
+   /*
+    * Accepts or rejects many pending requests in one statement.  The two id
+    * lists travel as single parameters joined by ID_SEPARATOR and are split
+    * on the server, so the SQL text, and its cached plan, is the same
+    * whatever the number of decisions.
+    */
+   private static final String ID_SEPARATOR = "\u001f";
+   static final String ANSWER_REQUESTS =
+      "UPDATE CONNECTION_USR SET status = CASE WHEN userId = ANY (string_to_array(?, chr(31))) THEN ? ELSE ? END "
+      + "WHERE connectionId = ? AND status = ? AND userId = ANY (string_to_array(?, chr(31))) "
+      + "RETURNING userId, status";
+
+   /**
+    * Answers pending connection requests sent to a user, in a single round
+    * trip however many requests are decided.  Requests that are no longer
+    * pending, or never were, are left alone; only the rows the update
+    * really accepted become edges of the connection graph.
+    *
+    * @param userId the user the requests were sent to
+    * @param accepted the requesters to accept
+    * @param rejected the requesters to reject
+    * @return the number of requests updated
+    * @throws java.sql.SQLException when update failed
+    */
+   public int answerFriendRequests (String userId, List<String> accepted, List<String> rejected) throws SQLException {
+      if (accepted.isEmpty () && rejected.isEmpty ())
+         return 0;
+      List<String> all = new ArrayList<String>(accepted);
+      all.addAll (rejected);
+      List<String[]> updated = updateReturning (ANSWER_REQUESTS, USER_PAIR, joinIds (accepted),
+                                                ConnectionStatus.ACCEPTED, ConnectionStatus.REJECTED,
+                                                userId, ConnectionStatus.PENDING, joinIds (all));
+      for (String[] row : updated)
+         if (ConnectionStatus.ACCEPTED.equals (row[1]))
+            connectionAccepted (row[0], userId);
+      return updated.size ();
+   }//end answerFriendRequests
+
+   private static String joinIds (List<String> ids) {
+      StringBuilder joined = new StringBuilder ();
+      for (String id : ids) {
+         if (joined.length () > 0)
+            joined.append (ID_SEPARATOR);
+         joined.append (id);
+      }//end for
+      return joined.toString ();
+   }//end joinIds
+
+   /*
+    * Keeps the connection graph, when already loaded, in step with a newly
+    * accepted connection.  A graph loaded later reads it from the database.
+    */
+   private synchronized void connectionAccepted (String a, String b) {
+      if (this._graph != null)
+         this._graph.addConnection (a, b);
+   }//end connectionAccepted
+
+   /**
+    * @param msgId the message to look up
+    * @return the MESSAGE row, or null if there is none
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Message findMessage (int msgId) throws SQLException {
+      return queryForObject ("SELECT " + Message.COLUMNS + " FROM MESSAGE WHERE msgId = ?",
+                             Message.MAPPER, msgId);
+   }//end findMessage
+
+   /*
+    * Keyset pagination over the messages of one user, newest first.  A page
+    * continues strictly after the (sendTime, msgId) of the last row of the
+    * previous page, so each page is one probe of the matching index in
+    * create_indexes.sql followed by at most pageSize rows, however many
+    * messages come before it.  The visibility predicates are the ones of the
+    * partial indexes and must be kept identical to them.
+    */
+   static final String SENT_VISIBLE =
+      "FROM MESSAGE WHERE senderId = ? AND COALESCE(deleteStatus, 0) IN (0, 2) ";
+   static final String INBOX_VISIBLE =
+      "FROM MESSAGE WHERE receiverId = ? AND COALESCE(deleteStatus, 0) IN (0, 1) ";
+   static final String PAGE_AFTER = "AND (sendTime, msgId) < (?, ?) ";
+   static final String PAGE_ORDER = "ORDER BY sendTime DESC, msgId DESC LIMIT ?";
+
+   /**
+    * Returns one page of the messages sent by a user and not deleted by
+    * them, newest first.
+    *
+    * @param senderId the user whose sent messages are listed
+    * @param after the last message of the previous page, null for the first page
+    * @param pageSize the maximum number of messages returned
+    * @return the MESSAGE rows of the page
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<Message> findSentMessages (String senderId, Message after, int pageSize) throws SQLException {
+      return messagePage (SENT_VISIBLE, senderId, after, pageSize);
+   }//end findSentMessages
+
+   /**
+    * Returns one page of the messages received by a user and not deleted by
+    * them, newest first.
+    *
+    * @param receiverId the user whose received messages are listed
+    * @param after the last message of the previous page, null for the first page
+    * @param pageSize the maximum number of messages returned
+    * @return the MESSAGE rows of the page
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<Message> findInboxMessages (String receiverId, Message after, int pageSize) throws SQLException {
+      return messagePage (INBOX_VISIBLE, receiverId, after, pageSize);
+   }//end findInboxMessages
+
+   private List<Message> messagePage (String visible, String userId, Message after, int pageSize) throws SQLException {
+      String select = "SELECT " + Message.COLUMNS + " " + visible;
+      if (after == null)
+         return queryForList (select + PAGE_ORDER, Message.MAPPER, userId, pageSize);
+      return queryForList (select + PAGE_AFTER + PAGE_ORDER, Message.MAPPER,
+                           userId, after.sendTime, after.msgId, pageSize);
+   }//end messagePage
+
+   // edit a work experience or education entry of a user, by its id and
+   // only if unchanged since read: the new company/institution, role/major,
+   // location/degree, start and end dates, then id, version and userId.
+   // An update count of 0 means another session changed or removed it.
+   static final String UPDATE_WORK =
+      "UPDATE WORK_EXPR SET company = ?, role = ?, location = ?, startDate = ?, endDate = ?, version = version + 1 "
+      + "WHERE id = ? AND version = ? AND userId = ?";
+   static final String UPDATE_EDUCATION =
+      "UPDATE EDUCATIONAL_DETAILS SET instituitionName = ?, major = ?, degree = ?, startdate = ?, enddate = ?, "
+      + "version = version + 1 WHERE id = ? AND version = ? AND userId = ?";
+
+   // hide a message from its sender or its receiver: deleteStatus bit,
+   // msgId, senderId or receiverId.
+   static final String DELETE_SENT =
+      "UPDATE MESSAGE SET deleteStatus = COALESCE(deleteStatus, 0) | ? WHERE msgId = ? AND senderId = ?";
+   static final String DELETE_RECEIVED =
+      "UPDATE MESSAGE SET deleteStatus = COALESCE(deleteStatus, 0) | ? WHERE msgId = ? AND receiverId = ?";
+
+   // marks messages of a receiver read: READ, receiverId, DELIVERED, then
+   // the msgIds joined by ID_SEPARATOR.
+   static final String MARK_READ =
+      "UPDATE MESSAGE SET status = ? WHERE receiverId = ? AND status = ? "
+      + "AND msgId = ANY(CAST(string_to_array(?, chr(31)) AS integer[]))";
+
+   /**
+    * Marks messages shown to their receiver as read, in one statement.
+    * Messages already read, or not addressed to the receiver, are left
+    * alone.
+    *
+    * @param receiverId the user who read the messages
+    * @param messages the messages shown
+    * @return the number of messages newly marked read
+    * @throws java.sql.SQLException when update failed
+    */
+   public int markRead (String receiverId, List<Message> messages) throws SQLException {
+      List<String> ids = new ArrayList<String>(messages.size ());
+      for (Message message : messages)
+         if (MessageStatus.DELIVERED.equals (message.status))
+            ids.add (String.valueOf (message.msgId));
+      if (ids.isEmpty ())
+         return 0;
+      return executeUpdate (MARK_READ, MessageStatus.READ, receiverId, MessageStatus.DELIVERED, joinIds (ids));
+   }//end markRead
+
+   /**
+    * Hides a message from the sent view of its sender.  The row itself is
+    * kept for the receiver.
+    *
+    * @param msgId the message to delete
+    * @param senderId the user deleting it, who must be its sender
+    * @return true if the message was found
+    * @throws java.sql.SQLException when update failed
+    */
+   public boolean deleteSentMessage (int msgId, String senderId) throws SQLException {
+      return executeUpdate (DELETE_SENT, Message.DELETED_BY_SENDER, msgId, senderId) > 0;
+   }//end deleteSentMessage
+
+   /**
+    * Hides a message from the inbox of its receiver.  The row itself is
+    * kept for the sender.
+    *
+    * @param msgId the message to delete
+    * @param receiverId the user deleting it, who must be its receiver
+    * @return true if the message was found
+    * @throws java.sql.SQLException when update failed
+    */
+   public boolean deleteReceivedMessage (int msgId, String receiverId) throws SQLException {
+      return executeUpdate (DELETE_RECEIVED, Message.DELETED_BY_RECEIVER, msgId, receiverId) > 0;
+   }//end deleteReceivedMessage
+
+   /**
+    * Returns the in-memory graph of accepted connections, loading it from
+    * CONNECTION_USR the first time.  Code changing an accepted connection
+    * must update the graph as well (addConnection, removeConnection).
+    *
+    * @return the connection graph
+    * @throws java.sql.SQLException when failed to load the connections
+    */
+   // the accepted connections, loaded into the graph: ACCEPTED.
+   static final String GRAPH_LOAD = "SELECT userId, connectionId FROM CONNECTION_USR WHERE status = ?";
+
+   public synchronized ConnectionGraph getConnectionGraph () throws SQLException {
+      if (this._graph == null) {
+         String[] from = new String[1024];
+         String[] to = new String[1024];
+         int count = 0;
+         // kept up to date by the writers from then on, so read current.
+         boolean pinned = ReplicaRouter.readFromPrimary (true);
+         RowCursor<String[]> edges;
+         try{
+            edges = openCursor (GRAPH_LOAD, USER_PAIR, ConnectionStatus.ACCEPTED);
+         }finally{
+            ReplicaRouter.readFromPrimary (pinned);
+         }//end try
+         try{
+            while (edges.hasNext ()) {
+               String[] edge = edges.next ();
+               if (count == from.length) {
+                  from = java.util.Arrays.copyOf (from, count * 2);
+                  to = java.util.Arrays.copyOf (to, count * 2);
+               }//end if
+               from[count] = edge[0];
+               to[count] = edge[1];
+               ++count;
+            }//end while
+         }catch (RowCursor.CursorException e){
+            throw e.getSQLException ();
+         }finally{
+            edges.close ();
+         }//end try
+         ConnectionGraph graph = new ConnectionGraph ();
+         graph.load (from, to, count);
+         this._graph = graph;
+      }//end if
+      return this._graph;
+   }//end getConnectionGraph
+
+   /**
+    * Checks the contact rule of the network: a user may reach anyone
+    * within 3 connections, or anyone while they have fewer than 5.
+    *
+    * @param from the user initiating the contact
+    * @param to the user being contacted
+    * @return true if the contact is allowed
+    * @throws java.sql.SQLException when failed to load the connections
+    */
+   public boolean canContact (String from, String to) throws SQLException {
+      return getConnectionGraph ().canContact (from, to);
+   }//end canContact
+
+   // the users, loaded into the people index.
+   static final String PEOPLE_LOAD = "SELECT userId, name FROM USR";
+
+   // number of best text matches ranked by connection distance.
+   static final int SEARCH_CANDIDATES = 100;
+
+   /**
+    * Returns the in-memory people search index, loading the userIds and
+    * names of USR the first time.  Code creating a user or changing a name
+    * must update it as well (userNamed).
+    *
+    * @return the people index
+    * @throws java.sql.SQLException when failed to load the users
+    */
+   public synchronized PeopleIndex getPeopleIndex () throws SQLException {
+      if (this._people == null) {
+         PeopleIndex people = new PeopleIndex ();
+         // (userId, name) rows, both trimmed, read current like the graph.
+         boolean pinned = ReplicaRouter.readFromPrimary (true);
+         RowCursor<String[]> users;
+         try{
+            users = openCursor (PEOPLE_LOAD, USER_PAIR);
+         }finally{
+            ReplicaRouter.readFromPrimary (pinned);
+         }//end try
+         try{
+            while (users.hasNext ()) {
+               String[] user = users.next ();
+               people.put (user[0], user[1]);
+            }//end while
+         }catch (RowCursor.CursorException e){
+            throw e.getSQLException ();
+         }finally{
+            users.close ();
+         }//end try
+         this._people = people;
+      }//end if
+      return this._people;
+   }//end getPeopleIndex
+
+   /**
+    * Searches people by userId or name prefix, or approximately.  The best
+    * text matches are ranked by how many connections away from the
+    * searching user they are, nearest first, then by how well they match.
+    * A query that is exactly a userId always returns that user first,
+    * however far away.
+    *
+    * @param userId the user searching
+    * @param query the text typed
+    * @param limit the maximum number of results
+    * @return the matches, best first
+    * @throws java.sql.SQLException when failed to load the index or graph
+    */
+   public List<PeopleIndex.Match> searchPeople (String userId, String query, int limit) throws SQLException {
+      List<PeopleIndex.Match> candidates = getPeopleIndex ().search (query, Math.max (limit, SEARCH_CANDIDATES));
+      ConnectionGraph graph = getConnectionGraph ();
+      List<PeopleIndex.Match> ranked = new ArrayList<PeopleIndex.Match>(candidates.size ());
+      for (PeopleIndex.Match match : candidates)
+         ranked.add (new PeopleIndex.Match (match.userId, match.name, match.score,
+                                            graph.distance (userId, match.userId, ConnectionGraph.MAX_HOPS)));
+      java.util.Collections.sort (ranked, BY_DISTANCE);
+      PeopleIndex.Match exact = getPeopleIndex ().exact (query == null ? null : query.trim ());
+      if (exact != null) {
+         for (java.util.Iterator<PeopleIndex.Match> i = ranked.iterator (); i.hasNext (); )
+            if (i.next ().userId.equals (exact.userId))
+               i.remove ();
+         ranked.add (0, new PeopleIndex.Match (exact.userId, exact.name, exact.score,
+                                               graph.distance (userId, exact.userId, ConnectionGraph.MAX_HOPS)));
+      }//end if
+      return ranked.size () > limit ? ranked.subList (0, limit) : ranked;
+   }//end searchPeople
+
+   // nearest first, users out of reach last, then by text score.
+   private static final java.util.Comparator<PeopleIndex.Match> BY_DISTANCE =
+      new java.util.Comparator<PeopleIndex.Match>() {
+         public int compare (PeopleIndex.Match a, PeopleIndex.Match b) {
+            int da = a.distance < 0 ? Integer.MAX_VALUE : a.distance;
+            int db = b.distance < 0 ? Integer.MAX_VALUE : b.distance;
+            if (da != db)
+               return da < db ? -1 : 1;
+            return PeopleIndex.BY_SCORE.compare (a, b);
+         }
+      };
+
+   /**
+    * Keeps the people index, when already loaded, in step with a user
+    * created or renamed.  An index loaded later reads it from the database.
+    *
+    * @param userId the user
+    * @param name the new name of the user
+    */
+   public synchronized void userNamed (String userId, String name) {
+      if (this._people != null)
+         this._people.put (userId, name);
+   }//end userNamed
+
+   // maps a (userId, connectionId) row to its two trimmed ids.
+   private static final RowMapper<String[]> USER_PAIR = new RowMapper<String[]>() {
+      public String[] map (ResultSet rs) throws SQLException {
+         return new String[] { trimmed (rs.getString (1)), trimmed (rs.getString (2)) };
+      }
+   };
 
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * value of sequence used for autogenerated keys.  currval is local to a
+    * database session, so with pooled connections it only sees a nextval
+    * issued on the same borrowed connection.
     *
     * @param sequence name of the DB sequence
     * @return current value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+	return (int) sequenceValue ("currval", sequence);
+   }
+
+   /**
+    * Method to advance a sequence and fetch its new value. This
+    * method issues the query to the DBMS and returns the next
+    * value of sequence used for autogenerated keys
+    *
+    * @param sequence name of the DB sequence
+    * @return next value of a sequence
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public long getNextSeqVal(String sequence) throws SQLException {
+	return sequenceValue ("nextval", sequence);
+   }
 
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+   /*
+    * Calls one of the sequence functions (currval, nextval) on a sequence
+    * and returns its value, or -1 if nothing was returned.
+    */
+   private long sequenceValue(String function, String sequence) throws SQLException {
+	long start = System.nanoTime ();
+	int rows = -1;
+	String query = "Select " + function + "(?)";
+	ConnectionPool.Pooled pooled = this._pool.borrow ();
+	try{
+		PreparedStatement stmt = pooled.statements ().prepare (query);
+		stmt.setString (1, sequence);
+
+		ResultSet rs = stmt.executeQuery ();
+		try{
+			rows = 0;
+			if (rs.next()) {
+				rows = 1;
+				return rs.getLong(1);
+			}
+			return -1;
+		}finally{
+			rs.close ();
+		}
+	}finally{
+		this._pool.release (pooled);
+		this._metrics.record (query, start, rows);
+	}
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Allocates the id of a new MESSAGE row from the message id sequence.
+    *
+    * @return a message id not handed out before
+    * @throws java.sql.SQLException when a new block of ids could not be reserved
+    */
+   public int nextMessageId() throws SQLException {
+      return this._messageIds.next ();
+   }//end nextMessageId
+
+   /**
+    * Returns the writer of new messages, starting it the first time.  It is
+    * sized by the profnetwork.messages.* system properties.
+    *
+    * @return the message writer
+    */
+   public synchronized MessageWriter getMessageWriter() {
+      if (this._messages == null) {
+         this._messages = new MessageWriter(this,
+            Integer.getInteger("profnetwork.messages.queueSize", MessageWriter.DEFAULT_CAPACITY).intValue(),
+            Integer.getInteger("profnetwork.messages.maxBatch", MessageWriter.DEFAULT_MAX_BATCH).intValue(),
+            Long.getLong("profnetwork.messages.offerTimeoutMs", MessageWriter.DEFAULT_OFFER_TIMEOUT_MILLIS).longValue());
+      }//end if
+      return this._messages;
+   }//end getMessageWriter
+
+   /**
+    * Sends a message.  It is queued and written shortly after, batched with
+    * other messages; the returned delivery tells when it is committed.
+    *
+    * @param senderId the sender
+    * @param receiverId the receiver
+    * @param contents the text of the message
+    * @return the acknowledgement of the message
+    * @throws java.sql.SQLException when the message is empty or too long,
+    *         or could not be queued
+    */
+   public MessageWriter.Delivery sendMessage(String senderId, String receiverId, String contents) throws SQLException {
+      MessageWriter.Delivery delivery = getMessageWriter().send(senderId, receiverId, contents);
+      ReplicaRouter.noteWrite(delivery.position);
+      return delivery;
+   }//end sendMessage
+
+   /**
+    * @return the query metrics of this instance
+    */
+   public QueryMetrics getMetrics(){
+      return this._metrics;
+   }//end getMetrics
+
+   /**
+    * @return the router of reads to the replicas, null without replicas
+    */
+   public ReplicaRouter getReplicaRouter(){
+      return this._replicas;
+   }//end getReplicaRouter
+
+   /**
+    * @return the pool of physical connections used by this instance
+    */
+   public ConnectionPool getPool(){
+      return this._pool;
+   }//end getPool
+
+   /**
+    * Method to close the physical connections if they are open.
     */
    public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
+      synchronized (this) {
+         // write the messages still queued while the pool is open.
+         if (this._messages != null){
+            this._messages.close ();
          }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
+      }
+      if (this._fetcher != null){
+         this._fetcher.shutdown ();
+      }//end if
+      if (this._replicas != null){
+         this._replicas.close ();
+      }//end if
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
+      String dump = System.getProperty("profnetwork.metrics.dumpFile");
+      if (dump != null){
+         try{
+            java.io.Writer out = new java.io.FileWriter(dump);
+            try{
+               out.write(this._metrics.getPrometheusText());
+            }finally{
+               out.close();
+            }//end try
+         }catch (java.io.IOException e){
+            System.err.println("Could not write the query metrics: " + e.getMessage());
+         }//end try
+      }//end if
+      this._metrics.close();
    }//end cleanup
 
+   /*
+    * Runs the menus until the user exits.  The logged in user is local to
+    * the call, so each session of SessionServer has its own.
+    **/
+   public static void MainMenu(ProfNetwork esql) {
+      boolean keepon = true;
+      while(keepon) {
+         // These are sample SQL statements
+         System.out.println("MAIN MENU");
+         System.out.println("---------");
+         System.out.println("1. Create user");
+         System.out.println("2. Log in");
+         System.out.println("9. < EXIT");
+         String authorisedUser = null;
+         int choice = readChoice();
+         QueryMetrics.setOperation(choice == 1 ? "CreateUser" : choice == 2 ? "LogIn" : null);
+         switch (choice){
+            case 1: CreateUser(esql); break;
+            case 2: authorisedUser = LogIn(esql); break;
+            case 9: keepon = false; break;
+            default : System.out.println("Unrecognized choice!"); break;
+         }//end switch
+         if (authorisedUser != null) {
+           boolean usermenu = true;
+           while(usermenu) {
+             System.out.println("MAIN MENU");
+             System.out.println("---------");
+             System.out.println("1. Goto Friend List");
+             System.out.println("2. View/Update Profile");
+             System.out.println("3. Write a new message");
+             System.out.println("4. Send Friend Request");
+             System.out.println("5. Search for a person");
+             System.out.println("6. View/delete sent messages");
+             System.out.println("7. View/delete inbox");
+             System.out.println("8. Answer friend requests");
+             System.out.println("10. Export messages");
+             System.out.println(".........................");
+             System.out.println("9. Log out");
+             int operation = readChoice();
+             QueryMetrics.setOperation(operation >= 1 && operation < USER_OPERATIONS.length ? USER_OPERATIONS[operation] : null);
+             switch (operation){
+                case 1: FriendList(esql,authorisedUser); break;
+                case 2: UpdateProfile(esql,authorisedUser); break;
+                case 3: NewMessage(esql,authorisedUser); break;
+                case 4: SendRequest(esql,authorisedUser); break;
+                case 5: Searchperson(esql,authorisedUser); break;
+                case 6: Viewsent(esql,authorisedUser); break;
+                case 7: ViewInbox(esql,authorisedUser); break;
+                case 8: FriendRequests(esql,authorisedUser); break;
+                case 10: ExportMessages(esql,authorisedUser); break;
+                case 9: usermenu = false; break;
+                default : System.out.println("Unrecognized choice!"); break;
+             }
+           }
+         }
+      }//end while
+      QueryMetrics.setOperation(null);
+   }//end MainMenu
+
+   // names of the user menu choices, as tagged in the query metrics and
+   // reported by LoadDriver.
+   static final String[] USER_OPERATIONS = { null, "FriendList", "UpdateProfile", "NewMessage",
+      "SendRequest", "Searchperson", "Viewsent", "ViewInbox", "FriendRequests", null, "ExportMessages" };
+
    /**
     * The main execution method
     *
@@ -249,47 +1450,7 @@ public class ProfNetwork {
          String user = args[2];
          esql = new ProfNetwork (dbname, dbport, user, "");
 
-         boolean keepon = true;
-         while(keepon) {
-            // These are sample SQL statements
-            System.out.println("MAIN MENU");
-            System.out.println("---------");
-            System.out.println("1. Create user");
-            System.out.println("2. Log in");
-            System.out.println("9. < EXIT");
-            String authorisedUser = null;
-            switch (readChoice()){
-               case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
-               case 9: keepon = false; break;
-               default : System.out.println("Unrecognized choice!"); break;
-            }//end switch
-            if (authorisedUser != null) {
-              boolean usermenu = true;
-              while(usermenu) {
-                System.out.println("MAIN MENU");
-                System.out.println("---------");
-                System.out.println("1. Goto Friend List");
-                System.out.println("2. View/Update Profile");
-                System.out.println("3. Write a new message");
-                System.out.println("4. Send Friend Request");
-                System.out.println("5. Search for a person");
-                System.out.println("6. View/delete sent messages");
-                System.out.println(".........................");
-                System.out.println("9. Log out");
-                switch (readChoice()){
-                   case 1: FriendList(esql,authorisedUser); break;
-                   case 2: UpdateProfile(esql,authorisedUser); break;
-                   case 3: NewMessage(esql,authorisedUser); break;
-                   case 4: SendRequest(esql); break;
-                   case 5: Searchperson(esql,authorisedUser); break;
-                   case 6: Viewsent(esql,authorisedUser); break;
-                   case 9: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
-                }
-              }
-            }
-         }//end while
+         MainMenu(esql);
       }catch(Exception e) {
          System.err.println (e.getMessage ());
       }finally{
@@ -313,6 +1474,20 @@ public class ProfNetwork {
          "*******************************************************\n");
    }//end Greeting
 
+   /*
+    * Asks a y/n question until one of the two is typed
+    * @return true for y
+    **/
+   public static boolean readYesNo(String prompt) throws java.io.IOException {
+      System.out.print(prompt);
+      String z = in.readLine();
+      while(!"y".equals(z) && !"n".equals(z)) {
+         System.out.print("Enter y or n: ");
+         z = in.readLine();
+      }
+      return "y".equals(z);
+   }//end readYesNo
+
    /*
     * Reads the users choice given from the keyboard
     * @int
@@ -334,8 +1509,7 @@ public class ProfNetwork {
    }//end readChoice
 
    /*
-    * Creates a new user with privided login, passowrd and phoneNum
-    * An empty block and contact list would be generated and associated with a user
+    * Creates a new user with privided login, password, email and name
     **/
    public static void CreateUser(ProfNetwork esql){
       try{
@@ -364,10 +1538,8 @@ public class ProfNetwork {
          String name = in.readLine();
 
 
-	 //Creating empty contact\block lists for a user
-	 String query = String.format("INSERT INTO USR (userId, password, email, name) VALUES ('%s','%s','%s','%s')", login, password, email,name);
-
-         esql.executeUpdate(query);
+	 esql.executeUpdate("INSERT INTO USR (userId, password, email, name) VALUES (?,?,?,?)", login, password, email, name);
+	 esql.userNamed(login, name);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -385,9 +1557,7 @@ public class ProfNetwork {
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USR WHERE userId = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
+	 if (esql.exists(LOGIN_MATCHES, login, password))
 		return login;
          return null;
       }catch(Exception e){
@@ -395,31 +1565,129 @@ public class ProfNetwork {
          return null;
       }
    }//end
+// dates typed at the prompts and in imported files.  Immutable, so shared
+// by every thread.
+static final DateTimeFormatter DATE_FORMAT =
+    DateTimeFormatter.ofPattern("dd/MM/uuuu").withResolverStyle(ResolverStyle.STRICT);
+
 public static boolean isDateValid(String date)
 {
-    SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yyy");
-    sdf.setLenient(false);
-    return sdf.parse(date,new ParsePosition(0)) != null;
+    return parseDate(date) != null;
+}
+
+/*
+ * Parses a dd/mm/yyyy date, null when the text is not one.
+ */
+public static LocalDate parseDate(String date)
+{
+    if (date == null)
+        return null;
+    try {
+        return LocalDate.parse(date.trim(), DATE_FORMAT);
+    }catch (DateTimeParseException e) {
+        return null;
+    }
+}
+
+/*
+ * Converts a dd/mm/yyyy date typed at the prompts to the value bound to a
+ * date column, null stays null.
+ */
+public static java.sql.Date toSqlDate(String date)
+{
+    if (date == null)
+        return null;
+    return java.sql.Date.valueOf(parseDate(date));
+}
+
+/*
+ * Strips the blank padding of a char(n) value read back from the database.
+ */
+public static String trimmed(String value)
+{
+    return value == null ? null : value.trim();
 }
    public static int FriendList(ProfNetwork esql,String user)
    {
+       try{
+           String last = null;
+           while(true)
+           {
+               // one round trip per page, whatever the number of friends.
+               List<User> friends = esql.findFriends(user, last, PAGE_SIZE);
+               if(friends.isEmpty() && last == null)
+               {
+                   System.out.println("Your friend list is empty");
+                   return -1;
+               }
+               System.out.println("Friend List");
+               System.out.println("---------");
+               for(int i = 0; i < friends.size(); ++i)
+                   System.out.println((i + 1) + ". " + friends.get(i).userId + "\t" + friends.get(i).name);
+               System.out.println(".........................");
+               System.out.println("Enter a number to view a profile" + (friends.size() == PAGE_SIZE ? ", n for the next page" : "") + ", anything else to go back");
+               System.out.print("Please make your choice: ");
+               String choice = in.readLine();
+               if("n".equals(choice) && friends.size() == PAGE_SIZE)
+               {
+                   last = friends.get(friends.size() - 1).userId;
+                   continue;
+               }
+               int pick;
+               try{
+                   pick = Integer.parseInt(choice);
+               }catch(NumberFormatException e){
+                   break;
+               }
+               if(pick < 1 || pick > friends.size())
+                   break;
+               ViewProfile(esql, friends.get(pick - 1).userId);
+           }
+       }
+       catch(Exception e){
+           System.err.println(e.getMessage());
+       }
        return -1;
    }
 
+   /*
+    * Shows the public profile of a user: contact details, work experience
+    * and educational details.
+    */
+   public static void ViewProfile(ProfNetwork esql, String userId) throws SQLException
+   {
+       Profile found = esql.getProfile(userId);
+       if(found == null)
+       {
+           System.out.println("There are no users with this id");
+           return;
+       }
+       User profile = found.user;
+       System.out.println("---------");
+       System.out.println("Userid: " + profile.userId);
+       System.out.println("Email: " + profile.email);
+       System.out.println("Name: " + profile.name);
+       System.out.println("Birthday: " + profile.dateOfBirth);
+       for(WorkExperience work : found.work)
+           System.out.println("Work: " + work.role + " at " + work.company + " (" + work.startDate + " - " + work.endDate + ")");
+       for(Education education : found.education)
+           System.out.println("Education: " + education.degree + " in " + education.major + " at " + education.instituitionName + " (" + education.startDate + " - " + education.endDate + ")");
+       System.out.println("---------");
+   }
+
    public static int UpdateProfile(ProfNetwork esql, String user)
    {
        try{
-           String query = String.format("SELECT * FROM USR WHERE userid ='%s'",user);
-
-       List<List<String>> yoyo = esql.executeQueryAndReturnResult(query);
+       Profile profile = esql.getProfile(user);
+       User yoyo = profile.user;
 
 
         System.out.println("Current profile");
         System.out.println("---------");
-        System.out.println("Username: " + yoyo.get(0).get(0));
-        System.out.println("Email: " + yoyo.get(0).get(2));
-        System.out.println("Name: " + yoyo.get(0).get(3));
-        System.out.println("Birthday: " + yoyo.get(0).get(4));
+        System.out.println("Username: " + yoyo.userId);
+        System.out.println("Email: " + yoyo.email);
+        System.out.println("Name: " + yoyo.name);
+        System.out.println("Birthday: " + yoyo.dateOfBirth);
 
 
 
@@ -447,12 +1715,12 @@ System.out.println(".........................");
        case 1:
            System.out.print("Please enter your current password: ");
            String  checker = in.readLine();
-           if((checker).equals(yoyo.get(0).get(1)))
+           if((checker).equals(yoyo.password))
            {
                System.out.print("Password verified, please enter your new password: ");
                String newpw = in.readLine();
-               String qq = String.format("UPDATE USR SET password = '%s' WHERE userid = '%s',password = '%s'",newpw,user,checker);
-               esql.executeUpdate(qq);
+               esql.executeUpdate("UPDATE USR SET password = ? WHERE userid = ? AND password = ?", newpw, user, checker);
+               esql.invalidateProfile(user);
                //update pw
            }
            else
@@ -465,14 +1733,15 @@ System.out.println(".........................");
        case 2:
             System.out.print("Enter a new email: ");
             String ems = in.readLine();
-            String oreos = String.format("UPDATE USR SET email = '%s', WHERE userid = '%s'",ems, user);
-            esql.executeUpdate(oreos);
+            esql.executeUpdate("UPDATE USR SET email = ? WHERE userid = ?", ems, user);
+            esql.invalidateProfile(user);
        break;
        case 3:
             System.out.print("Enter a new name: ");
             String emss = in.readLine();
-            String oreoss = String.format("UPDATE USR SET name = '%s', WHERE userid = '%s'",emss, user);
-            esql.executeUpdate(oreoss);
+            esql.executeUpdate("UPDATE USR SET name = ? WHERE userid = ?", emss, user);
+            esql.invalidateProfile(user);
+            esql.userNamed(user, emss);
        break;
        case 4:
             System.out.print("Enter a new birthday (dd/mm/yyyy): ");
@@ -482,8 +1751,8 @@ System.out.println(".........................");
                      System.out.print("Please enter a valid date (dd/mm/yyyy): ");
                      emsc = in.readLine();
                  }
-            String oreosc = String.format("UPDATE USR SET dateofbirth = '%s', WHERE userid = '%s'",emsc, user);
-            esql.executeUpdate(oreosc);
+            esql.executeUpdate("UPDATE USR SET dateofbirth = ? WHERE userid = ?", toSqlDate(emsc), user);
+            esql.invalidateProfile(user);
        break;
 
        case 5:
@@ -495,23 +1764,21 @@ System.out.println("Work Experience");
                 System.out.println("3. Update previous work experience");
 System.out.println(".........................");
 //System.out.println("Press anything else to return to the main menu\n");
-            String query2 = String.format("SELECT * FROM WORK_EXPR WHERE userid = '%s'",user);
-            int testtest = esql.executeQuery(query2);
-            List<List<String>> yoyo2 = esql.executeQueryAndReturnResult(query2);
+            List<WorkExperience> yoyo2 = profile.work;
             switch(readChoice()){
                 case 1:
                     for(int j = 0; j < yoyo2.size();++j)
                     {
 System.out.println("---------");
-                System.out.println("Company: " + yoyo2.get(j).get(1));
+                System.out.println("Company: " + yoyo2.get(j).company);
 
-                System.out.println("Role: " + yoyo2.get(j).get(2));
+                System.out.println("Role: " + yoyo2.get(j).role);
 
-                System.out.println("Location: " + yoyo2.get(j).get(3));
+                System.out.println("Location: " + yoyo2.get(j).location);
 
-                System.out.println("Startdate: " + yoyo2.get(j).get(4));
+                System.out.println("Startdate: " + yoyo2.get(j).startDate);
 
-                System.out.println("Enddate: " + yoyo2.get(j).get(5));
+                System.out.println("Enddate: " + yoyo2.get(j).endDate);
 System.out.println("---------");
 
                     }
@@ -540,26 +1807,27 @@ System.out.println("---------");
                      System.out.print("Please enter a valid date: ");
                      enddate= in.readLine();
                  }
-                 String query3 = String.format("INSERT INTO WORK_EXPR(userId,company,role,location,startdate,enddate) VALUES ('%s','%s','%s','%s','%s','%s')",user,company,role,location,startdate,enddate);
-                 esql.executeUpdate(query3);
+                 esql.executeUpdate("INSERT INTO WORK_EXPR(userId,company,role,location,startdate,enddate) VALUES (?,?,?,?,?,?)", user, company, role, location, toSqlDate(startdate), toSqlDate(enddate));
+                 esql.invalidateProfile(user);
 
                 //add work exp
             break;
             case 3:
 
+                UnitOfWork edits = esql.beginWork();
                 int i = 0;
                 while(i < yoyo2.size())
                 {
 System.out.println("---------");
-                System.out.println("Current company: " + yoyo2.get(i).get(1));
+                System.out.println("Current company: " + yoyo2.get(i).company);
 
-                System.out.println("Current role: " + yoyo2.get(i).get(2));
+                System.out.println("Current role: " + yoyo2.get(i).role);
 
-                System.out.println("Current location: " + yoyo2.get(i).get(3));
+                System.out.println("Current location: " + yoyo2.get(i).location);
 
-                System.out.println("Current startdate: " + yoyo2.get(i).get(4));
+                System.out.println("Current startdate: " + yoyo2.get(i).startDate);
 
-                System.out.println("Current enddate: " + yoyo2.get(i).get(5));
+                System.out.println("Current enddate: " + yoyo2.get(i).endDate);
 System.out.println("---------");
                 System.out.print("Update? y/n: ");
                 String z = in.readLine();
@@ -595,12 +1863,12 @@ System.out.println("---------");
 
                 //String qq = String.format("UPDATE USR SET password = '%s' WHERE userid = '%',password = '%s'",newpw,user,checker);
 
-                    String bb = String.format("UPDATE WORK_EXPR SET company = '%s', role ='%s', location = '%s', startdate = '%s', enddate = '%s' WHERE userid = '%s' AND company = '%s' AND role = '%s' AND location = '%s'AND startdate = '%s'AND enddate = '%s'",company1,role1,location1,startdate1,enddate1,yoyo2.get(i).get(0),yoyo2.get(i).get(1),yoyo2.get(i).get(2),yoyo2.get(i).get(3),yoyo2.get(i).get(4),yoyo2.get(i).get(5));
-
-                esql.executeUpdate(bb);
+                edits.add(UPDATE_WORK, company1, role1, location1, toSqlDate(startdate1), toSqlDate(enddate1), yoyo2.get(i).id, yoyo2.get(i).version, user);
                 }
                 ++i;
                 }
+                reportEdits(edits.commit());
+                esql.invalidateProfile(user);
                 //update work exp
                 break;
                 default : System.out.println ("Unrecognized choice!"); break;
@@ -614,22 +1882,21 @@ System.out.println("EDucational details");
                 System.out.println("3. Update educational details");
 System.out.println(".........................");
 System.out.println("Press anything else to return to the main menu\n");
-            String query12 = String.format("SELECT * FROM EDUCATIONAL_DETAILS WHERE userid = '%s'",user);
-            List<List<String>> yoyo12 = esql.executeQueryAndReturnResult(query12);
+            List<Education> yoyo12 = profile.education;
             switch(readChoice()){
                 case 1:
                 for(int i = 0; i < yoyo12.size();++i)
                 {
                 System.out.println("---------");
-                System.out.println("Institution name: " + yoyo12.get(i).get(1));
+                System.out.println("Institution name: " + yoyo12.get(i).instituitionName);
 
-                System.out.println("Major: " + yoyo12.get(i).get(2));
+                System.out.println("Major: " + yoyo12.get(i).major);
 
-                System.out.println("Degree: " + yoyo12.get(i).get(3));
+                System.out.println("Degree: " + yoyo12.get(i).degree);
 
-                System.out.println("Startdate: " + yoyo12.get(i).get(4));
+                System.out.println("Startdate: " + yoyo12.get(i).startDate);
 
-                System.out.println("Enddate: " + yoyo12.get(i).get(5));
+                System.out.println("Enddate: " + yoyo12.get(i).endDate);
 System.out.println("---------");
 
                 }
@@ -658,26 +1925,27 @@ System.out.println("---------");
                      System.out.print("Please enter a valid date (dd/mm/yyyy): ");
                      enddate21= in.readLine();
                  }
-                 String query13 = String.format("INSERT INTO EDUCATIONAL_DETAILS(userId,instituitionName,major,degree,startdate,enddate) VALUES ('%s','%s','%s','%s','%s','%s')",user,company21,role21,location21,startdate21,enddate21);
-                 esql.executeUpdate(query13);
+                 esql.executeUpdate("INSERT INTO EDUCATIONAL_DETAILS(userId,instituitionName,major,degree,startdate,enddate) VALUES (?,?,?,?,?,?)", user, company21, role21, location21, toSqlDate(startdate21), toSqlDate(enddate21));
+                 esql.invalidateProfile(user);
 
                 //add work exp
             break;
             case 3:
 
+                UnitOfWork edits = esql.beginWork();
                 int i = 0;
                 while(i < yoyo12.size())
                 {
 System.out.println("---------");
-                System.out.println("Current institution name: " + yoyo12.get(i).get(1));
+                System.out.println("Current institution name: " + yoyo12.get(i).instituitionName);
 
-                System.out.println("Current major: " + yoyo12.get(i).get(2));
+                System.out.println("Current major: " + yoyo12.get(i).major);
 
-                System.out.println("Current degree: " + yoyo12.get(i).get(3));
+                System.out.println("Current degree: " + yoyo12.get(i).degree);
 
-                System.out.println("Current startdate: " + yoyo12.get(i).get(4));
+                System.out.println("Current startdate: " + yoyo12.get(i).startDate);
 
-                System.out.println("Current enddate: " + yoyo12.get(i).get(5));
+                System.out.println("Current enddate: " + yoyo12.get(i).endDate);
 System.out.println("---------");
                 System.out.print("Update? y/n: ");
                 String z = in.readLine();
@@ -713,12 +1981,12 @@ System.out.println("---------");
 
                 //String qq = String.format("UPDATE USR SET password = '%s' WHERE userid = '%',password = '%s'",newpw,user,checker);
 
-                    String bb1 = String.format("UPDATE EDUCATIONAL_DETAILS SET instituitionName = '%s', major ='%s', degree = '%s', startdate = '%s', enddate = '%s' WHERE userid = '%s' AND instituitionName = '%s' AND major = '%s' AND degree = '%s'AND startdate = '%s'AND enddate = '%s'",company13,role13,location13,startdate13,enddate13,yoyo12.get(i).get(0),yoyo12.get(i).get(1),yoyo12.get(i).get(2),yoyo12.get(i).get(3),yoyo12.get(i).get(4),yoyo12.get(i).get(5));
-
-                esql.executeUpdate(bb1);
+                edits.add(UPDATE_EDUCATION, company13, role13, location13, toSqlDate(startdate13), toSqlDate(enddate13), yoyo12.get(i).id, yoyo12.get(i).version, user);
                 }
                 ++i;
                 }
+                reportEdits(edits.commit());
+                esql.invalidateProfile(user);
                 //update work exp
                 break;
                 case 9: break;
@@ -741,30 +2009,44 @@ System.out.println("---------");
        return -1;
    }
 
+   /*
+    * Tells how many of the entries edited in UpdateProfile were saved: an
+    * entry changed or removed in the meantime no longer has the version
+    * that was read and is left alone.
+    */
+   private static void reportEdits(int[] results) {
+      if (results.length == 0)
+         return;
+      int saved = 0;
+      for (int result : results)
+         if (result != 0)
+            ++saved;
+      System.out.println(saved + " of " + results.length + " entries updated");
+      if (saved < results.length)
+         System.out.println((results.length - saved) + " entries were changed or removed meanwhile"
+                            + " by another session and were left as they are; view them again to retry");
+   }//end reportEdits
+
    public static int NewMessage(ProfNetwork esql, String user)
    {
        try{
        System.out.print("Enter name: ");
        String recipient = in.readLine();
-       String chh = String.format("SELECT * FROM USR WHERE userid='%s'",recipient);
-       int empty = esql.executeQuery(chh);
-       if(empty == 0)
+       if(!esql.exists(USER_EXISTS, recipient))
        {
            System.out.println("User does not exist");
            return -1;
        }
+       if(!esql.canContact(user, recipient))
+       {
+           System.out.println("You can only message users within " + ConnectionGraph.MAX_HOPS + " connections");
+           return -1;
+       }
 
-       List<List<String>> coont = esql.executeQueryAndReturnResult("SELECT * FROM MESSAGE");
-
-       String query = String.format("SELECT * FROM MESSAGE WHERE senderid = '%s' AND receiverID = '%s'",user,recipient);
-       int messagenumber = esql.executeQuery(query);
        System.out.print("Enter message: ");
-       Calendar calendar = Calendar.getInstance();
-       java.sql.Timestamp ourJavaTimeStampObject = new java.sql.Timestamp(calendar.getTime().getTime());
        String message = in.readLine();
-        String meow = String.format("INSERT INTO MESSAGE(msgId,senderId,receiverId,contents,sendTime,deletestatus,status) VALUES ('%s','%s','%s','%s','%s','%s','%s')",coont.size(),user,recipient,message,ourJavaTimeStampObject,0,"Delivered");
 //if deletestatus is 1, sender deletes it, if 2, receiver deletes, if 3 both delete.
-esql.executeUpdate(meow);
+       deliver(esql, user, recipient, message);
 
 }
 catch(Exception e){
@@ -774,20 +2056,41 @@ catch(Exception e){
        return -1;
    }
 
+   // how long the menus wait for a message to be committed.
+   static final long DELIVERY_WAIT_MILLIS = 5000L;
+
+   /*
+    * Sends a message and waits, a bounded time, until it is committed, so
+    * the user is told whether it really went out.
+    */
+   private static void deliver(ProfNetwork esql, String user, String recipient, String message) {
+       try {
+           MessageWriter.Delivery delivery = esql.sendMessage(user, recipient, message);
+           if (delivery.await(DELIVERY_WAIT_MILLIS))
+               System.out.println("Message sent");
+           else
+               System.out.println("Message not confirmed yet, check your sent messages later");
+       }catch (InterruptedException e) {
+           Thread.currentThread().interrupt();
+           System.out.println("Message not confirmed yet, check your sent messages later");
+       }catch (SQLException e) {
+           System.out.println("Message not sent: " + e.getMessage());
+       }
+   }//end deliver
+
    public static int Viewsent(ProfNetwork esql, String user)
    {
        try{
-           String query = String.format("SELECT * FROM MESSAGE WHERE senderid= '%s'",user);
-           List<List<String>> sentmessages = esql.executeQueryAndReturnResult(query);
+           Message last = null;
+           while(true)
+           {
+           List<Message> sentmessages = esql.findSentMessages(user, last, PAGE_SIZE);
+           // deletions of the page are sent together once it has been shown
+           UnitOfWork deletes = esql.beginWork();
            for(int i = 0; i < sentmessages.size();++i)
            {
 
-System.out.println("---------");
-               System.out.println("Message: " + sentmessages.get(i).get(3));
-
-               System.out.println("Recipient: " + sentmessages.get(i).get(2));
-               System.out.println("Time: " + sentmessages.get(i).get(4));
-System.out.println("---------");
+               printMessage(sentmessages.get(i), "Recipient: " + sentmessages.get(i).receiverId, "Status: " + sentmessages.get(i).status);
                System.out.print("Delete message?");
                 String z = in.readLine();
                 while(true)
@@ -799,44 +2102,287 @@ System.out.println("---------");
                 }
                 if((z).equals("y"))
                 {
-                    String deletething = String.format("UPDATE MESSAGE SET senderid = '%s', deletestatus = '%s' WHERE msgId = '%s'", -1, sentmessages.get(i).get(5)+1,sentmessages.get(i).get(0));    esql.executeUpdate(deletething);
+                    deletes.add(DELETE_SENT, Message.DELETED_BY_SENDER, sentmessages.get(i).msgId, user);
+                }
+           }
+           deletes.commit();
+           if(sentmessages.size() < PAGE_SIZE || !readYesNo("Show older messages? y/n: "))
+               break;
+           last = sentmessages.get(sentmessages.size() - 1);
+           }
+       }
+       catch(Exception e){
+           System.err.println(e.getMessage());
+       }
+       return -1;
 
+   }
 
-                }
+   public static int ViewInbox(ProfNetwork esql, String user)
+   {
+       try{
+           Message last = null;
+           while(true)
+           {
+               List<Message> inbox = esql.findInboxMessages(user, last, PAGE_SIZE);
+               if(inbox.isEmpty() && last == null)
+                   System.out.println("No messages");
+               // deletions of the page are sent together, as in Viewsent
+               UnitOfWork deletes = esql.beginWork();
+               for(int i = 0; i < inbox.size(); ++i)
+               {
+                   printMessage(inbox.get(i), "Sender: " + inbox.get(i).senderId,
+                                MessageStatus.DELIVERED.equals(inbox.get(i).status) ? "(new)" : null);
+                   if(readYesNo("Delete message? y/n: "))
+                       deletes.add(DELETE_RECEIVED, Message.DELETED_BY_RECEIVER, inbox.get(i).msgId, user);
+               }
+               deletes.commit();
+               esql.markRead(user, inbox);
+               if(inbox.size() < PAGE_SIZE || !readYesNo("Show older messages? y/n: "))
+                   break;
+               last = inbox.get(inbox.size() - 1);
+           }
+       }
+       catch(Exception e){
+           System.err.println(e.getMessage());
+       }
+       return -1;
+   }
+
+   /*
+    * Shows one message as a single write: its contents, the other party,
+    * its time and an optional last line.
+    */
+   private static void printMessage(Message message, String party, String last)
+   {
+       StringBuilder text = new StringBuilder(256);
+       text.append("---------\n");
+       text.append("Message: ").append(message.contents).append('\n');
+       text.append(party).append('\n');
+       text.append("Time: ").append(message.sendTime).append('\n');
+       if(last != null)
+           text.append(last).append('\n');
+       text.append("---------");
+       System.out.println(text);
+   }
+
+   /*
+    * Every visible sent or received message of a user, newest first.
+    */
+   static String exportQuery(boolean sent)
+   {
+       return "SELECT " + Message.COLUMNS + " " + (sent ? SENT_VISIBLE : INBOX_VISIBLE)
+            + "ORDER BY sendTime DESC, msgId DESC";
+   }
+
+   /*
+    * Writes all the sent or received messages of the user, newest first,
+    * as a table, CSV or JSON, to a file or to the screen.  Only the local
+    * console may write files: a SessionServer client would otherwise
+    * create or overwrite any file of the server host, so its export goes
+    * to its screen.  The messages
+    * are streamed from the database, not loaded at once.
+    */
+   public static int ExportMessages(ProfNetwork esql, String user)
+   {
+       try{
+           System.out.println("1. Sent messages");
+           System.out.println("2. Inbox");
+           int which = readChoice();
+           if(which != 1 && which != 2)
+           {
+               System.out.println("Unrecognized choice!");
+               return -1;
+           }
+           System.out.print("\tFormat (table/csv/json): ");
+           ResultRenderer.Format format = ResultRenderer.Format.parse(in.readLine());
+           while(format == null)
+           {
+               System.out.print("\tEnter table, csv or json: ");
+               format = ResultRenderer.Format.parse(in.readLine());
+           }
+           String file = "";
+           if(!SessionServer.inSession())
+           {
+               System.out.print("\tFile name (empty for screen): ");
+               file = in.readLine().trim();
+           }
+           String query = exportQuery(which == 1);
+           if(file.isEmpty())
+           {
+               esql.exportQuery(console(), format, query, user);
+               return -1;
+           }
+           Writer out = new OutputStreamWriter(new java.io.FileOutputStream(file), "UTF-8");
+           try{
+               int rows = esql.exportQuery(out, format, query, user);
+               System.out.println(rows + " messages written to " + file);
+           }finally{
+               out.close();
            }
        }
        catch(Exception e){
+           System.err.println(e.getMessage());
        }
        return -1;
+   }
 
+   public static int SendRequest(ProfNetwork esql, String user)
+   {
+       try{
+           System.out.print("\tEnter userid: ");
+           String recipient = in.readLine();
+           RequestFriend(esql, user, recipient);
+       }
+       catch(Exception e){
+           System.err.println(e.getMessage());
+       }
+       return -1;
    }
 
-   public static int SendRequest(ProfNetwork esql)
+   /*
+    * Sends a connection request after checking that the recipient exists,
+    * that the two users are not already connected or waiting on a request,
+    * and that the recipient is within reach of the sender.
+    */
+   public static void RequestFriend(ProfNetwork esql, String user, String recipient) throws SQLException
    {
+       if(user.equals(recipient))
+           System.out.println("You cannot send a friend request to yourself");
+       else if(!esql.exists(USER_EXISTS, recipient))
+           System.out.println("User does not exist");
+       else if(esql.exists(CONNECTION_EXISTS, user, recipient, recipient, user))
+           System.out.println("You are already connected or a request is pending");
+       else if(!esql.canContact(user, recipient))
+           System.out.println("You can only send requests to users within " + ConnectionGraph.MAX_HOPS + " connections");
+       else
+       {
+           esql.executeUpdate("INSERT INTO CONNECTION_USR (userId, connectionId, status) VALUES (?,?,?)", user, recipient, ConnectionStatus.PENDING);
+           System.out.println("Friend request send");
+       }
+   }
 
+   /*
+    * Lists the pending requests sent to the user a page at a time and applies
+    * every accept/reject decision of a page in one statement.
+    */
+   public static int FriendRequests(ProfNetwork esql, String user)
+   {
+       try{
+           String last = null;
+           while(true)
+           {
+               List<String> pending = esql.findPendingRequests(user, last, PAGE_SIZE);
+               if(pending.isEmpty())
+               {
+                   System.out.println(last == null ? "No pending friend requests" : "No more friend requests");
+                   break;
+               }
+               System.out.println("Friend requests");
+               System.out.println("---------");
+               for(int i = 0; i < pending.size(); ++i)
+                   System.out.println((i + 1) + ". " + pending.get(i));
+               System.out.println(".........................");
+               System.out.print("Numbers to accept (e.g. 1 3), or 'all': ");
+               List<String> accepted = pickRequests(pending, in.readLine());
+               System.out.print("Numbers to reject (e.g. 2 4), or 'all': ");
+               List<String> rejected = pickRequests(pending, in.readLine());
+               rejected.removeAll(accepted);
+               int answered = esql.answerFriendRequests(user, accepted, rejected);
+               System.out.println(answered + " request(s) answered");
+               if(pending.size() < PAGE_SIZE || !readYesNo("Show more requests? y/n: "))
+                   break;
+               last = pending.get(pending.size() - 1);
+           }
+       }
+       catch(Exception e){
+           System.err.println(e.getMessage());
+       }
        return -1;
    }
+
+   /*
+    * Returns the requesters picked by a list of 1-based numbers, or all of
+    * them for "all".  Numbers out of range are ignored.
+    */
+   private static List<String> pickRequests(List<String> pending, String answer)
+   {
+       List<String> picked = new ArrayList<String>();
+       if(answer == null)
+           return picked;
+       if(answer.trim().equalsIgnoreCase("all"))
+       {
+           picked.addAll(pending);
+           return picked;
+       }
+       for(String token : answer.trim().split("[\\s,]+"))
+       {
+           try{
+               int k = Integer.parseInt(token);
+               if(k >= 1 && k <= pending.size() && !picked.contains(pending.get(k - 1)))
+                   picked.add(pending.get(k - 1));
+           }catch(NumberFormatException e){
+               // ignored.
+           }
+       }
+       return picked;
+   }
+   // number of people listed by a search.
+   static final int SEARCH_RESULTS = 10;
+
+   /*
+    * Lists the people matching what was typed and lets the user pick one.
+    * An exact userId is taken as is.
+    * @return the userId picked, or null to go back
+    */
+   private static String pickPerson(ProfNetwork esql, String user, String query) throws java.io.IOException, SQLException {
+      if (query == null)
+         return null;
+      List<PeopleIndex.Match> matches = esql.searchPeople(user, query, SEARCH_RESULTS);
+      // an exact userId is always the first match.
+      if (!matches.isEmpty() && matches.get(0).userId.equals(query.trim()))
+         return matches.get(0).userId;
+      if (matches.isEmpty()) {
+         System.out.println("There are no users matching " + query);
+         return null;
+      }
+      for (int i = 0; i < matches.size(); ++i) {
+         PeopleIndex.Match match = matches.get(i);
+         System.out.println((i + 1) + ". " + match.userId + "  " + (match.name == null ? "" : match.name)
+            + (match.distance > 0 ? "  (" + match.distance + " connections away)" : ""));
+      }
+      System.out.print("Pick a person (anything else to go back): ");
+      try {
+         int pick = Integer.parseInt(in.readLine().trim());
+         if (pick >= 1 && pick <= matches.size())
+            return matches.get(pick - 1).userId;
+      }catch (NumberFormatException e) {
+      }
+      return null;
+   }//end pickPerson
+
    public static int Searchperson(ProfNetwork esql, String user)
    {
     try{
 System.out.println("---------");
-       System.out.print("\tEnter name: ");
-       String name1 = in.readLine();
-       String query = String.format("SELECT userid, email, name FROM USR WHERE userid='%s'",name1);
-       //int yoyo = esql.executeQueryAndPrintResult(query);
-       int empty = esql.executeQuery(query);
-       if(empty == 0)
+       System.out.print("\tEnter name or id: ");
+       String name1 = pickPerson(esql, user, in.readLine());
+       if(name1 == null)
+           return -1;
+       //int yoyo = esql.executeQueryAndPrintResult("SELECT userid, email, name FROM USR WHERE userid = ?", name1);
+       Profile found = esql.getProfile(name1);
+       User yoyo = found == null ? null : found.user;
+       if(yoyo == null)
        {
            System.out.println("There are no users with this id");
        }
        else{
 
-       List<List<String>> yoyo = esql.executeQueryAndReturnResult(query);
-       //String poop = yoyo.get(0).get(0);
+       //String poop = yoyo.userId;
 
-       System.out.println("Userid: " + yoyo.get(0).get(0));
-       System.out.println("Email: " + yoyo.get(0).get(1));
-       System.out.println("Name: " + yoyo.get(0).get(2));
+       System.out.println("Userid: " + yoyo.userId);
+       System.out.println("Email: " + yoyo.email);
+       System.out.println("Name: " + yoyo.name);
 System.out.println("---------");
        //print other info like work/education i guess
         System.out.println("MENU");
@@ -847,45 +2393,35 @@ System.out.println(".........................");
                 System.out.println("Press anything else to go back\n");
                 System.out.print("Please make your choice: ");
        String yes = in.readLine();
-       int foo = Integer.parseInt(yes);
+       int foo;
+       try {
+          foo = Integer.parseInt(yes.trim());
+       }catch (NumberFormatException e) {
+          foo = 0; // go back
+       }
        if(foo == 1)
        {
            //addfriend
-           System.out.println("Friend request send");
-           //or System.out.print("friend already in list)";
+           RequestFriend(esql, user, name1);
        }
        else if(foo == 2)
        {
-           //sendmessage
-           //
-           //
-           //
-           //
-           //
-           //IF WITHIN 3 CONNECTIONS OR 5 FOR NEW. idk how to do it
-           //
-           //
-        List<List<String>> coont = esql.executeQueryAndReturnResult("SELECT * FROM MESSAGE");
-
-       String queryy = String.format("SELECT * FROM MESSAGE WHERE senderid = '%s' AND receiverID = '%s'",user,name1);
-       int messagenumber = esql.executeQuery(queryy);
+           //sendmessage, only within 3 connections or 5 for new users
+           if(!esql.canContact(user, name1))
+           {
+               System.out.println("You can only message users within " + ConnectionGraph.MAX_HOPS + " connections");
+               return -1;
+           }
        System.out.print("Enter message: ");
-       Calendar calendar = Calendar.getInstance();
-       java.sql.Timestamp ourJavaTimeStampObject = new java.sql.Timestamp(calendar.getTime().getTime());
        String message = in.readLine();
-        String meow = String.format("INSERT INTO MESSAGE(msgId,senderId,receiverId,contents,sendTime,deletestatus,status) VALUES ('%s','%s','%s','%s','%s','%s','%s')",coont.size(),user,name1,message,ourJavaTimeStampObject,0,"Delivered");
-//if deletestatus is 1, sender deletes it, if 2, receiver deletes, if 3 both delete.
-//probably dont need? idk
-esql.executeUpdate(meow);
-
-           System.out.println("Message sent");
+       deliver(esql, user, name1, message);
            }
         System.out.println(".........................");
        }
 
 }
 catch(Exception e){
-        //   System.err.println (e.getMessage ());
+           System.err.println (e.getMessage ());
        }
        return -1;
    }
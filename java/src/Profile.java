@@ -0,0 +1,21 @@
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything shown on a user's profile: the USR row with the user's work
+ * experience and education.  Profiles are shared through the profile
+ * cache, so they are immutable.
+ *
+ */
+public class Profile {
+
+   public final User user;
+   public final List<WorkExperience> work;
+   public final List<Education> education;
+
+   public Profile (User user, List<WorkExperience> work, List<Education> education) {
+      this.user = user;
+      this.work = Collections.unmodifiableList (work);
+      this.education = Collections.unmodifiableList (education);
+   }//end Profile
+}//end Profile
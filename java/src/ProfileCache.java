@@ -0,0 +1,122 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * This class keeps recently read profiles in memory, keyed by userId.  It
+ * holds at most a given number of profiles, dropping the least recently
+ * used one on overflow, and an entry expires after a time to live so that
+ * changes made outside this process are eventually seen.
+ *
+ * Every write to a user's profile must call invalidate.  A profile being
+ * loaded while its user is invalidated could be stale, so put only accepts
+ * it when no invalidation happened since the load started (see epoch).
+ *
+ */
+public class ProfileCache {
+
+   // default number of profiles kept.
+   public static final int DEFAULT_CAPACITY = 1024;
+
+   // default time to live of a cached profile.
+   public static final long DEFAULT_TTL_MILLIS = 60000L;
+
+   private final int _capacity;
+   private final long _ttlMillis;
+
+   // cached profiles in access order, the eldest is dropped on overflow.
+   private final LinkedHashMap<String, Entry> _profiles;
+
+   // number of invalidations so far.
+   private long _epoch = 0;
+
+   private long _hits = 0;
+   private long _misses = 0;
+
+   /**
+    * A cached profile with the time it was loaded.
+    */
+   private static class Entry {
+      final Profile profile;
+      final long loaded;
+
+      Entry (Profile profile, long loaded) {
+         this.profile = profile;
+         this.loaded = loaded;
+      }
+   }//end Entry
+
+   /**
+    * Creates a new instance of ProfileCache
+    *
+    * @param capacity the maximum number of profiles kept, 0 to disable
+    * @param ttlMillis how long a profile stays valid after being loaded
+    */
+   public ProfileCache (int capacity, long ttlMillis) {
+      this._capacity = capacity;
+      this._ttlMillis = ttlMillis;
+      this._profiles = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+   }//end ProfileCache
+
+   /**
+    * @param userId the user whose profile is wanted
+    * @return the cached profile, or null when absent or expired
+    */
+   public synchronized Profile get (String userId) {
+      Entry entry = this._profiles.get (userId);
+      if (entry != null && System.currentTimeMillis () - entry.loaded >= this._ttlMillis) {
+         this._profiles.remove (userId);
+         entry = null;
+      }//end if
+      if (entry == null) {
+         this._misses++;
+         return null;
+      }//end if
+      this._hits++;
+      return entry.profile;
+   }//end get
+
+   /**
+    * Returns the current invalidation epoch, to be taken before loading a
+    * profile and handed to put.
+    */
+   public synchronized long epoch () {
+      return this._epoch;
+   }//end epoch
+
+   /**
+    * Caches a loaded profile, unless a profile was invalidated since epoch
+    * was taken.
+    *
+    * @param userId the user the profile belongs to
+    * @param profile the loaded profile
+    * @param epoch the value of epoch() before the load started
+    */
+   public synchronized void put (String userId, Profile profile, long epoch) {
+      if (epoch != this._epoch || this._capacity == 0)
+         return;
+      this._profiles.put (userId, new Entry (profile, System.currentTimeMillis ()));
+      if (this._profiles.size () > this._capacity) {
+         Iterator<String> eldest = this._profiles.keySet ().iterator ();
+         eldest.next ();
+         eldest.remove ();
+      }//end if
+   }//end put
+
+   /**
+    * Drops the cached profile of a user whose profile data changed.
+    *
+    * @param userId the user whose USR, WORK_EXPR or EDUCATIONAL_DETAILS
+    *        rows were written
+    */
+   public synchronized void invalidate (String userId) {
+      this._epoch++;
+      this._profiles.remove (userId);
+   }//end invalidate
+
+   /**
+    * @return a summary of the cache usage, e.g. for logging
+    */
+   public synchronized String stats () {
+      return "profiles=" + this._profiles.size () + " hits=" + this._hits + " misses=" + this._misses;
+   }//end stats
+}//end ProfileCache
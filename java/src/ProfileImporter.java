@@ -0,0 +1,342 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Imports work experience or education histories from a CSV file, the
+ * batch counterpart of the UpdateProfile menu:
+ *
+ *    java -cp classes:lib/pg73jdbc3.jar ProfileImporter <dbname> <port> <user>
+ *         work|education <csv file> [--header] [--rejects <file>]
+ *         [--threads <n>] [--batch <rows>]
+ *
+ * The columns are those of work_expr.csv and education.csv of BulkLoader:
+ *
+ *    work       userId, company, role, location, startDate, endDate
+ *    education  userId, instituitionName, major, degree, startdate, enddate
+ *
+ * Dates are dd/mm/yyyy, as typed at the prompts, or yyyy-mm-dd.
+ *
+ * The file is read in chunks of a batch of records.  Each chunk is
+ * validated and written by one of the worker threads, as one batched
+ * INSERT in one transaction, so parsing and writing both run in parallel.
+ * Records that fail validation, whose user does not exist or that are
+ * already present are not imported; each is written to the rejects file
+ * with its line number and the reason.
+ *
+ * Unlike BulkLoader, which loads a fresh database, the import adds to live
+ * tables and leaves their indexes in place.  Running servers show the
+ * imported records once their cached profiles expire
+ * (profnetwork.profile.ttlMs).
+ *
+ */
+public class ProfileImporter {
+
+   // records validated and written per transaction.
+   public static final int DEFAULT_BATCH_ROWS = 5000;
+
+   private static final DateTimeFormatter ISO_DATE = DateTimeFormatter.ISO_LOCAL_DATE;
+
+   /**
+    * What is imported: its table, its columns and the limits checked on
+    * its text fields.
+    */
+   static class Kind {
+      final String name;
+      final String[] columns;
+      // maximum length of each text field, 0 for a date.
+      final int[] lengths;
+      // number of leading fields that are required.
+      final int required;
+      final String insert;
+
+      Kind (String name, String table, String[] columns, int[] lengths, int required) {
+         this.name = name;
+         this.columns = columns;
+         this.lengths = lengths;
+         this.required = required;
+         // the user must exist; existing records are skipped and counted
+         // as rejects by their update count of 0.
+         StringBuilder select = new StringBuilder ();
+         for (int i = 0; i < columns.length; ++i)
+            select.append (i == 0 ? "" : ", ").append ("CAST(? AS ").append (lengths[i] == 0 ? "date" : "varchar").append (')');
+         StringBuilder list = new StringBuilder ();
+         for (int i = 0; i < columns.length; ++i)
+            list.append (i == 0 ? "" : ", ").append (columns[i]);
+         this.insert = "INSERT INTO " + table + " (" + list + ") SELECT " + select
+                       + " WHERE EXISTS (SELECT 1 FROM USR WHERE userId = ?) ON CONFLICT DO NOTHING";
+      }
+   }//end Kind
+
+   static final Kind WORK = new Kind ("work", "WORK_EXPR",
+      new String[] { "userId", "company", "role", "location", "startDate", "endDate" },
+      new int[] { 10, 50, 50, 50, 0, 0 }, 3);
+
+   static final Kind EDUCATION = new Kind ("education", "EDUCATIONAL_DETAILS",
+      new String[] { "userId", "instituitionName", "major", "degree", "startdate", "enddate" },
+      new int[] { 10, 50, 50, 50, 0, 0 }, 4);
+
+   private final ProfNetwork _esql;
+   private final Kind _kind;
+   private final int _batchRows;
+   private final Writer _rejects;
+
+   private final AtomicLong _imported = new AtomicLong ();
+   private final AtomicLong _rejected = new AtomicLong ();
+
+   /**
+    * Creates a new instance of ProfileImporter
+    *
+    * @param esql the database access object whose pool is used
+    * @param kind WORK or EDUCATION
+    * @param batchRows records validated and written per transaction
+    * @param rejects where rejected records are reported, may be null
+    */
+   public ProfileImporter (ProfNetwork esql, Kind kind, int batchRows, Writer rejects) {
+      this._esql = esql;
+      this._kind = kind;
+      this._batchRows = batchRows;
+      this._rejects = rejects;
+   }//end ProfileImporter
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 5 || (!args[3].equals ("work") && !args[3].equals ("education"))) {
+         System.err.println ("Usage: java ProfileImporter <dbname> <port> <user> work|education <csv file> "
+                             + "[--header] [--rejects <file>] [--threads <n>] [--batch <rows>]");
+         return;
+      }//end if
+      boolean header = false;
+      File rejectsFile = new File (args[4] + ".rejects.csv");
+      int threads = Runtime.getRuntime ().availableProcessors ();
+      int batch = DEFAULT_BATCH_ROWS;
+      for (int i = 5; i < args.length; ++i) {
+         if (args[i].equals ("--header"))
+            header = true;
+         else if (args[i].equals ("--rejects") && i + 1 < args.length)
+            rejectsFile = new File (args[++i]);
+         else if (args[i].equals ("--threads") && i + 1 < args.length)
+            threads = Integer.parseInt (args[++i]);
+         else if (args[i].equals ("--batch") && i + 1 < args.length)
+            batch = Integer.parseInt (args[++i]);
+      }//end for
+
+      // a connection per worker, and one for the reader thread, which
+      // imports a chunk itself when the workers are behind.
+      if (System.getProperty ("profnetwork.pool.max") == null)
+         System.setProperty ("profnetwork.pool.max", String.valueOf (threads + 1));
+      Class.forName ("org.postgresql.Driver");
+      ProfNetwork esql = new ProfNetwork (args[0], args[1], args[2], "");
+      Writer rejects = new BufferedWriter (new OutputStreamWriter (new FileOutputStream (rejectsFile), Charset.forName ("UTF-8")));
+      try {
+         long start = System.nanoTime ();
+         ProfileImporter importer = new ProfileImporter (esql, args[3].equals ("work") ? WORK : EDUCATION, batch, rejects);
+         importer.importFile (new File (args[4]), header, threads);
+         double secs = (System.nanoTime () - start) / 1e9;
+         System.out.printf ("%d imported, %d rejected in %.1f s, %.0f records/s%n",
+                            importer.getImported (), importer.getRejected (), secs,
+                            (importer.getImported () + importer.getRejected ()) / Math.max (secs, 1e-9));
+         if (importer.getRejected () > 0)
+            System.out.println ("Rejected records are in " + rejectsFile);
+      }finally{
+         rejects.close ();
+         esql.cleanup ();
+      }//end try
+   }//end main
+
+   /**
+    * Imports every record of a file.
+    *
+    * @param file the CSV file
+    * @param header whether the first line is a header
+    * @param threads the number of worker threads
+    * @throws java.lang.Exception when reading the file or writing a batch
+    *         failed; the batches committed before stay imported
+    */
+   public void importFile (File file, boolean header, int threads) throws Exception {
+      // a full queue makes the reader wait for the workers, so at most
+      // about 2 * threads chunks are in memory.
+      ThreadPoolExecutor workers = new ThreadPoolExecutor (threads, threads, 0L, TimeUnit.MILLISECONDS,
+         new ArrayBlockingQueue<Runnable>(threads), new ThreadPoolExecutor.CallerRunsPolicy ());
+      List<Future<?>> pending = new ArrayList<Future<?>>();
+      BufferedReader reader = new BufferedReader (new InputStreamReader (new FileInputStream (file), Charset.forName ("UTF-8")), 1 << 16);
+      try {
+         BulkLoader.CsvReader csv = new BulkLoader.CsvReader (reader);
+         if (header)
+            csv.next ();
+         while (true) {
+            final List<String[]> records = new ArrayList<String[]>(this._batchRows);
+            final List<Integer> lines = new ArrayList<Integer>(this._batchRows);
+            String[] record;
+            while (records.size () < this._batchRows && (record = csv.next ()) != null) {
+               records.add (record);
+               lines.add (csv.line ());
+            }//end while
+            if (records.isEmpty ())
+               break;
+            pending.add (workers.submit (new Callable<Void>() {
+               public Void call () throws Exception {
+                  importChunk (records, lines);
+                  return null;
+               }
+            }));
+            // drop the futures of chunks done, rethrowing their failure.
+            while (!pending.isEmpty () && pending.get (0).isDone ())
+               result (pending.remove (0));
+         }//end while
+         for (Future<?> future : pending)
+            result (future);
+      }finally{
+         reader.close ();
+         workers.shutdownNow ();
+      }//end try
+   }//end importFile
+
+   /**
+    * @return the number of records imported so far
+    */
+   public long getImported () {
+      return this._imported.get ();
+   }//end getImported
+
+   /**
+    * @return the number of records rejected so far
+    */
+   public long getRejected () {
+      return this._rejected.get ();
+   }//end getRejected
+
+   /*
+    * Validates a chunk and writes its valid records in one transaction.
+    */
+   void importChunk (List<String[]> records, List<Integer> lines) throws SQLException, IOException {
+      UnitOfWork work = this._esql.beginWork ();
+      List<Integer> added = new ArrayList<Integer>(records.size ());
+      int width = this._kind.columns.length;
+      for (int r = 0; r < records.size (); ++r) {
+         String[] record = records.get (r);
+         Object[] params = new Object[width + 1];
+         String error = validate (record, params);
+         if (error != null) {
+            reject (lines.get (r), error, record);
+            continue;
+         }//end if
+         params[width] = params[0];
+         work.add (this._kind.insert, params);
+         added.add (r);
+      }//end for
+      int[] counts = work.commit ();
+      int imported = 0;
+      for (int i = 0; i < counts.length; ++i) {
+         if (counts[i] == 0)
+            reject (lines.get (added.get (i)), "unknown user or already present", records.get (added.get (i)));
+         else
+            imported++;
+      }//end for
+      this._imported.addAndGet (imported);
+   }//end importChunk
+
+   /*
+    * Checks a record and fills the parameters of its INSERT.  Returns the
+    * reason it is invalid, or null.
+    */
+   String validate (String[] record, Object[] params) {
+      Kind kind = this._kind;
+      if (record.length != kind.columns.length)
+         return "expected " + kind.columns.length + " fields, found " + record.length;
+      LocalDate start = null;
+      for (int i = 0; i < record.length; ++i) {
+         String value = record[i] == null ? null : record[i].trim ();
+         if (value != null && value.isEmpty ())
+            value = null;
+         if (value == null && i < kind.required)
+            return kind.columns[i] + " is missing";
+         if (kind.lengths[i] == 0) {
+            LocalDate date = null;
+            if (value != null) {
+               date = parseDate (value);
+               if (date == null)
+                  return kind.columns[i] + " is not a date: " + value;
+            }//end if
+            if (start == null) {
+               start = date;
+            }else if (date != null && date.isBefore (start)) {
+               return kind.columns[i] + " is before " + kind.columns[i - 1];
+            }//end if
+            params[i] = date == null ? null : java.sql.Date.valueOf (date);
+         }else{
+            if (value != null && value.length () > kind.lengths[i])
+               return kind.columns[i] + " is longer than " + kind.lengths[i];
+            params[i] = value;
+         }//end if
+      }//end for
+      // startDate is part of the WORK_EXPR primary key.
+      if (kind == WORK && params[4] == null)
+         return "startDate is missing";
+      return null;
+   }//end validate
+
+   /*
+    * dd/mm/yyyy or yyyy-mm-dd, null when neither.
+    */
+   static LocalDate parseDate (String text) {
+      if (text.indexOf ('/') >= 0)
+         return ProfNetwork.parseDate (text);
+      try {
+         return LocalDate.parse (text, ISO_DATE);
+      }catch (DateTimeParseException e) {
+         return null;
+      }//end try
+   }//end parseDate
+
+   /*
+    * Appends a record to the rejects file: line number, reason, then the
+    * fields of the record, as CSV.
+    */
+   private void reject (int line, String reason, String[] record) throws IOException {
+      this._rejected.incrementAndGet ();
+      if (this._rejects == null)
+         return;
+      StringBuilder text = new StringBuilder ();
+      text.append (line).append (',').append (csv (reason));
+      for (String field : record)
+         text.append (',').append (field == null ? "" : csv (field));
+      text.append ("\r\n");
+      synchronized (this._rejects) {
+         this._rejects.write (text.toString ());
+      }//end synchronized
+   }//end reject
+
+   private static String csv (String value) {
+      if (value.indexOf (',') < 0 && value.indexOf ('"') < 0 && value.indexOf ('\n') < 0 && value.indexOf ('\r') < 0)
+         return value;
+      return '"' + value.replace ("\"", "\"\"") + '"';
+   }//end csv
+
+   private static void result (Future<?> future) throws Exception {
+      try {
+         future.get ();
+      }catch (ExecutionException e) {
+         throw (e.getCause () instanceof Exception) ? (Exception) e.getCause () : e;
+      }//end try
+   }//end result
+}//end ProfileImporter
@@ -0,0 +1,339 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class records the latency, row count and errors of every query the
+ * data-access layer runs, per logical query and per menu operation.
+ *
+ * A logical query is the SQL text.  Queries built by concatenating values
+ * into the text are folded into one by replacing their literals with '?'.
+ * The menu operation is a per-thread tag set by the menus (setOperation),
+ * "-" outside of them.
+ *
+ * Recording is a couple of map lookups and atomic increments.  Latencies
+ * go to fixed histogram buckets, so percentiles can be computed by the
+ * monitoring side.  Queries over a threshold are also written to the slow
+ * query log, without their parameters (they may hold passwords).
+ *
+ * The metrics are readable over JMX (QueryMetricsMBean), as Prometheus
+ * text from getPrometheusText, and over HTTP at /metrics when serveHttp
+ * was called.
+ *
+ */
+public class QueryMetrics implements QueryMetricsMBean {
+
+   // upper bounds of the latency histogram buckets, in seconds.
+   static final double[] BUCKETS = { 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01,
+                                     0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+   private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+   static {
+      for (int i = 0; i < BUCKETS.length; ++i)
+         BUCKET_NANOS[i] = (long) (BUCKETS[i] * 1e9);
+   }
+
+   public static final String NO_OPERATION = "-";
+
+   // the menu operation run by each thread.
+   private static final ThreadLocal<String> OPERATION = new ThreadLocal<String>();
+
+   private static final Pattern LITERALS = Pattern.compile ("'(?:[^']|'')*'|\\b\\d+(?:\\.\\d+)?\\b");
+   private static final Pattern SPACES = Pattern.compile ("\\s+");
+
+   /**
+    * The measures of one logical query run by one operation.
+    */
+   private static class Stats {
+      final String operation;
+      final String query;
+      final AtomicLongArray buckets = new AtomicLongArray (BUCKETS.length + 1);
+      final AtomicLong count = new AtomicLong ();
+      final AtomicLong nanos = new AtomicLong ();
+      final AtomicLong rows = new AtomicLong ();
+      final AtomicLong errors = new AtomicLong ();
+
+      Stats (String operation, String query) {
+         this.operation = operation;
+         this.query = query;
+      }
+   }//end Stats
+
+   // operation -> SQL text -> measures.
+   private final ConcurrentMap<String, ConcurrentMap<String, Stats>> _stats =
+      new ConcurrentHashMap<String, ConcurrentMap<String, Stats>>();
+
+   private volatile long _slowNanos;
+   private final AtomicLong _slowCount = new AtomicLong ();
+   private final PrintStream _slowLog;
+
+   private ObjectName _name = null;
+   private HttpServer _http = null;
+
+   /**
+    * Creates a new instance of QueryMetrics
+    *
+    * @param slowQueryMillis the latency above which a query is logged, 0
+    *        to log none
+    * @param slowLog where slow queries are logged
+    */
+   public QueryMetrics (long slowQueryMillis, PrintStream slowLog) {
+      this._slowNanos = slowQueryMillis * 1000000L;
+      this._slowLog = slowLog;
+   }//end QueryMetrics
+
+   /**
+    * Tags the queries run by the current thread with a menu operation.
+    *
+    * @param operation the operation, null for none
+    */
+   public static void setOperation (String operation) {
+      if (operation == null)
+         OPERATION.remove ();
+      else
+         OPERATION.set (operation);
+   }//end setOperation
+
+   /**
+    * @return the operation of the current thread, NO_OPERATION if none
+    */
+   public static String getOperation () {
+      String operation = OPERATION.get ();
+      return operation == null ? NO_OPERATION : operation;
+   }//end getOperation
+
+   /**
+    * Records a query run with '?' placeholders.
+    *
+    * @param sql the SQL text
+    * @param startNanos System.nanoTime() when the query started
+    * @param rows the rows returned or affected, -1 if the query failed
+    */
+   public void record (String sql, long startNanos, int rows) {
+      long nanos = System.nanoTime () - startNanos;
+      Stats stats = stats (getOperation (), sql);
+      int bucket = 0;
+      while (bucket < BUCKET_NANOS.length && nanos > BUCKET_NANOS[bucket])
+         ++bucket;
+      stats.buckets.incrementAndGet (bucket);
+      stats.count.incrementAndGet ();
+      stats.nanos.addAndGet (nanos);
+      if (rows < 0)
+         stats.errors.incrementAndGet ();
+      else
+         stats.rows.addAndGet (rows);
+
+      long slow = this._slowNanos;
+      if (slow > 0 && nanos >= slow) {
+         this._slowCount.incrementAndGet ();
+         this._slowLog.printf (Locale.ROOT, "slow query: %.1f ms op=%s rows=%d %s%n",
+                               nanos / 1e6, stats.operation, rows, stats.query);
+      }//end if
+   }//end record
+
+   /**
+    * Records a query whose values are part of its text.  The literals are
+    * replaced by '?' so all runs count as one logical query.
+    *
+    * @param sql the SQL text
+    * @param startNanos System.nanoTime() when the query started
+    * @param rows the rows returned or affected, -1 if the query failed
+    */
+   public void recordLiteral (String sql, long startNanos, int rows) {
+      record (LITERALS.matcher (sql).replaceAll ("?"), startNanos, rows);
+   }//end recordLiteral
+
+   private Stats stats (String operation, String sql) {
+      ConcurrentMap<String, Stats> queries = this._stats.get (operation);
+      if (queries == null) {
+         ConcurrentMap<String, Stats> created = new ConcurrentHashMap<String, Stats>();
+         queries = this._stats.putIfAbsent (operation, created);
+         if (queries == null)
+            queries = created;
+      }//end if
+      Stats stats = queries.get (sql);
+      if (stats == null) {
+         Stats created = new Stats (operation, SPACES.matcher (sql.trim ()).replaceAll (" "));
+         stats = queries.putIfAbsent (sql, created);
+         if (stats == null)
+            stats = created;
+      }//end if
+      return stats;
+   }//end stats
+
+   private List<Stats> all () {
+      List<Stats> all = new ArrayList<Stats>();
+      for (ConcurrentMap<String, Stats> queries : this._stats.values ())
+         all.addAll (queries.values ());
+      return all;
+   }//end all
+
+   public long getQueryCount () {
+      long count = 0;
+      for (Stats stats : all ())
+         count += stats.count.get ();
+      return count;
+   }//end getQueryCount
+
+   public long getErrorCount () {
+      long count = 0;
+      for (Stats stats : all ())
+         count += stats.errors.get ();
+      return count;
+   }//end getErrorCount
+
+   public long getSlowQueryCount () {
+      return this._slowCount.get ();
+   }//end getSlowQueryCount
+
+   public long getSlowQueryThresholdMillis () {
+      return this._slowNanos / 1000000L;
+   }//end getSlowQueryThresholdMillis
+
+   public void setSlowQueryThresholdMillis (long millis) {
+      this._slowNanos = millis * 1000000L;
+   }//end setSlowQueryThresholdMillis
+
+   public String[] getTopQueries () {
+      List<Stats> all = all ();
+      Collections.sort (all, new Comparator<Stats>() {
+         public int compare (Stats a, Stats b) {
+            long x = a.nanos.get (), y = b.nanos.get ();
+            return x > y ? -1 : x < y ? 1 : 0;
+         }
+      });
+      int count = Math.min (10, all.size ());
+      String[] top = new String[count];
+      for (int i = 0; i < count; ++i) {
+         Stats stats = all.get (i);
+         long calls = stats.count.get ();
+         top[i] = String.format (Locale.ROOT, "%.1f ms total, %d calls, %.3f ms avg, %d errors, op=%s %s",
+                                 stats.nanos.get () / 1e6, calls, calls == 0 ? 0 : stats.nanos.get () / 1e6 / calls,
+                                 stats.errors.get (), stats.operation, stats.query);
+      }//end for
+      return top;
+   }//end getTopQueries
+
+   public String getPrometheusText () {
+      StringBuilder out = new StringBuilder ();
+      List<Stats> all = all ();
+      out.append ("# HELP profnetwork_query_duration_seconds Latency of the data-access queries.\n");
+      out.append ("# TYPE profnetwork_query_duration_seconds histogram\n");
+      for (Stats stats : all) {
+         String labels = "operation=\"" + escape (stats.operation) + "\",query=\"" + escape (stats.query) + "\"";
+         long cumulative = 0;
+         for (int i = 0; i <= BUCKETS.length; ++i) {
+            cumulative += stats.buckets.get (i);
+            String le = i < BUCKETS.length ? String.valueOf (BUCKETS[i]) : "+Inf";
+            out.append ("profnetwork_query_duration_seconds_bucket{").append (labels)
+               .append (",le=\"").append (le).append ("\"} ").append (cumulative).append ('\n');
+         }//end for
+         out.append ("profnetwork_query_duration_seconds_sum{").append (labels).append ("} ")
+            .append (stats.nanos.get () / 1e9).append ('\n');
+         out.append ("profnetwork_query_duration_seconds_count{").append (labels).append ("} ")
+            .append (stats.count.get ()).append ('\n');
+      }//end for
+      out.append ("# HELP profnetwork_query_rows_total Rows returned or affected by the queries.\n");
+      out.append ("# TYPE profnetwork_query_rows_total counter\n");
+      for (Stats stats : all)
+         out.append ("profnetwork_query_rows_total{operation=\"").append (escape (stats.operation))
+            .append ("\",query=\"").append (escape (stats.query)).append ("\"} ").append (stats.rows.get ()).append ('\n');
+      out.append ("# HELP profnetwork_query_errors_total Queries that failed.\n");
+      out.append ("# TYPE profnetwork_query_errors_total counter\n");
+      for (Stats stats : all)
+         out.append ("profnetwork_query_errors_total{operation=\"").append (escape (stats.operation))
+            .append ("\",query=\"").append (escape (stats.query)).append ("\"} ").append (stats.errors.get ()).append ('\n');
+      out.append ("# HELP profnetwork_slow_queries_total Queries over the slow query threshold.\n");
+      out.append ("# TYPE profnetwork_slow_queries_total counter\n");
+      out.append ("profnetwork_slow_queries_total ").append (this._slowCount.get ()).append ('\n');
+      return out.toString ();
+   }//end getPrometheusText
+
+   public void reset () {
+      this._stats.clear ();
+      this._slowCount.set (0);
+   }//end reset
+
+   private static String escape (String label) {
+      return label.replace ("\\", "\\\\").replace ("\"", "\\\"").replace ("\n", "\\n");
+   }//end escape
+
+   /**
+    * Registers the metrics with the platform MBean server, under
+    * profnetwork:type=QueryMetrics (plus an instance number when several
+    * are registered).
+    */
+   public synchronized void register () {
+      try {
+         javax.management.MBeanServer server = ManagementFactory.getPlatformMBeanServer ();
+         ObjectName name = new ObjectName ("profnetwork:type=QueryMetrics");
+         for (int instance = 2; server.isRegistered (name); ++instance)
+            name = new ObjectName ("profnetwork:type=QueryMetrics,instance=" + instance);
+         server.registerMBean (this, name);
+         this._name = name;
+      }catch (Exception e) {
+         this._slowLog.println ("Query metrics not registered with JMX: " + e.getMessage ());
+      }//end try
+   }//end register
+
+   /**
+    * Serves getPrometheusText over HTTP at http://host:port/metrics, for
+    * Prometheus to scrape.
+    *
+    * @param port the TCP port to listen on
+    * @throws java.io.IOException when the port could not be bound
+    */
+   public synchronized void serveHttp (int port) throws IOException {
+      HttpServer http = HttpServer.create (new InetSocketAddress (port), 0);
+      http.createContext ("/metrics", new HttpHandler () {
+         public void handle (HttpExchange exchange) throws IOException {
+            byte[] body = getPrometheusText ().getBytes ("UTF-8");
+            exchange.getResponseHeaders ().set ("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders (200, body.length);
+            OutputStream out = exchange.getResponseBody ();
+            try {
+               out.write (body);
+            }finally{
+               out.close ();
+            }//end try
+         }
+      });
+      http.start ();
+      this._http = http;
+   }//end serveHttp
+
+   /**
+    * Unregisters from JMX and stops the HTTP endpoint.
+    */
+   public synchronized void close () {
+      if (this._http != null) {
+         this._http.stop (0);
+         this._http = null;
+      }//end if
+      if (this._name != null) {
+         try {
+            ManagementFactory.getPlatformMBeanServer ().unregisterMBean (this._name);
+         }catch (Exception e) {
+            // ignored.
+         }//end try
+         this._name = null;
+      }//end if
+   }//end close
+}//end QueryMetrics
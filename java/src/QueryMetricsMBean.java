@@ -0,0 +1,44 @@
+/**
+ * Management interface of QueryMetrics, as seen over JMX (jconsole, or any
+ * JMX client) under profnetwork:type=QueryMetrics.
+ *
+ */
+public interface QueryMetricsMBean {
+
+   /**
+    * @return the number of queries recorded
+    */
+   long getQueryCount ();
+
+   /**
+    * @return the number of queries that failed
+    */
+   long getErrorCount ();
+
+   /**
+    * @return the number of queries slower than the slow query threshold
+    */
+   long getSlowQueryCount ();
+
+   long getSlowQueryThresholdMillis ();
+
+   /**
+    * @param millis the latency above which a query is logged, 0 to log none
+    */
+   void setSlowQueryThresholdMillis (long millis);
+
+   /**
+    * @return the queries taking the most time in total, one line each
+    */
+   String[] getTopQueries ();
+
+   /**
+    * @return every metric in Prometheus text format
+    */
+   String getPrometheusText ();
+
+   /**
+    * Forgets everything recorded so far.
+    */
+   void reset ();
+}//end QueryMetricsMBean
@@ -0,0 +1,396 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class sends reads to streaming replicas of the database, writes
+ * staying on the primary.  Each replica has its own connection pool, and
+ * its replication lag is checked every LAG_CHECK_PERIOD milliseconds in
+ * the background.
+ *
+ * A read goes to a replica, round robin, when two things hold:
+ *
+ *  - the replica is at most maxLagMillis behind, counting the time since
+ *    its lag was measured;
+ *  - the replica has replayed the WAL up to the last write of the current
+ *    session, so that a session reads its own writes (read-your-writes).
+ *    A session is a thread: one per SessionServer client, the main thread
+ *    on the console.
+ *
+ * Otherwise, or with no replica usable, the read goes to the primary.
+ * Code whose reads must be current, such as loads into caches shared by
+ * every session, pins them to the primary with readFromPrimary.
+ *
+ * Lag is measured in WAL positions, not by replay timestamps, which stop
+ * moving when a replica falls behind on receiving WAL.  Each check reads
+ * the current position of the primary, then the replay position of every
+ * replica.  A replica is as far behind as the time since the newest
+ * position of the primary it has replayed was read.  After a commit a
+ * session reads the position of the primary, and the replay position of a
+ * replica has to reach it.  A replica that cannot be reached, or is not in
+ * recovery any more, is not used until a check finds it healthy again.
+ *
+ */
+public class ReplicaRouter {
+
+   // default staleness tolerated of a replica, in milliseconds.
+   public static final long DEFAULT_MAX_LAG_MILLIS = 1000L;
+
+   // how often the lag of the replicas is measured, in milliseconds.
+   static final long LAG_CHECK_PERIOD = 500L;
+
+   // on the primary: the end of the WAL written, past every commit returned.
+   static final String POSITION_QUERY = "SELECT pg_current_wal_lsn()";
+
+   static final String REPLAY_QUERY = "SELECT pg_is_in_recovery(), pg_last_wal_replay_lsn()";
+
+   // routers reading from replicas: writes read the WAL position only then.
+   private static final AtomicInteger ROUTERS = new AtomicInteger ();
+
+   // the writes of the session of the current thread.
+   private static final ThreadLocal<Session> SESSION = new ThreadLocal<Session>() {
+      protected Session initialValue () {
+         return new Session ();
+      }
+   };
+
+   // set while the reads of the current thread must go to the primary.
+   private static final ThreadLocal<Boolean> PRIMARY_ONLY = new ThreadLocal<Boolean>();
+
+   /**
+    * The WAL position of a write committed by another thread for the
+    * session, such as a queued message, set once it is committed.
+    */
+   public static class Position {
+      private volatile long _lsn = -1;
+
+      /**
+       * @param lsn the WAL position after the write, or after the last
+       *        write before it when it failed; 0 when not known
+       */
+      public void set (long lsn) {
+         this._lsn = lsn;
+      }
+   }//end Position
+
+   /**
+    * What a session wrote.
+    */
+   private static class Session {
+      // WAL position after the last write, 0 for none.
+      long lsn = 0;
+
+      // WAL position after the write noted last, 0 when not known.
+      long last = 0;
+
+      // time of a write whose position could not be read, 0 for none.
+      long unknownSince = 0;
+
+      // a write not committed yet.
+      Position pending = null;
+   }//end Session
+
+   /**
+    * A replica and what is known of its lag.
+    */
+   static class Replica {
+      final String url;
+      final ConnectionPool pool;
+
+      // WAL position replayed when last checked, -1 when unusable.
+      volatile long replayed = -1;
+
+      // time the primary was at a position the replica has replayed, 0
+      // when too long ago.
+      volatile long currentAt = 0;
+
+      Replica (String url, ConnectionPool pool) {
+         this.url = url;
+         this.pool = pool;
+      }
+   }//end Replica
+
+   private final ConnectionPool _primary;
+   private final Replica[] _replicas;
+   private final long _maxLagMillis;
+   private final Timer _checker;
+   private final AtomicInteger _next = new AtomicInteger ();
+
+   // positions of the primary with the time they were read, oldest first;
+   // used by the checks only.
+   private final ArrayDeque<long[]> _positions = new ArrayDeque<long[]>();
+
+   // the generation of the primary pool the replica pools follow; a
+   // replica cannot listen for schema changes itself.
+   private int _generation;
+
+   private final AtomicLong _replicaReads = new AtomicLong ();
+   private final AtomicLong _primaryReads = new AtomicLong ();
+
+   /**
+    * Creates a new instance of ReplicaRouter and starts checking the lag
+    * of the replicas.
+    *
+    * @param primary the pool of the primary
+    * @param urls the JDBC URLs of the replicas
+    * @param pools the pools of the replicas, in the order of their URLs
+    * @param maxLagMillis the staleness tolerated of a replica
+    */
+   public ReplicaRouter (ConnectionPool primary, List<String> urls, List<ConnectionPool> pools, long maxLagMillis) {
+      this._primary = primary;
+      this._replicas = new Replica[pools.size ()];
+      for (int i = 0; i < this._replicas.length; ++i)
+         this._replicas[i] = new Replica (urls.get (i), pools.get (i));
+      this._maxLagMillis = maxLagMillis;
+      this._generation = primary.getGeneration ();
+      ROUTERS.incrementAndGet ();
+      checkLag ();
+      this._checker = new Timer ("ReplicaRouter-lag", true);
+      this._checker.schedule (new TimerTask () {
+         public void run () {
+            checkLag ();
+         }
+      }, LAG_CHECK_PERIOD, LAG_CHECK_PERIOD);
+   }//end ReplicaRouter
+
+   /**
+    * Picks the pool a read of the current session goes to.
+    *
+    * @return the pool of a usable replica, or of the primary
+    */
+   public ConnectionPool forRead () {
+      Session session = SESSION.get ();
+      if (session.pending != null && session.pending._lsn >= 0) {
+         session.lsn = Math.max (session.lsn, session.pending._lsn);
+         if (session.pending._lsn == 0)
+            session.unknownSince = System.currentTimeMillis ();
+         session.pending = null;
+      }//end if
+      if (PRIMARY_ONLY.get () == null && session.pending == null) {
+         long now = System.currentTimeMillis ();
+         int start = this._next.getAndIncrement () & Integer.MAX_VALUE;
+         for (int i = 0; i < this._replicas.length; ++i) {
+            Replica replica = this._replicas[(start + i) % this._replicas.length];
+            // currentAt first: checkLag sets it last, so the position read
+            // after it is at least the one it goes with.
+            long currentAt = replica.currentAt;
+            long replayed = replica.replayed;
+            if (replayed < session.lsn || currentAt == 0 || now - currentAt > this._maxLagMillis)
+               continue;
+            // a position read after the write is past it.
+            if (session.unknownSince != 0 && currentAt <= session.unknownSince)
+               continue;
+            this._replicaReads.incrementAndGet ();
+            return replica.pool;
+         }//end for
+      }//end if
+      this._primaryReads.incrementAndGet ();
+      return this._primary;
+   }//end forRead
+
+   /**
+    * Records that the session of the current thread committed a write on
+    * a connection to the primary, so its reads stay there until a replica
+    * has replayed it.  Call after the commit, on the same connection.
+    *
+    * @param connection the connection the write was committed on
+    * @return the WAL position after the write, 0 when not read because
+    *         no replica is read from, or because reading it failed
+    */
+   public static long noteWrite (Connection connection) {
+      if (ROUTERS.get () == 0)
+         return 0;
+      Session session = SESSION.get ();
+      try {
+         Statement stmt = connection.createStatement ();
+         try {
+            ResultSet rs = stmt.executeQuery (POSITION_QUERY);
+            rs.next ();
+            long lsn = lsn (rs.getString (1));
+            rs.close ();
+            session.lsn = Math.max (session.lsn, lsn);
+            session.last = lsn;
+            return lsn;
+         }finally{
+            stmt.close ();
+         }//end try
+      }catch (SQLException e) {
+         // the write is committed all the same; replicas are used again
+         // once checked past it.
+         session.unknownSince = System.currentTimeMillis ();
+         session.last = 0;
+         return 0;
+      }//end try
+   }//end noteWrite
+
+   /**
+    * Records that a write of the session of the current thread is being
+    * committed by another thread, so its reads stay on the primary until
+    * the position is set, and then until a replica has replayed it.
+    * Positions are expected to be set in the order they are noted; only
+    * the last one is kept.
+    *
+    * @param position the position of the write, set by its writer
+    */
+   public static void noteWrite (Position position) {
+      SESSION.get ().pending = position;
+   }//end noteWrite
+
+   /**
+    * @return the WAL position after the last write noted by the current
+    *         thread, 0 for none or when not known
+    */
+   public static long lastWrite () {
+      return SESSION.get ().last;
+   }//end lastWrite
+
+   /**
+    * Forgets the writes of the session of the current thread, when the
+    * thread moves on to another session.
+    */
+   public static void endSession () {
+      SESSION.remove ();
+      PRIMARY_ONLY.remove ();
+   }//end endSession
+
+   /**
+    * Pins the reads of the current thread to the primary, or unpins them.
+    *
+    * @param primaryOnly true to read from the primary only
+    * @return whether the reads were pinned before, to restore afterwards
+    */
+   public static boolean readFromPrimary (boolean primaryOnly) {
+      boolean before = PRIMARY_ONLY.get () != null;
+      if (primaryOnly)
+         PRIMARY_ONLY.set (Boolean.TRUE);
+      else
+         PRIMARY_ONLY.remove ();
+      return before;
+   }//end readFromPrimary
+
+   /**
+    * Stops checking the replicas and closes their pools.
+    */
+   public void close () {
+      this._checker.cancel ();
+      ROUTERS.decrementAndGet ();
+      for (Replica replica : this._replicas)
+         replica.pool.close ();
+   }//end close
+
+   /**
+    * @return a summary of the routing, e.g. for logging
+    */
+   public String stats () {
+      StringBuilder stats = new StringBuilder ();
+      stats.append ("replicaReads=").append (this._replicaReads.get ())
+           .append (" primaryReads=").append (this._primaryReads.get ());
+      long now = System.currentTimeMillis ();
+      for (Replica replica : this._replicas)
+         stats.append (' ').append (replica.url).append (" lag=")
+              .append (replica.replayed < 0 ? "down"
+                       : replica.currentAt == 0 ? "over " + this._maxLagMillis + "ms"
+                       : (now - replica.currentAt) + "ms");
+      return stats.toString ();
+   }//end stats
+
+   /*
+    * Measures the lag of every replica.
+    */
+   private void checkLag () {
+      // read before the replicas, so lag is never underestimated.
+      long measuredAt = System.currentTimeMillis ();
+      long position = -1;
+      ConnectionPool.Pooled primary = null;
+      try {
+         primary = this._primary.borrow ();
+         position = position (primary.connection (), POSITION_QUERY, false);
+      }catch (SQLException e) {
+         // replicas cannot be compared with it, reads go to the primary.
+      }finally{
+         this._primary.release (primary);
+      }//end try
+      if (this._primary.getGeneration () != this._generation) {
+         // the schema changed, the replicas follow once they replay it.
+         this._generation = this._primary.getGeneration ();
+         for (Replica replica : this._replicas)
+            replica.pool.recycle ();
+      }//end if
+      if (position >= 0)
+         this._positions.addLast (new long[] { position, measuredAt });
+      // positions older than the lag tolerated are of no use.
+      while (this._positions.size () > 1 && measuredAt - this._positions.peekFirst ()[1] > this._maxLagMillis)
+         this._positions.removeFirst ();
+
+      for (Replica replica : this._replicas) {
+         long replayed = -1;
+         ConnectionPool.Pooled pooled = null;
+         if (position >= 0) {
+            try {
+               pooled = replica.pool.borrow ();
+               replayed = position (pooled.connection (), REPLAY_QUERY, true);
+            }catch (SQLException e) {
+               // unusable until the next successful check.
+            }finally{
+               replica.pool.release (pooled);
+            }//end try
+         }//end if
+         long currentAt = 0;
+         if (replayed >= 0) {
+            Iterator<long[]> newest = this._positions.descendingIterator ();
+            while (newest.hasNext ()) {
+               long[] sample = newest.next ();
+               if (sample[0] <= replayed && measuredAt - sample[1] <= this._maxLagMillis) {
+                  currentAt = sample[1];
+                  break;
+               }//end if
+            }//end while
+         }//end if
+         // replayed first: a read in between sees the new position with
+         // the older time, erring on the stale side.
+         replica.replayed = replayed;
+         replica.currentAt = currentAt;
+      }//end for
+   }//end checkLag
+
+   /*
+    * Runs a query returning a WAL position, after whether the server is in
+    * recovery when asked.
+    *
+    * @return the position, -1 when the server is not in recovery though
+    *         it should be, or has not replayed anything
+    */
+   private static long position (Connection connection, String query, boolean replica) throws SQLException {
+      Statement stmt = connection.createStatement ();
+      try {
+         ResultSet rs = stmt.executeQuery (query);
+         long position = -1;
+         if (rs.next () && (!replica || rs.getBoolean (1)))
+            position = lsn (rs.getString (replica ? 2 : 1));
+         rs.close ();
+         return position;
+      }finally{
+         stmt.close ();
+      }//end try
+   }//end position
+
+   /*
+    * Parses a WAL position, hhhhhhhh/hhhhhhhh in hex.
+    *
+    * @return the position, -1 for null
+    */
+   static long lsn (String text) {
+      if (text == null)
+         return -1;
+      int slash = text.indexOf ('/');
+      return (Long.parseLong (text.substring (0, slash), 16) << 32) | Long.parseLong (text.substring (slash + 1), 16);
+   }//end lsn
+}//end ReplicaRouter
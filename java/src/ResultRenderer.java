@@ -0,0 +1,178 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * This class writes the rows of a result set as they are read, as a
+ * tab separated table (the format of executeQueryAndPrintResult), CSV or
+ * JSON.  Output goes through one large buffer, so rendering costs a write
+ * call per buffer instead of one synchronized console write per cell, and
+ * with a streaming result set memory use does not grow with the result.
+ *
+ */
+public class ResultRenderer {
+
+   public enum Format {
+      TABLE, CSV, JSON;
+
+      /**
+       * @param name a format name, in any case
+       * @return the format, or null if there is none of that name
+       */
+      public static Format parse (String name) {
+         for (Format format : values ())
+            if (format.name ().equalsIgnoreCase (name == null ? "" : name.trim ()))
+               return format;
+         return null;
+      }
+   }//end Format
+
+   // size of the output buffer, in chars.
+   public static final int BUFFER_SIZE = 1 << 16;
+
+   private final Writer _out;
+   private final Format _format;
+
+   /**
+    * Creates a new instance of ResultRenderer
+    *
+    * @param out where to write, buffered here; it is flushed but not closed
+    * @param format the output format
+    */
+   public ResultRenderer (Writer out, Format format) {
+      this._out = out instanceof BufferedWriter ? out : new BufferedWriter (out, BUFFER_SIZE);
+      this._format = format;
+   }//end ResultRenderer
+
+   /**
+    * Writes every remaining row of a result set, then flushes the output.
+    * A table gets its header with the first row, CSV always has a header
+    * line and JSON is an array of one object per row.
+    *
+    * @param rs the rows to write
+    * @return the number of rows written
+    * @throws java.sql.SQLException when reading the rows failed
+    * @throws java.io.IOException when writing failed
+    */
+   public int render (ResultSet rs) throws SQLException, IOException {
+      ResultSetMetaData rsmd = rs.getMetaData ();
+      int numCol = rsmd.getColumnCount ();
+      String[] names = new String[numCol];
+      boolean[] numeric = new boolean[numCol];
+      for (int i = 0; i < numCol; ++i) {
+         names[i] = rsmd.getColumnName (i + 1);
+         numeric[i] = isNumeric (rsmd.getColumnType (i + 1));
+      }//end for
+
+      int rowCount = 0;
+      if (this._format == Format.CSV)
+         csvLine (names);
+      else if (this._format == Format.JSON)
+         this._out.write ('[');
+      String[] values = new String[numCol];
+      while (rs.next ()) {
+         for (int i = 0; i < numCol; ++i)
+            values[i] = rs.getString (i + 1);
+         switch (this._format) {
+            case TABLE:
+               if (rowCount == 0)
+                  tableLine (names);
+               tableLine (values);
+               break;
+            case CSV:
+               csvLine (values);
+               break;
+            case JSON:
+               jsonObject (rowCount == 0, names, numeric, values);
+               break;
+         }//end switch
+         ++rowCount;
+      }//end while
+      if (this._format == Format.JSON)
+         this._out.write (rowCount == 0 ? "]\n" : "\n]\n");
+      this._out.flush ();
+      return rowCount;
+   }//end render
+
+   private void tableLine (String[] values) throws IOException {
+      for (String value : values) {
+         this._out.write (String.valueOf (value));
+         this._out.write ('\t');
+      }//end for
+      this._out.write ('\n');
+   }//end tableLine
+
+   /*
+    * RFC 4180: fields with a comma, quote or line break are quoted, quotes
+    * doubled.  NULL is an empty field.
+    */
+   private void csvLine (String[] values) throws IOException {
+      for (int i = 0; i < values.length; ++i) {
+         if (i > 0)
+            this._out.write (',');
+         String value = values[i];
+         if (value == null)
+            continue;
+         if (value.indexOf (',') < 0 && value.indexOf ('"') < 0
+               && value.indexOf ('\n') < 0 && value.indexOf ('\r') < 0) {
+            this._out.write (value);
+         }else{
+            this._out.write ('"');
+            this._out.write (value.replace ("\"", "\"\""));
+            this._out.write ('"');
+         }//end if
+      }//end for
+      this._out.write ("\r\n");
+   }//end csvLine
+
+   private void jsonObject (boolean first, String[] names, boolean[] numeric, String[] values) throws IOException {
+      this._out.write (first ? "\n{" : ",\n{");
+      for (int i = 0; i < values.length; ++i) {
+         if (i > 0)
+            this._out.write (',');
+         jsonString (names[i]);
+         this._out.write (':');
+         if (values[i] == null)
+            this._out.write ("null");
+         else if (numeric[i])
+            this._out.write (values[i]);
+         else
+            jsonString (values[i]);
+      }//end for
+      this._out.write ('}');
+   }//end jsonObject
+
+   private void jsonString (String value) throws IOException {
+      this._out.write ('"');
+      for (int i = 0; i < value.length (); ++i) {
+         char c = value.charAt (i);
+         switch (c) {
+            case '"': this._out.write ("\\\""); break;
+            case '\\': this._out.write ("\\\\"); break;
+            case '\n': this._out.write ("\\n"); break;
+            case '\r': this._out.write ("\\r"); break;
+            case '\t': this._out.write ("\\t"); break;
+            default:
+               if (c < 0x20)
+                  this._out.write (String.format ("\\u%04x", (int) c));
+               else
+                  this._out.write (c);
+         }//end switch
+      }//end for
+      this._out.write ('"');
+   }//end jsonString
+
+   private static boolean isNumeric (int type) {
+      switch (type) {
+         case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT:
+         case Types.REAL: case Types.FLOAT: case Types.DOUBLE: case Types.NUMERIC: case Types.DECIMAL:
+            return true;
+         default:
+            return false;
+      }//end switch
+   }//end isNumeric
+}//end ResultRenderer
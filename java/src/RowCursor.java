@@ -0,0 +1,113 @@
+import java.io.Closeable;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * This class streams the rows of a query instead of loading them all into
+ * memory.  The query runs inside a transaction on a connection borrowed for
+ * the lifetime of the cursor, with a fetch size set so that the driver
+ * reads the result from a server side cursor a batch of rows at a time.
+ *
+ * A cursor holds its connection until it is closed, either explicitly (it
+ * is meant to be used in a try-with-resources block) or implicitly once
+ * the last row has been read.
+ *
+ */
+public class RowCursor<T> implements Iterator<T>, Closeable {
+
+   /**
+    * Unchecked wrapper of a SQLException raised while iterating, since
+    * Iterator methods cannot throw checked exceptions.
+    */
+   public static class CursorException extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+
+      public CursorException (SQLException cause) {
+         super (cause.getMessage (), cause);
+      }
+
+      public SQLException getSQLException () {
+         return (SQLException) getCause ();
+      }
+   }//end CursorException
+
+   private final ConnectionPool _pool;
+   private final ConnectionPool.Pooled _pooled;
+   private final Statement _stmt;
+   private final ResultSet _rs;
+   private final RowMapper<T> _mapper;
+
+   // whether _rs has been advanced past the row last returned, and if so
+   // whether it is on a row.
+   private boolean _fetched = false;
+   private boolean _hasRow = false;
+   private boolean _closed = false;
+
+   /*
+    * Created by ProfNetwork.openCursor once the query has been issued.
+    */
+   RowCursor (ConnectionPool pool, ConnectionPool.Pooled pooled, Statement stmt,
+              ResultSet rs, RowMapper<T> mapper) {
+      this._pool = pool;
+      this._pooled = pooled;
+      this._stmt = stmt;
+      this._rs = rs;
+      this._mapper = mapper;
+   }//end RowCursor
+
+   public boolean hasNext () {
+      if (this._closed)
+         return false;
+      if (!this._fetched) {
+         try {
+            this._hasRow = this._rs.next ();
+         }catch (SQLException e) {
+            close ();
+            throw new CursorException (e);
+         }//end try
+         this._fetched = true;
+         if (!this._hasRow)
+            close ();
+      }//end if
+      return this._hasRow;
+   }//end hasNext
+
+   public T next () {
+      if (!hasNext ())
+         throw new NoSuchElementException ();
+      this._fetched = false;
+      try {
+         return this._mapper.map (this._rs);
+      }catch (SQLException e) {
+         close ();
+         throw new CursorException (e);
+      }//end try
+   }//end next
+
+   public void remove () {
+      throw new UnsupportedOperationException ();
+   }//end remove
+
+   /**
+    * Closes the result set, ends the read-only transaction and gives the
+    * connection back to the pool.  Calling it more than once has no effect.
+    */
+   public void close () {
+      if (this._closed)
+         return;
+      this._closed = true;
+      try {
+         this._stmt.setFetchSize (0);
+         this._rs.close ();
+         this._pooled.connection ().commit ();
+         this._pooled.connection ().setAutoCommit (true);
+      }catch (SQLException e) {
+         // ignored, release rolls back a connection left in a transaction.
+      }finally{
+         this._pool.release (this._pooled);
+      }//end try
+   }//end close
+}//end RowCursor
@@ -0,0 +1,19 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Turns the current row of a result set into a typed object.
+ *
+ */
+public interface RowMapper<T> {
+
+   /**
+    * Reads the row the result set is positioned on.  Implementations must
+    * not move the cursor.
+    *
+    * @param rs the result set positioned on a row
+    * @return the object built from the row
+    * @throws java.sql.SQLException when a column could not be read
+    */
+   T map (ResultSet rs) throws SQLException;
+}//end RowMapper
@@ -0,0 +1,964 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Versioned schema migrations for the ProfNetwork database.  The version
+ * of a database is the highest one recorded in SCHEMA_VERSION, the
+ * migrations above it are applied in order, each recorded once done:
+ *
+ *    1  char(n) columns become varchar(n), ids are varchar(10) everywhere
+ *    2  MESSAGE becomes a table range partitioned by month of sendTime,
+ *       with varchar ids, status and contents
+ *    3  WORK_EXPR and EDUCATIONAL_DETAILS rows get a surrogate id, their
+ *       primary key, and a version; the former key stays unique
+ *
+ * A database without SCHEMA_VERSION is at version 0, the original schema.
+ * create_tables.sql creates the latest schema and records its version.
+ *
+ *    java -cp classes:lib/pg73jdbc3.jar SchemaMigrator <dbname> <port> <user> migrate
+ *         [--batch <rows>] [--pause <ms>] [--keep-old]
+ *    ... SchemaMigrator <dbname> <port> <user> status
+ *    ... SchemaMigrator <dbname> <port> <user> partitions [<from yyyy-mm>] [<months ahead>]
+ *    ... SchemaMigrator <dbname> <port> <user> drop-partitions <before yyyy-mm>
+ *
+ * partitions starts at the oldest message of the default partition when no
+ * month is given, and moves the messages it holds into the partitions
+ * created.
+ *
+ * Migrations 1 and 2 run online: each table rewritten keeps serving reads
+ * and writes while its rows are copied into a new table in batches of
+ * committed, resumable progress, a trigger mirroring every concurrent
+ * write.  Only the final swap of the two tables locks the table, for the
+ * time of a few renames.  The swap notifies ConnectionPool.SCHEMA_CHANNEL,
+ * so running servers replace their connections before a statement they
+ * prepared against the old column types fails.
+ *
+ * Migration 3 runs online too.  The id column is added empty, without a
+ * rewrite, and numbered in batches; its unique index and the one of the
+ * former key are built concurrently, then become the constraints in a
+ * short final transaction.  It needs PostgreSQL 12 or later, partitioning
+ * 11 or later.
+ *
+ * Once partitioned, the messages of a past month are removed by dropping
+ * its partition, without a DELETE scan or vacuum.
+ *
+ */
+public class SchemaMigrator {
+
+   // rows copied per transaction by the online migration.
+   public static final int DEFAULT_BATCH_ROWS = 5000;
+
+   // months of partitions created ahead of the current one.
+   public static final int DEFAULT_MONTHS_AHEAD = 12;
+
+   // tells the pools of running servers, at the commit of a swap, that
+   // their prepared statements return the old column types.
+   static final String SCHEMA_CHANGED = "NOTIFY " + ConnectionPool.SCHEMA_CHANNEL;
+
+   // the partition for sendTimes outside the monthly ones.
+   static final String DEFAULT_PARTITION = "MESSAGE_DEFAULT";
+
+   private static final Pattern PARTITION_NAME = Pattern.compile ("message_y(\\d{4})m(\\d{2})");
+
+   /**
+    * One step of the schema history.
+    */
+   abstract static class Migration {
+      final int version;
+      final String description;
+
+      Migration (int version, String description) {
+         this.version = version;
+         this.description = description;
+      }
+
+      abstract void apply (SchemaMigrator migrator) throws SQLException;
+   }//end Migration
+
+   /**
+    * A table rewritten online into a new definition: NAME_NEW is created
+    * with it, filled in key order and swapped with NAME.  Column values
+    * are expressions over a row of the old table, written with "$." for
+    * the row (the table in the copy, OLD or NEW in the trigger).  Indexes
+    * and key constraints named NAME_suffix are recreated on NAME_NEW as
+    * NAME_NEW_suffix, and take back their names at the swap.
+    */
+   static class Rewrite {
+      final String name;
+      final String definition;
+      final String[] columns;
+      final String[] values;
+      final String[] keys;
+      final String[] keyTypes;
+      final String[] indexes;
+      final String[] suffixes;
+
+      Rewrite (String name, String definition, String[] columns, String[] values,
+               String[] keys, String[] keyTypes, String[] indexes, String[] suffixes) {
+         this.name = name;
+         this.definition = definition;
+         this.columns = columns;
+         this.values = values;
+         this.keys = keys;
+         this.keyTypes = keyTypes;
+         this.indexes = indexes;
+         this.suffixes = suffixes;
+      }
+
+      String shadow () {
+         return this.name + "_NEW";
+      }
+
+      String progress () {
+         return this.name + "_NEW_PROGRESS";
+      }
+
+      String function () {
+         return (this.name + "_new_mirror").toLowerCase ();
+      }
+
+      /*
+       * The values of a row of the old table, as a list.
+       */
+      String values (String row) {
+         StringBuilder list = new StringBuilder ();
+         for (int i = 0; i < this.values.length; ++i)
+            list.append (i == 0 ? "" : ", ").append (this.values[i].replace ("$.", row));
+         return list.toString ();
+      }
+
+      static String list (String[] names, String prefix) {
+         StringBuilder list = new StringBuilder ();
+         for (int i = 0; i < names.length; ++i)
+            list.append (i == 0 ? "" : ", ").append (prefix).append (names[i]);
+         return list.toString ();
+      }
+
+      /*
+       * Copies the next batch of rows in key order, after the key last
+       * copied when `after`, and returns the key of the last row with the
+       * number of rows.  As for MESSAGE, the source rows are locked until
+       * the batch commits, and rows the trigger already mirrored are kept.
+       * Old and new keys sort alike: char compares like its rtrim.
+       */
+      String copyBatch (boolean after) {
+         StringBuilder aliased = new StringBuilder ();
+         for (int i = 0; i < this.columns.length; ++i)
+            aliased.append (i == 0 ? "" : ", ").append (this.values[i].replace ("$.", "o."))
+                   .append (" AS ").append (this.columns[i]);
+         StringBuilder bound = new StringBuilder ();
+         for (int i = 0; i < this.keys.length; ++i)
+            bound.append (i == 0 ? "" : ", ").append ("CAST(? AS ").append (this.keyTypes[i]).append (')');
+         return "WITH batch AS (SELECT " + aliased + " FROM " + this.name + " o"
+            + (after ? " WHERE (" + list (this.keys, "o.") + ") > (" + bound + ")" : "")
+            + " ORDER BY " + list (this.keys, "o.") + " LIMIT ? FOR SHARE), "
+            + "copied AS (INSERT INTO " + shadow () + " (" + list (this.columns, "") + ") SELECT "
+            + list (this.columns, "") + " FROM batch ON CONFLICT (" + list (this.keys, "") + ") DO NOTHING) "
+            + "SELECT " + list (this.keys, "") + ", COUNT(*) OVER () FROM batch ORDER BY "
+            + list (this.keys, "").replace (",", " DESC,") + " DESC LIMIT 1";
+      }
+
+      /*
+       * Mirrors every write to the old table into the new one.
+       */
+      String mirrorFunction () {
+         StringBuilder match = new StringBuilder ();
+         StringBuilder update = new StringBuilder ();
+         for (int i = 0; i < this.columns.length; ++i) {
+            boolean key = Arrays.asList (this.keys).contains (this.columns[i]);
+            if (key)
+               match.append (match.length () == 0 ? "" : " AND ").append (this.columns[i])
+                    .append (" = ").append (this.values[i].replace ("$.", "OLD."));
+            else
+               update.append (update.length () == 0 ? "" : ", ").append (this.columns[i])
+                     .append (" = EXCLUDED.").append (this.columns[i]);
+         }//end for
+         return "CREATE OR REPLACE FUNCTION " + function () + "() RETURNS trigger AS $$\n"
+            + "BEGIN\n"
+            + "  IF TG_OP <> 'INSERT' THEN\n"
+            + "    DELETE FROM " + shadow () + " WHERE " + match + ";\n"
+            + "  END IF;\n"
+            + "  IF TG_OP <> 'DELETE' THEN\n"
+            + "    INSERT INTO " + shadow () + " (" + list (this.columns, "") + ") VALUES (" + values ("NEW.") + ")\n"
+            + "    ON CONFLICT (" + list (this.keys, "") + ") DO UPDATE SET " + update + ";\n"
+            + "  END IF;\n"
+            + "  RETURN NULL;\n"
+            + "END $$ LANGUAGE plpgsql";
+      }
+   }//end Rewrite
+
+   // the tables of migration 1, from char(n) to varchar(n) columns.
+   static final Rewrite[] VARCHAR_REWRITES = {
+      new Rewrite ("USR",
+         "userId varchar(10) NOT NULL, password varchar(10) NOT NULL, email text NOT NULL, "
+            + "name varchar(50), dateOfBirth date, "
+            + "CONSTRAINT USR_NEW_pkey PRIMARY KEY(userId), CONSTRAINT USR_NEW_userid_key UNIQUE(userId)",
+         new String[] { "userId", "password", "email", "name", "dateOfBirth" },
+         new String[] { "$.userId", "$.password", "$.email", "rtrim($.name)", "$.dateOfBirth" },
+         new String[] { "userId" }, new String[] { "varchar(10)" },
+         new String[0], new String[] { "pkey", "userid_key" }),
+      new Rewrite ("CONNECTION_USR",
+         "userId varchar(10) NOT NULL, connectionId varchar(10) NOT NULL, status varchar(30) NOT NULL, "
+            + "CONSTRAINT CONNECTION_USR_NEW_pkey PRIMARY KEY(userId, connectionId)",
+         new String[] { "userId", "connectionId", "status" },
+         new String[] { "rtrim($.userId)", "rtrim($.connectionId)", "rtrim($.status)" },
+         new String[] { "userId", "connectionId" }, new String[] { "char(10)", "char(10)" },
+         new String[] {
+            "CREATE INDEX CONNECTION_USR_NEW_PENDING_IDX ON CONNECTION_USR_NEW (connectionId, status, userId)",
+            "CREATE INDEX CONNECTION_USR_NEW_FRIENDS_IDX ON CONNECTION_USR_NEW (userId, status, connectionId)" },
+         new String[] { "pkey", "PENDING_IDX", "FRIENDS_IDX" }),
+      new Rewrite ("WORK_EXPR",
+         "userId varchar(10) NOT NULL, company varchar(50) NOT NULL, role varchar(50) NOT NULL, "
+            + "location varchar(50), startDate date, endDate date, "
+            + "CONSTRAINT WORK_EXPR_NEW_pkey PRIMARY KEY(userId, company, role, startDate)",
+         new String[] { "userId", "company", "role", "location", "startDate", "endDate" },
+         new String[] { "rtrim($.userId)", "rtrim($.company)", "rtrim($.role)", "rtrim($.location)",
+                        "$.startDate", "$.endDate" },
+         new String[] { "userId", "company", "role", "startDate" },
+         new String[] { "char(10)", "char(50)", "char(50)", "date" },
+         new String[0], new String[] { "pkey" }),
+      new Rewrite ("EDUCATIONAL_DETAILS",
+         "userId varchar(10) NOT NULL, instituitionName varchar(50) NOT NULL, major varchar(50) NOT NULL, "
+            + "degree varchar(50) NOT NULL, startdate date, enddate date, "
+            + "CONSTRAINT EDUCATIONAL_DETAILS_NEW_pkey PRIMARY KEY(userId, major, degree)",
+         new String[] { "userId", "instituitionName", "major", "degree", "startdate", "enddate" },
+         new String[] { "rtrim($.userId)", "rtrim($.instituitionName)", "rtrim($.major)", "rtrim($.degree)",
+                        "$.startdate", "$.enddate" },
+         new String[] { "userId", "major", "degree" },
+         new String[] { "char(10)", "char(50)", "char(50)" },
+         new String[0], new String[] { "pkey" })
+   };
+
+   static final Migration[] MIGRATIONS = {
+      new Migration (1, "varchar columns and consistent id types") {
+         void apply (SchemaMigrator migrator) throws SQLException {
+            // ALTER COLUMN TYPE would rewrite each table under an
+            // exclusive lock; they are copied online instead.
+            for (Rewrite rewrite : VARCHAR_REWRITES)
+               migrator.rewriteOnline (rewrite);
+            migrator.transaction (record (1, "varchar columns and consistent id types"));
+         }
+      },
+      new Migration (2, "MESSAGE partitioned by month of sendTime") {
+         void apply (SchemaMigrator migrator) throws SQLException {
+            migrator.partitionMessages ();
+         }
+      },
+      new Migration (3, "surrogate ids and versions of profile rows") {
+         void apply (SchemaMigrator migrator) throws SQLException {
+            // ADD COLUMN ... IDENTITY would rewrite each table, and ADD
+            // PRIMARY KEY build its index, under an exclusive lock.
+            List<String> swap = new ArrayList<String>();
+            for (SurrogateId table : SURROGATE_IDS)
+               swap.addAll (migrator.prepareSurrogateId (table));
+            swap.add (SCHEMA_CHANGED);
+            swap.add (record (3, "surrogate ids and versions of profile rows"));
+            migrator.transaction (swap.toArray (new String[swap.size ()]));
+            migrator._esql.getPool ().recycle ();
+         }
+      }
+   };
+
+   /**
+    * A table given a surrogate id as its primary key, its former key
+    * staying unique as NAME_ENTRY_KEY.  The former key, with its types,
+    * orders the numbering.
+    */
+   static class SurrogateId {
+      final String name;
+      final String[] keys;
+      final String[] keyTypes;
+
+      SurrogateId (String name, String[] keys, String[] keyTypes) {
+         this.name = name;
+         this.keys = keys;
+         this.keyTypes = keyTypes;
+      }
+
+      // numbers the rows until the id becomes an identity.
+      String sequence () {
+         return this.name + "_ID_FILL";
+      }
+
+      /*
+       * Numbers the rows without an id of the next batch in key order,
+       * after the key last seen when `after`, and returns the key of the
+       * last row with the number of rows.
+       */
+      String fillBatch (boolean after) {
+         StringBuilder bound = new StringBuilder ();
+         StringBuilder match = new StringBuilder ();
+         for (int i = 0; i < this.keys.length; ++i) {
+            bound.append (i == 0 ? "" : ", ").append ("CAST(? AS ").append (this.keyTypes[i]).append (')');
+            match.append (" AND t.").append (this.keys[i]).append (" = b.").append (this.keys[i]);
+         }//end for
+         String keys = Rewrite.list (this.keys, "");
+         return "WITH batch AS (SELECT " + Rewrite.list (this.keys, "o.") + " FROM " + this.name + " o"
+            + (after ? " WHERE (" + Rewrite.list (this.keys, "o.") + ") > (" + bound + ")" : "")
+            + " ORDER BY " + Rewrite.list (this.keys, "o.") + " LIMIT ?), "
+            + "filled AS (UPDATE " + this.name + " t SET id = nextval('" + sequence () + "') FROM batch b "
+            + "WHERE t.id IS NULL" + match + ") "
+            + "SELECT " + keys + ", COUNT(*) OVER () FROM batch ORDER BY "
+            + keys.replace (",", " DESC,") + " DESC LIMIT 1";
+      }
+   }//end SurrogateId
+
+   // the tables of migration 3, keys with their types after migration 1.
+   static final SurrogateId[] SURROGATE_IDS = {
+      new SurrogateId ("WORK_EXPR", new String[] { "userId", "company", "role", "startDate" },
+                       new String[] { "varchar(10)", "varchar(50)", "varchar(50)", "date" }),
+      new SurrogateId ("EDUCATIONAL_DETAILS", new String[] { "userId", "major", "degree" },
+                       new String[] { "varchar(10)", "varchar(50)", "varchar(50)" })
+   };
+
+   // the new MESSAGE while it is being filled.
+   static final String MESSAGE_PART = "MESSAGE_PART";
+
+   // the new MESSAGE, columns in MESSAGE order.  The primary key must
+   // include the partition key, msgId alone stays unique by allocation.
+   static final String CREATE_MESSAGE_PART =
+      "CREATE TABLE " + MESSAGE_PART + "("
+      + "msgId integer NOT NULL, "
+      + "senderId varchar(10) NOT NULL, "
+      + "receiverId varchar(10) NOT NULL, "
+      + "contents varchar(500) NOT NULL, "
+      + "sendTime timestamp NOT NULL DEFAULT now(), "
+      + "deleteStatus integer, "
+      + "status varchar(30) NOT NULL, "
+      + "PRIMARY KEY(msgId, sendTime)) PARTITION BY RANGE (sendTime)";
+
+   // indexes of create_indexes.sql, renamed to theirs at the swap.
+   static final String[] MESSAGE_PART_INDEXES = {
+      "CREATE INDEX MESSAGE_PART_SENT_PAGE_IDX ON " + MESSAGE_PART + " (senderId, sendTime DESC, msgId DESC) "
+         + "WHERE COALESCE(deleteStatus, 0) IN (0, 2)",
+      "CREATE INDEX MESSAGE_PART_INBOX_PAGE_IDX ON " + MESSAGE_PART + " (receiverId, sendTime DESC, msgId DESC) "
+         + "WHERE COALESCE(deleteStatus, 0) IN (0, 1)"
+   };
+
+   // sendTime was nullable; such rows go to the start of time.
+   static final String COPY_COLUMNS =
+      "msgId, rtrim(senderId) AS senderId, rtrim(receiverId) AS receiverId, rtrim(contents) AS contents, "
+      + "COALESCE(sendTime, TIMESTAMP '1970-01-01') AS sendTime, deleteStatus, rtrim(status) AS status";
+
+   // mirrors every write to MESSAGE into the new table while it is filled.
+   static final String MIRROR_FUNCTION =
+      "CREATE OR REPLACE FUNCTION message_part_mirror() RETURNS trigger AS $$\n"
+      + "BEGIN\n"
+      + "  IF TG_OP <> 'INSERT' THEN\n"
+      + "    DELETE FROM " + MESSAGE_PART + " WHERE msgId = OLD.msgId;\n"
+      + "  END IF;\n"
+      + "  IF TG_OP <> 'DELETE' THEN\n"
+      + "    INSERT INTO " + MESSAGE_PART + " VALUES (NEW.msgId, rtrim(NEW.senderId), rtrim(NEW.receiverId),\n"
+      + "      rtrim(NEW.contents), COALESCE(NEW.sendTime, TIMESTAMP '1970-01-01'), NEW.deleteStatus, rtrim(NEW.status))\n"
+      + "    ON CONFLICT (msgId, sendTime) DO UPDATE SET senderId = EXCLUDED.senderId,\n"
+      + "      receiverId = EXCLUDED.receiverId, contents = EXCLUDED.contents,\n"
+      + "      deleteStatus = EXCLUDED.deleteStatus, status = EXCLUDED.status;\n"
+      + "  END IF;\n"
+      + "  RETURN NULL;\n"
+      + "END $$ LANGUAGE plpgsql";
+
+   /*
+    * Copies the next batch of rows after a msgId and returns the last msgId
+    * and the number of rows copied.  The source rows are locked until the
+    * batch commits, so a concurrent update or delete of one of them waits
+    * and its mirrored write then finds the copy.  Rows the trigger already
+    * mirrored are newer and kept.
+    */
+   static final String COPY_BATCH =
+      "WITH batch AS (SELECT " + COPY_COLUMNS + " FROM MESSAGE WHERE msgId > ? ORDER BY msgId LIMIT ? FOR SHARE), "
+      + "copied AS (INSERT INTO " + MESSAGE_PART + " SELECT * FROM batch ON CONFLICT (msgId, sendTime) DO NOTHING) "
+      + "SELECT MAX(msgId), COUNT(*) FROM batch";
+
+   private final ProfNetwork _esql;
+   private int _batchRows = DEFAULT_BATCH_ROWS;
+   private long _pauseMillis = 0L;
+   private boolean _keepOld = false;
+
+   /**
+    * Creates a new instance of SchemaMigrator
+    *
+    * @param esql the database access object whose pool is used
+    */
+   public SchemaMigrator (ProfNetwork esql) {
+      this._esql = esql;
+   }//end SchemaMigrator
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println ("Usage: java SchemaMigrator <dbname> <port> <user> "
+                             + "migrate [--batch <rows>] [--pause <ms>] [--keep-old] | status"
+                             + " | partitions [<from yyyy-mm>] [<months ahead>] | drop-partitions <before yyyy-mm>");
+         return;
+      }//end if
+      Class.forName ("org.postgresql.Driver");
+      ProfNetwork esql = new ProfNetwork (args[0], args[1], args[2], "");
+      try {
+         SchemaMigrator migrator = new SchemaMigrator (esql);
+         String command = args[3];
+         if (command.equals ("migrate")) {
+            for (int i = 4; i < args.length; ++i) {
+               if (args[i].equals ("--batch") && i + 1 < args.length)
+                  migrator._batchRows = Integer.parseInt (args[++i]);
+               else if (args[i].equals ("--pause") && i + 1 < args.length)
+                  migrator._pauseMillis = Long.parseLong (args[++i]);
+               else if (args[i].equals ("--keep-old"))
+                  migrator._keepOld = true;
+            }//end for
+            migrator.migrate ();
+         }else if (command.equals ("status")) {
+            int version = migrator.currentVersion ();
+            System.out.println ("Schema version " + version + ", latest " + MIGRATIONS[MIGRATIONS.length - 1].version);
+            if (version >= 2)
+               for (String partition : migrator.partitions ())
+                  System.out.println ("  " + partition);
+         }else if (command.equals ("partitions")) {
+            int ahead = args.length > 5 ? Integer.parseInt (args[5]) : DEFAULT_MONTHS_AHEAD;
+            int created = args.length > 4 ? migrator.createPartitions ("MESSAGE", month (args[4]), ahead)
+               : migrator.partitionDefault (ahead);
+            System.out.println ("Created " + created + " partitions");
+         }else if (command.equals ("drop-partitions") && args.length > 4) {
+            System.out.println ("Dropped " + migrator.dropPartitionsBefore (month (args[4])) + " partitions");
+         }else{
+            System.err.println ("Unknown command " + command);
+         }//end if
+      }finally{
+         esql.cleanup ();
+      }//end try
+   }//end main
+
+   /**
+    * Applies the migrations above the current version, in order.
+    *
+    * @throws java.sql.SQLException when a migration failed; the ones
+    *         before it stay applied, and rerunning resumes with it
+    */
+   public void migrate () throws SQLException {
+      this._esql.executeUpdate ("CREATE TABLE IF NOT EXISTS SCHEMA_VERSION("
+                                + "version integer PRIMARY KEY, description text NOT NULL, "
+                                + "appliedAt timestamp NOT NULL DEFAULT now())");
+      int current = currentVersion ();
+      for (Migration migration : MIGRATIONS) {
+         if (migration.version <= current)
+            continue;
+         long start = System.nanoTime ();
+         System.out.println ("Applying " + migration.version + ": " + migration.description);
+         migration.apply (this);
+         System.out.printf ("Applied %d in %.1f s%n", migration.version, (System.nanoTime () - start) / 1e9);
+      }//end for
+      System.out.println ("Schema version " + currentVersion ());
+   }//end migrate
+
+   /**
+    * @return the highest version applied, 0 for the original schema
+    * @throws java.sql.SQLException when failed to read it
+    */
+   public int currentVersion () throws SQLException {
+      List<List<String>> exists = this._esql.executeQueryAndReturnResult (
+         "SELECT 1 FROM pg_class WHERE relname = 'schema_version'");
+      if (exists.isEmpty ())
+         return 0;
+      List<List<String>> max = this._esql.executeQueryAndReturnResult (
+         "SELECT COALESCE(MAX(version), 0) FROM SCHEMA_VERSION");
+      return Integer.parseInt (max.get (0).get (0).trim ());
+   }//end currentVersion
+
+   /*
+    * Rewrites a table online, like migration 2 does MESSAGE.  Each step can
+    * be rerun: a table without char columns left is done, an interrupted
+    * copy resumes after the last committed batch.
+    */
+   void rewriteOnline (Rewrite rewrite) throws SQLException {
+      if (!tableExists (rewrite.shadow ()) && this._esql.executeQueryAndReturnResult (
+             "SELECT 1 FROM information_schema.columns WHERE table_name = ? AND data_type = 'character'",
+             rewrite.name.toLowerCase ()).isEmpty ())
+         return;
+      System.out.println ("  rewriting " + rewrite.name);
+      if (!tableExists (rewrite.shadow ())) {
+         List<String> create = new ArrayList<String>();
+         create.add ("CREATE TABLE " + rewrite.shadow () + "(" + rewrite.definition + ")");
+         for (String index : rewrite.indexes)
+            create.add (index);
+         StringBuilder keys = new StringBuilder ();
+         for (int i = 0; i < rewrite.keys.length; ++i)
+            keys.append (i == 0 ? "" : ", ").append ("k").append (i).append (" text");
+         create.add ("CREATE TABLE " + rewrite.progress () + "(" + keys + ")");
+         create.add (rewrite.mirrorFunction ());
+         create.add ("CREATE TRIGGER " + rewrite.shadow () + "_MIRROR AFTER INSERT OR UPDATE OR DELETE ON "
+                     + rewrite.name + " FOR EACH ROW EXECUTE PROCEDURE " + rewrite.function () + "()");
+         transaction (create.toArray (new String[create.size ()]));
+      }//end if
+
+      copyRows (rewrite);
+
+      List<String> swap = new ArrayList<String>();
+      swap.add ("LOCK TABLE " + rewrite.name + " IN ACCESS EXCLUSIVE MODE");
+      swap.add ("DROP TRIGGER " + rewrite.shadow () + "_MIRROR ON " + rewrite.name);
+      swap.add ("ALTER TABLE " + rewrite.name + " RENAME TO " + rewrite.name + "_OLD");
+      for (String suffix : rewrite.suffixes)
+         swap.add ("ALTER INDEX IF EXISTS " + rewrite.name + "_" + suffix + " RENAME TO "
+                   + rewrite.name + "_OLD_" + suffix);
+      swap.add ("ALTER TABLE " + rewrite.shadow () + " RENAME TO " + rewrite.name);
+      // renaming the index of a key constraint renames the constraint.
+      for (String suffix : rewrite.suffixes)
+         swap.add ("ALTER INDEX IF EXISTS " + rewrite.shadow () + "_" + suffix + " RENAME TO "
+                   + rewrite.name + "_" + suffix);
+      swap.add ("DROP FUNCTION " + rewrite.function () + "()");
+      swap.add ("DROP TABLE " + rewrite.progress ());
+      swap.add (SCHEMA_CHANGED);
+      transaction (swap.toArray (new String[swap.size ()]));
+      this._esql.getPool ().recycle ();
+
+      if (!this._keepOld)
+         this._esql.executeUpdate ("DROP TABLE " + rewrite.name + "_OLD");
+      this._esql.executeUpdate ("ANALYZE " + rewrite.name);
+   }//end rewriteOnline
+
+   /*
+    * Copies a table into its new definition in key order, one transaction
+    * per batch, the key reached committed with the batch.
+    */
+   private void copyRows (Rewrite rewrite) throws SQLException {
+      int width = rewrite.keys.length;
+      ConnectionPool.Pooled pooled = this._esql.getPool ().borrow ();
+      try {
+         Connection connection = pooled.connection ();
+         String[] last = null;
+         Statement progress = connection.createStatement ();
+         ResultSet rs = progress.executeQuery ("SELECT * FROM " + rewrite.progress ());
+         if (rs.next ()) {
+            last = new String[width];
+            for (int i = 0; i < width; ++i)
+               last[i] = rs.getString (i + 1);
+         }//end if
+         rs.close ();
+         progress.close ();
+
+         StringBuilder marks = new StringBuilder ();
+         for (int i = 0; i < width; ++i)
+            marks.append (i == 0 ? "?" : ", ?");
+         PreparedStatement first = pooled.statements ().prepare (rewrite.copyBatch (false));
+         PreparedStatement next = pooled.statements ().prepare (rewrite.copyBatch (true));
+         PreparedStatement clear = pooled.statements ().prepare ("DELETE FROM " + rewrite.progress ());
+         PreparedStatement advance = pooled.statements ().prepare (
+            "INSERT INTO " + rewrite.progress () + " VALUES (" + marks + ")");
+         connection.setAutoCommit (false);
+         long copied = 0;
+         long start = System.nanoTime ();
+         while (true) {
+            PreparedStatement copy = last == null ? first : next;
+            int param = 1;
+            if (last != null)
+               for (String key : last)
+                  copy.setString (param++, key);
+            copy.setInt (param, this._batchRows);
+            rs = copy.executeQuery ();
+            int rows = 0;
+            if (rs.next ()) {
+               last = new String[width];
+               for (int i = 0; i < width; ++i)
+                  last[i] = rs.getString (i + 1);
+               rows = rs.getInt (width + 1);
+            }//end if
+            rs.close ();
+            if (rows == 0) {
+               connection.commit ();
+               break;
+            }//end if
+            clear.executeUpdate ();
+            for (int i = 0; i < width; ++i)
+               advance.setString (i + 1, last[i]);
+            advance.executeUpdate ();
+            connection.commit ();
+            copied += rows;
+            if (copied % (this._batchRows * 20L) < rows)
+               System.out.printf ("  %d rows of %s copied, %.0f rows/s%n", copied, rewrite.name,
+                                  copied / Math.max ((System.nanoTime () - start) / 1e9, 1e-9));
+            pause ();
+         }//end while
+         connection.setAutoCommit (true);
+         System.out.println ("  " + copied + " rows of " + rewrite.name + " copied");
+      }finally{
+         this._esql.getPool ().release (pooled);
+      }//end try
+   }//end copyRows
+
+   /*
+    * Migration 3 for one table, up to its final transaction, whose
+    * statements are returned.  Each step can be rerun: the id column is
+    * added with its sequence, a NOT NULL check enforced on new rows only
+    * and the version column, in one short transaction (a constant default
+    * needs no rewrite); rows without an id are numbered in batches; the
+    * check is validated and the unique indexes of the id and the former
+    * key are built without blocking writes.  The final transaction swaps
+    * the constraints over to these indexes and makes the id an identity
+    * continuing the numbering.
+    */
+   List<String> prepareSurrogateId (SurrogateId table) throws SQLException {
+      String t = table.name;
+      System.out.println ("  numbering " + t);
+      if (this._esql.executeQueryAndReturnResult (
+             "SELECT 1 FROM information_schema.columns WHERE table_name = ? AND column_name = 'id'",
+             t.toLowerCase ()).isEmpty ())
+         transaction ("CREATE SEQUENCE " + table.sequence (),
+                      "ALTER TABLE " + t + " ADD COLUMN id integer DEFAULT nextval('" + table.sequence () + "'), "
+                         + "ADD COLUMN version integer NOT NULL DEFAULT 0, "
+                         + "ADD CONSTRAINT " + t + "_ID_NOT_NULL CHECK (id IS NOT NULL) NOT VALID",
+                      "ALTER SEQUENCE " + table.sequence () + " OWNED BY " + t + ".id");
+
+      fillIds (table);
+      this._esql.executeUpdate ("ALTER TABLE " + t + " VALIDATE CONSTRAINT " + t + "_ID_NOT_NULL");
+      buildConcurrently (t + "_ID_IDX", "CREATE UNIQUE INDEX CONCURRENTLY " + t + "_ID_IDX ON " + t + " (id)");
+      buildConcurrently (t + "_ENTRY_IDX", "CREATE UNIQUE INDEX CONCURRENTLY " + t + "_ENTRY_IDX ON " + t
+                         + " (" + Rewrite.list (table.keys, "") + ")");
+
+      List<String> swap = new ArrayList<String>();
+      swap.add ("ALTER TABLE " + t + " DROP CONSTRAINT " + t + "_pkey");
+      // the validated check spares SET NOT NULL its scan.
+      swap.add ("ALTER TABLE " + t + " ALTER COLUMN id SET NOT NULL");
+      swap.add ("ALTER TABLE " + t + " ADD CONSTRAINT " + t + "_pkey PRIMARY KEY USING INDEX " + t + "_ID_IDX, "
+                + "ADD CONSTRAINT " + t + "_ENTRY_KEY UNIQUE USING INDEX " + t + "_ENTRY_IDX");
+      swap.add ("ALTER TABLE " + t + " DROP CONSTRAINT " + t + "_ID_NOT_NULL, ALTER COLUMN id DROP DEFAULT");
+      swap.add ("DROP SEQUENCE " + table.sequence ());
+      swap.add ("ALTER TABLE " + t + " ALTER COLUMN id ADD GENERATED BY DEFAULT AS IDENTITY");
+      swap.add ("SELECT setval(pg_get_serial_sequence('" + t.toLowerCase () + "', 'id'), "
+                + "(SELECT COALESCE(MAX(id), 0) + 1 FROM " + t + "), false)");
+      return swap;
+   }//end prepareSurrogateId
+
+   /*
+    * Numbers the rows of a table without an id in key order, one
+    * transaction per batch.  A rerun starts over from the first key, rows
+    * already numbered are left alone.
+    */
+   private void fillIds (SurrogateId table) throws SQLException {
+      int width = table.keys.length;
+      ConnectionPool.Pooled pooled = this._esql.getPool ().borrow ();
+      try {
+         PreparedStatement first = pooled.statements ().prepare (table.fillBatch (false));
+         PreparedStatement next = pooled.statements ().prepare (table.fillBatch (true));
+         String[] last = null;
+         long seen = 0;
+         while (true) {
+            PreparedStatement fill = last == null ? first : next;
+            int param = 1;
+            if (last != null)
+               for (String key : last)
+                  fill.setString (param++, key);
+            fill.setInt (param, this._batchRows);
+            ResultSet rs = fill.executeQuery ();
+            int rows = 0;
+            if (rs.next ()) {
+               last = new String[width];
+               for (int i = 0; i < width; ++i)
+                  last[i] = rs.getString (i + 1);
+               rows = rs.getInt (width + 1);
+            }//end if
+            rs.close ();
+            if (rows == 0)
+               break;
+            seen += rows;
+            pause ();
+         }//end while
+         System.out.println ("  " + seen + " rows of " + table.name + " numbered");
+      }finally{
+         this._esql.getPool ().release (pooled);
+      }//end try
+   }//end fillIds
+
+   /*
+    * Builds an index with CREATE INDEX CONCURRENTLY, unless it exists.  An
+    * invalid one, left by an interrupted build, is dropped and rebuilt.
+    */
+   private void buildConcurrently (String name, String create) throws SQLException {
+      List<List<String>> index = this._esql.executeQueryAndReturnResult (
+         "SELECT i.indisvalid FROM pg_index i JOIN pg_class c ON c.oid = i.indexrelid WHERE c.relname = ?",
+         name.toLowerCase ());
+      if (!index.isEmpty () && index.get (0).get (0).startsWith ("t"))
+         return;
+      if (!index.isEmpty ())
+         this._esql.executeUpdate ("DROP INDEX CONCURRENTLY " + name);
+      this._esql.executeUpdate (create);
+   }//end buildConcurrently
+
+   /*
+    * Sleeps between batches when asked to, leaving the database room.
+    */
+   private void pause () throws SQLException {
+      if (this._pauseMillis <= 0)
+         return;
+      try {
+         Thread.sleep (this._pauseMillis);
+      }catch (InterruptedException e) {
+         Thread.currentThread ().interrupt ();
+         throw new SQLException ("Interrupted, rerun to resume");
+      }//end try
+   }//end pause
+
+   /*
+    * Migration 2.  Each step can be rerun: an interrupted copy resumes
+    * after the last committed batch.
+    */
+   void partitionMessages () throws SQLException {
+      if (!tableExists (MESSAGE_PART)) {
+         // creating the new table and its trigger in one transaction
+         // means no write to MESSAGE is missed by both copy and trigger.
+         List<String> create = new ArrayList<String>();
+         create.add (CREATE_MESSAGE_PART);
+         create.add ("CREATE TABLE " + DEFAULT_PARTITION + " PARTITION OF " + MESSAGE_PART + " DEFAULT");
+         for (String index : MESSAGE_PART_INDEXES)
+            create.add (index);
+         create.add ("CREATE TABLE IF NOT EXISTS MESSAGE_PART_PROGRESS(lastMsgId integer NOT NULL)");
+         create.add ("DELETE FROM MESSAGE_PART_PROGRESS");
+         create.add ("INSERT INTO MESSAGE_PART_PROGRESS VALUES (-1)");
+         create.add (MIRROR_FUNCTION);
+         create.add ("CREATE TRIGGER MESSAGE_PART_MIRROR AFTER INSERT OR UPDATE OR DELETE ON MESSAGE "
+                     + "FOR EACH ROW EXECUTE PROCEDURE message_part_mirror()");
+         transaction (create.toArray (new String[create.size ()]));
+         // monthly partitions from the oldest message on; before any row
+         // is copied, so none lands in the default partition.
+         List<List<String>> oldest = this._esql.executeQueryAndReturnResult (
+            "SELECT to_char(MIN(sendTime), 'YYYY-MM') FROM MESSAGE");
+         String first = oldest.get (0).get (0);
+         createPartitions (MESSAGE_PART, first == null ? null : month (first), DEFAULT_MONTHS_AHEAD);
+      }//end if
+
+      copyMessages ();
+
+      List<String> swap = new ArrayList<String>();
+      swap.add ("LOCK TABLE MESSAGE IN ACCESS EXCLUSIVE MODE");
+      swap.add ("DROP TRIGGER MESSAGE_PART_MIRROR ON MESSAGE");
+      swap.add ("ALTER TABLE MESSAGE RENAME TO MESSAGE_OLD");
+      swap.add ("ALTER INDEX IF EXISTS MESSAGE_SENT_PAGE_IDX RENAME TO MESSAGE_OLD_SENT_PAGE_IDX");
+      swap.add ("ALTER INDEX IF EXISTS MESSAGE_INBOX_PAGE_IDX RENAME TO MESSAGE_OLD_INBOX_PAGE_IDX");
+      swap.add ("ALTER TABLE " + MESSAGE_PART + " RENAME TO MESSAGE");
+      swap.add ("ALTER INDEX MESSAGE_PART_SENT_PAGE_IDX RENAME TO MESSAGE_SENT_PAGE_IDX");
+      swap.add ("ALTER INDEX MESSAGE_PART_INBOX_PAGE_IDX RENAME TO MESSAGE_INBOX_PAGE_IDX");
+      swap.add ("DROP FUNCTION message_part_mirror()");
+      swap.add ("DROP TABLE MESSAGE_PART_PROGRESS");
+      swap.add (SCHEMA_CHANGED);
+      swap.add (record (2, "MESSAGE partitioned by month of sendTime"));
+      transaction (swap.toArray (new String[swap.size ()]));
+      this._esql.getPool ().recycle ();
+
+      if (!this._keepOld)
+         this._esql.executeUpdate ("DROP TABLE MESSAGE_OLD");
+      this._esql.executeUpdate ("ANALYZE MESSAGE");
+   }//end partitionMessages
+
+   /*
+    * Copies MESSAGE into the new table in msgId order, one transaction per
+    * batch, the progress committed with the batch.
+    */
+   private void copyMessages () throws SQLException {
+      ConnectionPool.Pooled pooled = this._esql.getPool ().borrow ();
+      try {
+         Connection connection = pooled.connection ();
+         Statement progress = connection.createStatement ();
+         ResultSet rs = progress.executeQuery ("SELECT lastMsgId FROM MESSAGE_PART_PROGRESS");
+         rs.next ();
+         int last = rs.getInt (1);
+         rs.close ();
+         progress.close ();
+
+         PreparedStatement copy = pooled.statements ().prepare (COPY_BATCH);
+         PreparedStatement advance = pooled.statements ().prepare ("UPDATE MESSAGE_PART_PROGRESS SET lastMsgId = ?");
+         connection.setAutoCommit (false);
+         long copied = 0;
+         long start = System.nanoTime ();
+         while (true) {
+            copy.setInt (1, last);
+            copy.setInt (2, this._batchRows);
+            rs = copy.executeQuery ();
+            rs.next ();
+            int rows = rs.getInt (2);
+            if (rows > 0)
+               last = rs.getInt (1);
+            rs.close ();
+            if (rows == 0) {
+               connection.commit ();
+               break;
+            }//end if
+            advance.setInt (1, last);
+            advance.executeUpdate ();
+            connection.commit ();
+            copied += rows;
+            if (copied % (this._batchRows * 20L) < rows)
+               System.out.printf ("  %d messages copied, up to msgId %d, %.0f rows/s%n",
+                                  copied, last, copied / Math.max ((System.nanoTime () - start) / 1e9, 1e-9));
+            pause ();
+         }//end while
+         connection.setAutoCommit (true);
+         System.out.println ("  " + copied + " messages copied");
+      }finally{
+         this._esql.getPool ().release (pooled);
+      }//end try
+   }//end copyMessages
+
+   /**
+    * Creates the missing monthly partitions of a partitioned message table,
+    * from a month through a number of months after the current one.  Rows
+    * of a month in the default partition are moved to its new partition,
+    * in the transaction creating it.
+    *
+    * @param table MESSAGE, or the new table during migration 2
+    * @param from the first month, null for the current one
+    * @param monthsAhead the months after the current one to cover
+    * @return the number of partitions created
+    * @throws java.sql.SQLException when a partition could not be created
+    */
+   public int createPartitions (String table, Calendar from, int monthsAhead) throws SQLException {
+      Calendar end = firstOfMonth (Calendar.getInstance ());
+      end.add (Calendar.MONTH, monthsAhead + 1);
+      Calendar month = firstOfMonth (from == null ? Calendar.getInstance () : from);
+      List<String> existing = partitions ();
+      int created = 0;
+      while (month.before (end)) {
+         Calendar next = (Calendar) month.clone ();
+         next.add (Calendar.MONTH, 1);
+         String name = partitionName (month);
+         if (!existing.contains (name.toLowerCase ())) {
+            String create = "CREATE TABLE " + name + " PARTITION OF " + table
+               + " FOR VALUES FROM ('" + date (month) + "') TO ('" + date (next) + "')";
+            if (existing.contains (DEFAULT_PARTITION.toLowerCase ()))
+               // the default partition may not keep rows of the month, and
+               // takes no writes until they are moved.
+               transaction ("LOCK TABLE " + DEFAULT_PARTITION + " IN EXCLUSIVE MODE",
+                            "CREATE TEMP TABLE MESSAGE_MOVED (LIKE " + table + ") ON COMMIT DROP",
+                            "WITH moved AS (DELETE FROM " + DEFAULT_PARTITION + " WHERE sendTime >= '" + date (month)
+                               + "' AND sendTime < '" + date (next) + "' RETURNING *) "
+                               + "INSERT INTO MESSAGE_MOVED SELECT * FROM moved",
+                            create,
+                            "INSERT INTO " + table + " SELECT * FROM MESSAGE_MOVED");
+            else
+               this._esql.executeUpdate (create);
+            created++;
+         }//end if
+         month = next;
+      }//end while
+      return created;
+   }//end createPartitions
+
+   /**
+    * Creates the monthly partitions of MESSAGE from the oldest message in
+    * the default partition, moving the messages there, through a number of
+    * months after the current one.  A database loaded or written before
+    * its partitions existed holds all its messages in the default one.
+    *
+    * @param monthsAhead the months after the current one to cover
+    * @return the number of partitions created
+    * @throws java.sql.SQLException when a partition could not be created
+    */
+   public int partitionDefault (int monthsAhead) throws SQLException {
+      if (!tableExists (DEFAULT_PARTITION))
+         return 0;
+      List<List<String>> oldest = this._esql.executeQueryAndReturnResult (
+         "SELECT to_char(MIN(sendTime), 'YYYY-MM') FROM " + DEFAULT_PARTITION);
+      String first = oldest.get (0).get (0);
+      return createPartitions ("MESSAGE", first == null ? null : month (first), monthsAhead);
+   }//end partitionDefault
+
+   /**
+    * Drops the monthly partitions of MESSAGE entirely before a month,
+    * deleting their messages.
+    *
+    * @param before the first month kept
+    * @return the number of partitions dropped
+    * @throws java.sql.SQLException when a partition could not be dropped
+    */
+   public int dropPartitionsBefore (Calendar before) throws SQLException {
+      String limit = partitionName (firstOfMonth (before)).toLowerCase ();
+      int dropped = 0;
+      for (String name : partitions ()) {
+         // yyyy and mm are fixed width, names sort like their months.
+         if (!PARTITION_NAME.matcher (name).matches () || name.compareTo (limit) >= 0)
+            continue;
+         transaction ("ALTER TABLE MESSAGE DETACH PARTITION " + name, "DROP TABLE " + name);
+         dropped++;
+      }//end for
+      return dropped;
+   }//end dropPartitionsBefore
+
+   /*
+    * Names of the monthly and default partitions of MESSAGE, and of the new
+    * table during migration 2, in lower case.
+    */
+   private List<String> partitions () throws SQLException {
+      List<String> names = new ArrayList<String>();
+      for (List<String> row : this._esql.executeQueryAndReturnResult (
+              "SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid "
+              + "JOIN pg_class p ON p.oid = i.inhparent "
+              + "WHERE p.relname IN ('message', 'message_part') AND p.relkind = 'p' ORDER BY c.relname"))
+         names.add (row.get (0).trim ());
+      return names;
+   }//end partitions
+
+   private boolean tableExists (String name) throws SQLException {
+      return !this._esql.executeQueryAndReturnResult (
+         "SELECT 1 FROM pg_class WHERE relname = ? AND relkind IN ('r', 'p')", name.toLowerCase ()).isEmpty ();
+   }//end tableExists
+
+   /*
+    * Runs DDL and DML statements in one transaction.
+    */
+   void transaction (String... statements) throws SQLException {
+      ConnectionPool.Pooled pooled = this._esql.getPool ().borrow ();
+      try {
+         Connection connection = pooled.connection ();
+         connection.setAutoCommit (false);
+         Statement stmt = connection.createStatement ();
+         try {
+            for (String sql : statements)
+               stmt.execute (sql);
+         }finally{
+            stmt.close ();
+         }//end try
+         connection.commit ();
+         connection.setAutoCommit (true);
+      }finally{
+         // rolls back when a statement failed.
+         this._esql.getPool ().release (pooled);
+      }//end try
+   }//end transaction
+
+   static String record (int version, String description) {
+      return "INSERT INTO SCHEMA_VERSION (version, description) VALUES (" + version + ", '" + description + "')";
+   }//end record
+
+   static String partitionName (Calendar month) {
+      return String.format ("MESSAGE_Y%04dM%02d", month.get (Calendar.YEAR), month.get (Calendar.MONTH) + 1);
+   }//end partitionName
+
+   private static String date (Calendar day) {
+      return new Timestamp (day.getTimeInMillis ()).toString ().substring (0, 10);
+   }//end date
+
+   private static Calendar firstOfMonth (Calendar day) {
+      Calendar first = Calendar.getInstance ();
+      first.clear ();
+      first.set (day.get (Calendar.YEAR), day.get (Calendar.MONTH), 1);
+      return first;
+   }//end firstOfMonth
+
+   /*
+    * Parses yyyy-mm.
+    */
+   static Calendar month (String text) {
+      Matcher m = Pattern.compile ("(\\d{4})-(\\d{1,2})").matcher (text.trim ());
+      if (!m.matches ())
+         throw new IllegalArgumentException ("Expected a month as yyyy-mm: " + text);
+      Calendar month = Calendar.getInstance ();
+      month.clear ();
+      month.set (Integer.parseInt (m.group (1)), Integer.parseInt (m.group (2)) - 1, 1);
+      return month;
+   }//end month
+}//end SchemaMigrator
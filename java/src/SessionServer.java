@@ -0,0 +1,502 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the ProfNetwork menus to many users at once over TCP.  Each
+ * connection is a session running the same menus as the console program,
+ * line by line, so any line-oriented client works:
+ *
+ *    java -cp classes:lib/pg73jdbc3.jar SessionServer $DB_NAME $PGPORT $USER 7000
+ *    telnet localhost 7000
+ *
+ * All sessions share one ProfNetwork, and with it the connection pool, the
+ * statement caches and the in-memory graph and indexes.  A session only
+ * holds a database connection while an operation runs, so the pool can
+ * stay far smaller than the number of sessions (profnetwork.pool.max).
+ *
+ * Each session runs on its own thread: a virtual thread when the JVM has
+ * them (Java 21 and later, found by reflection), otherwise a platform
+ * thread.  The menu code reads ProfNetwork.in and writes System.out and
+ * System.err; the server replaces those with streams that forward to the
+ * current thread's session, so the operations run unchanged.  Each
+ * session prints through a PrintStream of its own, so a slow client only
+ * ever blocks its own thread.
+ *
+ * With profnetwork.server.recordDir set, every line a client types is also
+ * written to session-<n>.script in that directory, a script LoadDriver can
+ * replay.  Answers to the login and password prompts are recorded as the
+ * placeholders {user} and {password}, never as typed.
+ *
+ */
+public class SessionServer {
+
+   // sessions served at once, further connections are turned away.
+   public static final int DEFAULT_MAX_SESSIONS = 10000;
+
+   private final ProfNetwork _esql;
+   private final ServerSocket _server;
+   private final ExecutorService _sessions;
+   private final Semaphore _slots;
+   private final AtomicInteger _active = new AtomicInteger ();
+   private final AtomicInteger _served = new AtomicInteger ();
+
+   // where the input of the sessions is recorded, null for nowhere.
+   private final File _recordDir;
+
+   // the session served by the current thread, null on other threads.
+   private static final ThreadLocal<Session> CURRENT = new ThreadLocal<Session>();
+
+   /**
+    * Thrown in a session thread when its client has gone.  It is an Error
+    * so that the catch (Exception) blocks of the menu operations let it
+    * through instead of prompting a closed connection forever.
+    */
+   static class Disconnected extends Error {
+      private static final long serialVersionUID = 1L;
+
+      Disconnected () {
+         super ("session closed");
+      }
+   }//end Disconnected
+
+   /**
+    * The streams of one client connection.
+    */
+   private static class Session {
+      final BufferedReader in;
+      final OutputStream out;
+
+      // what System.out and System.err print to on the session's thread.
+      final PrintStream print;
+
+      // the lines typed so far, null when not recorded.
+      final Writer record;
+
+      // the text last printed, the prompt a line typed answers.
+      String prompt = "";
+
+      Session (Socket socket, File record) throws IOException {
+         this.in = new BufferedReader (new InputStreamReader (socket.getInputStream ()));
+         this.out = new BufferedOutputStream (socket.getOutputStream ());
+         this.print = new PrintStream (this.out, false);
+         this.record = record == null ? null : new BufferedWriter (new FileWriter (record));
+      }
+
+      /*
+       * Adds a line typed to the record.  Lines that would read as a
+       * comment or an escape in a script are escaped with a backslash,
+       * credentials replaced by their placeholder.
+       */
+      void record (String line) throws IOException {
+         String prompt = this.prompt;
+         this.prompt = "";
+         if (this.record == null)
+            return;
+         String placeholder = credential (prompt);
+         if (placeholder != null)
+            line = placeholder;
+         else if (line.startsWith ("#") || line.startsWith ("\\"))
+            this.record.write ('\\');
+         this.record.write (line);
+         this.record.write ('\n');
+      }
+
+      /*
+       * The placeholder recorded for the answer to a prompt asking for a
+       * credential, null for other prompts.
+       */
+      static String credential (String prompt) {
+         if (prompt.endsWith ("user login: ") || prompt.startsWith ("User name required"))
+            return "{user}";
+         if (prompt.toLowerCase ().contains ("password"))
+            return "{password}";
+         return null;
+      }
+
+      void close () {
+         if (this.record == null)
+            return;
+         try {
+            this.record.close ();
+         }catch (IOException e) {
+            // ignored.
+         }//end try
+      }
+   }//end Session
+
+   /**
+    * Creates a new instance of SessionServer
+    *
+    * @param esql the database access object shared by all sessions
+    * @param port the TCP port to listen on
+    * @param maxSessions the number of sessions served at once
+    * @throws java.io.IOException when the port could not be bound
+    */
+   public SessionServer (ProfNetwork esql, int port, int maxSessions) throws IOException {
+      this._esql = esql;
+      this._server = new ServerSocket (port);
+      this._slots = new Semaphore (maxSessions);
+      this._sessions = newSessionExecutor ();
+      String recordDir = System.getProperty ("profnetwork.server.recordDir");
+      this._recordDir = recordDir == null ? null : new File (recordDir);
+      if (this._recordDir != null && !this._recordDir.isDirectory () && !this._recordDir.mkdirs ())
+         throw new IOException ("Cannot create " + recordDir);
+   }//end SessionServer
+
+   /**
+    * Accepts connections until the server socket is closed.
+    *
+    * @throws java.io.IOException when accepting failed
+    */
+   public void serve () throws IOException {
+      install ();
+      while (!this._server.isClosed ()) {
+         final Socket socket = this._server.accept ();
+         if (!this._slots.tryAcquire ()) {
+            socket.getOutputStream ().write ("Too many sessions, try again later\r\n".getBytes ());
+            socket.close ();
+            continue;
+         }//end if
+         this._sessions.execute (new Runnable () {
+            public void run () {
+               try {
+                  serve (socket);
+               }finally{
+                  SessionServer.this._slots.release ();
+               }//end try
+            }
+         });
+      }//end while
+   }//end serve
+
+   /**
+    * Stops accepting connections.  Sessions in progress run to their end.
+    */
+   public void close () throws IOException {
+      this._server.close ();
+      this._sessions.shutdown ();
+   }//end close
+
+   /**
+    * @return whether the current thread serves a client session, rather
+    *         than the console of the host
+    */
+   public static boolean inSession () {
+      return CURRENT.get () != null;
+   }//end inSession
+
+   /**
+    * @return the number of sessions being served
+    */
+   public int getActiveSessions () {
+      return this._active.get ();
+   }//end getActiveSessions
+
+   /*
+    * Runs the menus for one client on the current thread.
+    */
+   private void serve (Socket socket) {
+      this._active.incrementAndGet ();
+      int number = this._served.incrementAndGet ();
+      Session session = null;
+      try {
+         session = new Session (socket, this._recordDir == null ? null
+                                : new File (this._recordDir, "session-" + number + ".script"));
+         CURRENT.set (session);
+         ProfNetwork.Greeting ();
+         ProfNetwork.MainMenu (this._esql);
+         System.out.println ("Bye !");
+         session.print.flush ();
+      }catch (Disconnected e) {
+         // the client went away.
+      }catch (IOException e) {
+         // the client went away.
+      }finally{
+         CURRENT.remove ();
+         ReplicaRouter.endSession ();
+         if (session != null)
+            session.close ();
+         this._active.decrementAndGet ();
+         try {
+            socket.close ();
+         }catch (IOException e) {
+            // ignored.
+         }//end try
+      }//end try
+   }//end serve
+
+   /*
+    * Routes the keyboard and console of the menu code to the sessions.
+    * Threads without a session keep using the real console.
+    */
+   private static synchronized void install () {
+      if (!(ProfNetwork.in instanceof SessionInput))
+         ProfNetwork.in = new SessionInput (ProfNetwork.in);
+      if (!(System.out instanceof SessionOutput))
+         System.setOut (new SessionOutput (System.out));
+      if (!(System.err instanceof SessionOutput))
+         System.setErr (new SessionOutput (System.err));
+   }//end install
+
+   /*
+    * A thread per session: virtual threads through
+    * Executors.newVirtualThreadPerTaskExecutor when the JVM has it,
+    * otherwise daemon platform threads.
+    */
+   private static ExecutorService newSessionExecutor () {
+      try {
+         return (ExecutorService) Executors.class.getMethod ("newVirtualThreadPerTaskExecutor").invoke (null);
+      }catch (ReflectiveOperationException e) {
+         return Executors.newCachedThreadPool (new ThreadFactory () {
+            private final AtomicInteger _count = new AtomicInteger ();
+
+            public Thread newThread (Runnable task) {
+               Thread thread = new Thread (task, "session-" + this._count.incrementAndGet ());
+               thread.setDaemon (true);
+               return thread;
+            }
+         });
+      }//end try
+   }//end newSessionExecutor
+
+   /**
+    * Keyboard of the menu code: the session's input on a session thread,
+    * the console elsewhere.  Reading a line first sends the output
+    * buffered so far, which ends with the prompt.
+    */
+   private static class SessionInput extends BufferedReader {
+      private final BufferedReader _console;
+
+      SessionInput (BufferedReader console) {
+         super (console);
+         this._console = console;
+      }
+
+      public String readLine () throws IOException {
+         Session session = CURRENT.get ();
+         if (session == null)
+            return this._console.readLine ();
+         session.print.flush ();
+         String line = session.in.readLine ();
+         if (line == null)
+            throw new Disconnected ();
+         session.record (line);
+         return line;
+      }
+
+      public int read () throws IOException {
+         return reader ().read ();
+      }
+
+      public int read (char[] buffer, int off, int len) throws IOException {
+         return reader ().read (buffer, off, len);
+      }
+
+      public boolean ready () throws IOException {
+         return reader ().ready ();
+      }
+
+      private Reader reader () {
+         Session session = CURRENT.get ();
+         return session == null ? this._console : session.in;
+      }
+   }//end SessionInput
+
+   /**
+    * System.out and System.err of the menu code: the session's own
+    * PrintStream on a session thread, the original stream elsewhere.
+    * Every method is forwarded without taking this stream's monitor, which
+    * all sessions share: PrintStream's own methods would hold it while
+    * writing to a socket, so one client not reading would stall every
+    * session, and pin virtual threads.  Only the session's stream, used by
+    * its thread alone, is locked while writing.
+    */
+   private static class SessionOutput extends PrintStream {
+      private final PrintStream _console;
+
+      SessionOutput (PrintStream console) {
+         super (console);
+         this._console = console;
+      }
+
+      private PrintStream target () {
+         Session session = CURRENT.get ();
+         return session == null ? this._console : session.print;
+      }
+
+      public void write (int b) {
+         target ().write (b);
+      }
+
+      public void write (byte[] buffer, int off, int len) {
+         target ().write (buffer, off, len);
+      }
+
+      public void write (byte[] buffer) throws IOException {
+         target ().write (buffer);
+      }
+
+      public void flush () {
+         target ().flush ();
+      }
+
+      public boolean checkError () {
+         return target ().checkError ();
+      }
+
+      public void print (boolean b) {
+         target ().print (b);
+      }
+
+      public void print (char c) {
+         target ().print (c);
+      }
+
+      public void print (int i) {
+         target ().print (i);
+      }
+
+      public void print (long l) {
+         target ().print (l);
+      }
+
+      public void print (float f) {
+         target ().print (f);
+      }
+
+      public void print (double d) {
+         target ().print (d);
+      }
+
+      public void print (char[] s) {
+         target ().print (s);
+      }
+
+      public void print (String s) {
+         Session session = CURRENT.get ();
+         if (session != null)
+            session.prompt = String.valueOf (s);
+         target ().print (s);
+      }
+
+      public void print (Object obj) {
+         target ().print (obj);
+      }
+
+      public void println () {
+         target ().println ();
+      }
+
+      public void println (boolean x) {
+         target ().println (x);
+      }
+
+      public void println (char x) {
+         target ().println (x);
+      }
+
+      public void println (int x) {
+         target ().println (x);
+      }
+
+      public void println (long x) {
+         target ().println (x);
+      }
+
+      public void println (float x) {
+         target ().println (x);
+      }
+
+      public void println (double x) {
+         target ().println (x);
+      }
+
+      public void println (char[] x) {
+         target ().println (x);
+      }
+
+      public void println (String x) {
+         target ().println (x);
+      }
+
+      public void println (Object x) {
+         target ().println (x);
+      }
+
+      public PrintStream printf (String format, Object... args) {
+         target ().printf (format, args);
+         return this;
+      }
+
+      public PrintStream printf (java.util.Locale l, String format, Object... args) {
+         target ().printf (l, format, args);
+         return this;
+      }
+
+      public PrintStream format (String format, Object... args) {
+         target ().format (format, args);
+         return this;
+      }
+
+      public PrintStream format (java.util.Locale l, String format, Object... args) {
+         target ().format (l, format, args);
+         return this;
+      }
+
+      public PrintStream append (CharSequence csq) {
+         target ().append (csq);
+         return this;
+      }
+
+      public PrintStream append (CharSequence csq, int start, int end) {
+         target ().append (csq, start, end);
+         return this;
+      }
+
+      public PrintStream append (char c) {
+         target ().append (c);
+         return this;
+      }
+
+      public void close () {
+         // the console and the sessions are closed by their owners.
+      }
+   }//end SessionOutput
+
+   public static void main (String[] args) {
+      if (args.length != 4) {
+         System.err.println ("Usage: java SessionServer <dbname> <port> <user> <listen port>");
+         return;
+      }//end if
+      ProfNetwork esql = null;
+      try {
+         Class.forName ("org.postgresql.Driver");
+         esql = new ProfNetwork (args[0], args[1], args[2], "");
+         SessionServer server = new SessionServer (esql, Integer.parseInt (args[3]),
+            Integer.getInteger ("profnetwork.server.maxSessions", DEFAULT_MAX_SESSIONS).intValue ());
+         System.out.println ("Serving ProfNetwork sessions on port " + args[3]);
+         server.serve ();
+      }catch (Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         if (esql != null)
+            esql.cleanup ();
+      }//end try
+   }//end main
+}//end SessionServer
@@ -0,0 +1,138 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.postgresql.PGStatement;
+
+/**
+ * This class keeps the PreparedStatements of one physical connection, keyed
+ * by their SQL text, so that a query issued again is not re-parsed by the
+ * driver.  Once a statement has been used a threshold number of
+ * times it is switched to a server side prepare so Postgres also stops
+ * re-planning it.
+ *
+ */
+public class StatementCache {
+
+   // default number of distinct statements kept per connection.
+   public static final int DEFAULT_CAPACITY = 64;
+
+   // default number of uses after which a statement is prepared on the server.
+   public static final int DEFAULT_SERVER_PREPARE_THRESHOLD = 5;
+
+   // the physical connection owning the cached statements.
+   private final Connection _connection;
+
+   // maximum number of statements kept open.
+   private final int _capacity;
+
+   // uses before switching to a server side prepare, 0 to never switch.
+   private final int _serverPrepareThreshold;
+
+   // cached statements in access order, the eldest is closed on overflow.
+   private final LinkedHashMap<String, Entry> _statements;
+
+   /**
+    * A cached statement together with its number of uses.
+    */
+   private static class Entry {
+      final PreparedStatement stmt;
+      int uses = 0;
+
+      Entry (PreparedStatement stmt) {
+         this.stmt = stmt;
+      }
+   }//end Entry
+
+   /**
+    * Creates a cache with the default capacity and threshold.
+    *
+    * @param connection the physical connection the statements belong to
+    */
+   public StatementCache (Connection connection) {
+      this (connection, DEFAULT_CAPACITY, DEFAULT_SERVER_PREPARE_THRESHOLD);
+   }//end StatementCache
+
+   /**
+    * Creates a new instance of StatementCache
+    *
+    * @param connection the physical connection the statements belong to
+    * @param capacity the maximum number of statements kept open
+    * @param serverPrepareThreshold uses before a statement is prepared on
+    *        the server, 0 to never do so
+    */
+   public StatementCache (Connection connection, int capacity, int serverPrepareThreshold) {
+      this._connection = connection;
+      this._capacity = capacity;
+      this._serverPrepareThreshold = serverPrepareThreshold;
+      this._statements = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+   }//end StatementCache
+
+   /**
+    * Returns the prepared statement for the given SQL text, preparing it on
+    * first use.  The returned statement stays owned by the cache and must
+    * not be closed by the caller.
+    *
+    * @param sql the SQL text with '?' placeholders
+    * @return the cached prepared statement
+    * @throws java.sql.SQLException when the statement could not be prepared
+    */
+   public synchronized PreparedStatement prepare (String sql) throws SQLException {
+      Entry entry = this._statements.get (sql);
+      if (entry == null) {
+         entry = new Entry (this._connection.prepareStatement (sql));
+         this._statements.put (sql, entry);
+         evict ();
+      }//end if
+
+      entry.uses++;
+      if (this._serverPrepareThreshold > 0
+            && entry.uses == this._serverPrepareThreshold
+            && entry.stmt instanceof PGStatement) {
+         // from the next execution on, the driver uses a named server
+         // side statement.
+         ((PGStatement) entry.stmt).setPrepareThreshold (1);
+      }//end if
+      entry.stmt.clearParameters ();
+      return entry.stmt;
+   }//end prepare
+
+   /**
+    * @return the number of statements currently cached
+    */
+   public synchronized int size () {
+      return this._statements.size ();
+   }//end size
+
+   /**
+    * Closes every cached statement.  The connection itself is left open.
+    */
+   public synchronized void close () {
+      for (Entry entry : this._statements.values ()) {
+         closeQuietly (entry.stmt);
+      }//end for
+      this._statements.clear ();
+   }//end close
+
+   /*
+    * Closes the least recently used statements above the capacity.
+    */
+   private void evict () {
+      Iterator<Map.Entry<String, Entry>> it = this._statements.entrySet ().iterator ();
+      while (this._statements.size () > this._capacity && it.hasNext ()) {
+         closeQuietly (it.next ().getValue ().stmt);
+         it.remove ();
+      }//end while
+   }//end evict
+
+   private static void closeQuietly (PreparedStatement stmt) {
+      try {
+         stmt.close ();
+      }catch (SQLException e) {
+         // ignored.
+      }//end try
+   }//end closeQuietly
+}//end StatementCache
@@ -0,0 +1,112 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class collects the statements of a multi-step operation and runs
+ * them in a single transaction.  Consecutive statements with the same SQL
+ * text go to the server as one JDBC batch, so an operation editing N rows
+ * costs one commit and one batch round trip instead of N autocommitted
+ * updates.
+ *
+ * Nothing is sent before commit(), which either applies every statement or,
+ * when one fails, none of them.  A unit of work is committed once.
+ *
+ */
+public class UnitOfWork {
+
+   private final ConnectionPool _pool;
+   private final QueryMetrics _metrics;
+   private final List<String> _sql = new ArrayList<String>();
+   private final List<Object[]> _params = new ArrayList<Object[]>();
+   private boolean _committed = false;
+
+   /*
+    * Created by ProfNetwork.beginWork.
+    */
+   UnitOfWork (ConnectionPool pool, QueryMetrics metrics) {
+      this._pool = pool;
+      this._metrics = metrics;
+   }//end UnitOfWork
+
+   /**
+    * Adds a statement to run at commit.
+    *
+    * @param sql the SQL string with '?' placeholders
+    * @param params the values bound to the placeholders
+    * @return this unit of work
+    */
+   public UnitOfWork add (String sql, Object... params) {
+      if (this._committed)
+         throw new IllegalStateException ("unit of work already committed");
+      this._sql.add (sql);
+      this._params.add (params);
+      return this;
+   }//end add
+
+   /**
+    * @return the number of statements added so far
+    */
+   public int size () {
+      return this._sql.size ();
+   }//end size
+
+   /**
+    * Runs the statements, in the order they were added, in one transaction.
+    * Without statements no connection is borrowed.
+    *
+    * @return the number of rows affected by each statement, in the order
+    *         they were added (Statement.SUCCESS_NO_INFO when the driver
+    *         does not report it)
+    * @throws java.sql.SQLException when a statement failed, in which case
+    *         the transaction is rolled back
+    */
+   public int[] commit () throws SQLException {
+      if (this._committed)
+         throw new IllegalStateException ("unit of work already committed");
+      this._committed = true;
+      int count = this._sql.size ();
+      int[] results = new int[count];
+      if (count == 0)
+         return results;
+
+      ConnectionPool.Pooled pooled = this._pool.borrow ();
+      try {
+         Connection connection = pooled.connection ();
+         connection.setAutoCommit (false);
+         int start = 0;
+         while (start < count) {
+            String sql = this._sql.get (start);
+            long started = System.nanoTime ();
+            int rows = -1;
+            PreparedStatement stmt = pooled.statements ().prepare (sql);
+            int end = start;
+            try {
+               for (; end < count && this._sql.get (end).equals (sql); ++end) {
+                  ProfNetwork.bindParameters (stmt, this._params.get (end));
+                  stmt.addBatch ();
+               }//end for
+               int[] counts = stmt.executeBatch ();
+               System.arraycopy (counts, 0, results, start, counts.length);
+               rows = 0;
+               for (int n : counts)
+                  rows += Math.max (n, 0);
+            }finally{
+               stmt.clearBatch ();
+               // one entry per batch.
+               this._metrics.record (sql, started, rows);
+            }//end try
+            start = end;
+         }//end while
+         connection.commit ();
+         connection.setAutoCommit (true);
+         ReplicaRouter.noteWrite (connection);
+      }finally{
+         // rolls back when a statement failed.
+         this._pool.release (pooled);
+      }//end try
+      return results;
+   }//end commit
+}//end UnitOfWork
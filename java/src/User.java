@@ -0,0 +1,35 @@
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A row of the USR table.
+ *
+ */
+public class User {
+
+   // column list matching MAPPER, to be used instead of SELECT *.
+   public static final String COLUMNS = "userId, password, email, name, dateOfBirth";
+
+   public static final RowMapper<User> MAPPER = new RowMapper<User>() {
+      public User map (ResultSet rs) throws SQLException {
+         return new User (ProfNetwork.trimmed (rs.getString (1)), rs.getString (2),
+                          rs.getString (3), ProfNetwork.trimmed (rs.getString (4)),
+                          rs.getDate (5));
+      }
+   };
+
+   public final String userId;
+   public final String password;
+   public final String email;
+   public final String name;
+   public final Date dateOfBirth;
+
+   public User (String userId, String password, String email, String name, Date dateOfBirth) {
+      this.userId = userId;
+      this.password = password;
+      this.email = email;
+      this.name = name;
+      this.dateOfBirth = dateOfBirth;
+   }//end User
+}//end User
@@ -0,0 +1,49 @@
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A row of the WORK_EXPR table.
+ *
+ */
+public class WorkExperience {
+
+   // column list matching MAPPER, to be used instead of SELECT *.
+   public static final String COLUMNS = "id, version, userId, company, role, location, startDate, endDate";
+
+   public static final RowMapper<WorkExperience> MAPPER = new RowMapper<WorkExperience>() {
+      public WorkExperience map (ResultSet rs) throws SQLException {
+         return new WorkExperience (rs.getInt (1), rs.getInt (2),
+                                    ProfNetwork.trimmed (rs.getString (3)),
+                                    ProfNetwork.trimmed (rs.getString (4)),
+                                    ProfNetwork.trimmed (rs.getString (5)),
+                                    ProfNetwork.trimmed (rs.getString (6)),
+                                    rs.getDate (7), rs.getDate (8));
+      }
+   };
+
+   // surrogate key of the row.
+   public final int id;
+
+   // incremented by every update, for optimistic concurrency control.
+   public final int version;
+
+   public final String userId;
+   public final String company;
+   public final String role;
+   public final String location;
+   public final Date startDate;
+   public final Date endDate;
+
+   public WorkExperience (int id, int version, String userId, String company, String role, String location,
+                          Date startDate, Date endDate) {
+      this.id = id;
+      this.version = version;
+      this.userId = userId;
+      this.company = company;
+      this.role = role;
+      this.location = location;
+      this.startDate = startDate;
+      this.endDate = endDate;
+   }//end WorkExperience
+}//end WorkExperience
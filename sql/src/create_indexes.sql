@@ -0,0 +1,26 @@
+-- Indexes for the access paths of ProfNetwork. Lookups already served by a
+-- primary key are listed for reference only:
+--   USR by userId (login, profile, search)          USR primary key
+--   WORK_EXPR by userId                              leading column of WORK_EXPR_ENTRY_KEY
+--   EDUCATIONAL_DETAILS by userId                    leading column of EDUCATIONAL_DETAILS_ENTRY_KEY
+--   WORK_EXPR, EDUCATIONAL_DETAILS by id (edits)     their primary keys
+--   MESSAGE by msgId (delete)                        MESSAGE primary key
+--   CONNECTION_USR by (userId, connectionId)         CONNECTION_USR primary key
+-- java/bench/QueryPlanCheck verifies that every application query uses them.
+
+-- Keyset pages of the sent and inbox views (ProfNetwork.findSentMessages,
+-- findInboxMessages). The WHERE clauses must match the visibility
+-- predicates of those queries so that deleted messages stay out of the
+-- index.
+CREATE INDEX MESSAGE_SENT_PAGE_IDX ON MESSAGE (senderId, sendTime DESC, msgId DESC)
+	WHERE COALESCE(deleteStatus, 0) IN (0, 2);
+CREATE INDEX MESSAGE_INBOX_PAGE_IDX ON MESSAGE (receiverId, sendTime DESC, msgId DESC)
+	WHERE COALESCE(deleteStatus, 0) IN (0, 1);
+
+-- Pending requests of a user (ProfNetwork.findPendingRequests) and the
+-- bulk answer to them (answerFriendRequests), and the friends stored as
+-- (friend -> user) in findFriends.
+CREATE INDEX CONNECTION_USR_PENDING_IDX ON CONNECTION_USR (connectionId, status, userId);
+
+-- Friends stored as (user -> friend) in findFriends.
+CREATE INDEX CONNECTION_USR_FRIENDS_IDX ON CONNECTION_USR (userId, status, connectionId);
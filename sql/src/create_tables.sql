@@ -1,48 +1,93 @@
 DROP TABLE WORK_EXPR;
 DROP TABLE EDUCATIONAL_DETAILS;
 DROP TABLE MESSAGE;
+DROP TABLE SCHEMA_VERSION;
 DROP TABLE CONNECTION_USR;
 DROP TABLE USR;
+DROP SEQUENCE MESSAGE_MSGID_SEQ;
 
 
 CREATE TABLE USR(
 	userId varchar(10) UNIQUE NOT NULL, 
 	password varchar(10) NOT NULL,
 	email text NOT NULL,
-	name char(50),
+	name varchar(50),
 	dateOfBirth date,
 	Primary Key(userId));
 
+-- Entries are addressed by their surrogate id and updated only when
+-- their version is the one read (optimistic concurrency control).
 CREATE TABLE WORK_EXPR(
-	userId char(10) NOT NULL, 
-	company char(50) NOT NULL, 
-	role char(50) NOT NULL,
-	location char(50),
-	startDate date,
+	id integer GENERATED BY DEFAULT AS IDENTITY,
+	version integer NOT NULL DEFAULT 0,
+	userId varchar(10) NOT NULL, 
+	company varchar(50) NOT NULL, 
+	role varchar(50) NOT NULL,
+	location varchar(50),
+	startDate date NOT NULL,
 	endDate date,
-	PRIMARY KEY(userId,company,role,startDate));
+	PRIMARY KEY(id),
+	CONSTRAINT WORK_EXPR_ENTRY_KEY UNIQUE(userId,company,role,startDate));
 
 CREATE TABLE EDUCATIONAL_DETAILS(
-	userId char(10) NOT NULL, 
-	instituitionName char(50) NOT NULL, 
-	major char(50) NOT NULL,
-	degree char(50) NOT NULL,
+	id integer GENERATED BY DEFAULT AS IDENTITY,
+	version integer NOT NULL DEFAULT 0,
+	userId varchar(10) NOT NULL, 
+	instituitionName varchar(50) NOT NULL, 
+	major varchar(50) NOT NULL,
+	degree varchar(50) NOT NULL,
 	startdate date,
 	enddate date,
-	PRIMARY KEY(userId,major,degree));
+	PRIMARY KEY(id),
+	CONSTRAINT EDUCATIONAL_DETAILS_ENTRY_KEY UNIQUE(userId,major,degree));
 
+-- Range partitioned by month of sendTime (PostgreSQL 11 or later), so old
+-- messages are removed by dropping a partition. The primary key has to
+-- include sendTime; msgId alone is unique by allocation. The partitions of
+-- the current month and the 12 after it are created below, others by
+-- SchemaMigrator (partitions command) or BulkLoader, which move the rows
+-- of their month out of MESSAGE_DEFAULT. MESSAGE_DEFAULT holds the rest.
 CREATE TABLE MESSAGE(
-	msgId integer UNIQUE NOT NULL, 
-	senderId char(10) NOT NULL,
-	receiverId char(10) NOT NULL,
-	contents char(500) NOT NULL,
-	sendTime timestamp,
+	msgId integer NOT NULL, 
+	senderId varchar(10) NOT NULL,
+	receiverId varchar(10) NOT NULL,
+	contents varchar(500) NOT NULL,
+	sendTime timestamp NOT NULL DEFAULT now(),
 	deleteStatus integer,
-	status char(30) NOT NULL,
-	PRIMARY KEY(msgId));
+	status varchar(30) NOT NULL,
+	PRIMARY KEY(msgId,sendTime)) PARTITION BY RANGE (sendTime);
+
+CREATE TABLE MESSAGE_DEFAULT PARTITION OF MESSAGE DEFAULT;
+
+DO $$
+DECLARE
+	m date := date_trunc('month', now());
+BEGIN
+	FOR i IN 0..12 LOOP
+		EXECUTE format('CREATE TABLE MESSAGE_Y%sM%s PARTITION OF MESSAGE FOR VALUES FROM (%L) TO (%L)',
+			to_char(m, 'YYYY'), to_char(m, 'MM'), m, m + interval '1 month');
+		m := m + interval '1 month';
+	END LOOP;
+END $$;
+
+-- hi values for MESSAGE.msgId, each one reserves a block of 50 ids
+-- (IdAllocator.MESSAGE_BLOCK_SIZE).
+CREATE SEQUENCE MESSAGE_MSGID_SEQ START 1;
 
 CREATE TABLE CONNECTION_USR(
-	userId char(10) NOT NULL, 
-	connectionId char(10) NOT NULL, 
-	status char(30) NOT NULL,
-	PRIMARY KEY(userId,connectionId));
\ No newline at end of file
+	userId varchar(10) NOT NULL, 
+	connectionId varchar(10) NOT NULL, 
+	status varchar(30) NOT NULL,
+	PRIMARY KEY(userId,connectionId));
+
+-- Migrations applied, see java/src/SchemaMigrator. This script creates
+-- the schema of the latest one.
+CREATE TABLE SCHEMA_VERSION(
+	version integer PRIMARY KEY,
+	description text NOT NULL,
+	appliedAt timestamp NOT NULL DEFAULT now());
+
+INSERT INTO SCHEMA_VERSION (version, description) VALUES
+	(1, 'varchar columns and consistent id types'),
+	(2, 'MESSAGE partitioned by month of sendTime'),
+	(3, 'surrogate ids and versions of profile rows');
\ No newline at end of file
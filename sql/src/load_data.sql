@@ -0,0 +1,10 @@
+-- For test data at scale, java/bench/DatasetGenerator writes CSV files
+-- that java/src/BulkLoader loads (and runs the statements below itself).
+
+-- Keep this statement after every COPY/INSERT into MESSAGE: it moves the
+-- message id sequence past the ids already loaded. The divisor is the
+-- block size used by IdAllocator.MESSAGE_BLOCK_SIZE.
+SELECT setval('MESSAGE_MSGID_SEQ', (SELECT COALESCE(MAX(msgId), 0) FROM MESSAGE) / 50 + 1);
+
+-- Refresh the planner statistics once the data is in.
+ANALYZE;